@@ -0,0 +1,7 @@
+@echo off
+set DIR="%~dp0"
+set JAVA_EXEC="%DIR:"=%\bin\java"
+
+
+
+%JAVA_EXEC% %CDS_JVM_OPTS%  -p "%~dp0/../app" -m image2C/image2C.CommandLine  %*
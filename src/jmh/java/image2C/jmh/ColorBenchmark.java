@@ -0,0 +1,163 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.jmh;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.pump.image.pixel.quantize.ColorLUT;
+import com.pump.image.pixel.quantize.ColorSet;
+import com.pump.image.pixel.quantize.MedianCutColorQuantization;
+import com.pump.image.pixel.quantize.WuColorQuantization;
+
+/**
+ * The Class ColorBenchmark.
+ * The palette side of convertTo4() and convertTo8(): building the 
+ * color histogram, the median cut and palette lookups.
+ * 
+ * @author Paul Conti
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorBenchmark {
+  
+  /** The number of palette colors. */
+  @Param({"16", "256"})
+  public int colors;
+  
+  /** The histogram of the image. */
+  private ColorSet colorSet;
+  
+  /** The palette lookup. */
+  private ColorLUT lut;
+  
+  /** The palette lookup backed by an inverse colormap. */
+  private ColorLUT cubeLut;
+  
+  /** The palette lookup backed by a k-d tree. */
+  private ColorLUT treeLut;
+  
+  /** The image pixels as ARGB. */
+  private int[] argb;
+  
+  @Setup
+  public void setup(ImageCorpus corpus) {
+    BufferedImage image = corpus.image;
+    colorSet = new ColorSet(image);
+    ColorSet reduced = new MedianCutColorQuantization().createReducedSet(colorSet, colors, true);
+    IndexColorModel icm = reduced.createIndexColorModel(false, false);
+    lut = new ColorLUT(icm);
+    cubeLut = new ColorLUT(icm);
+    cubeLut.setInverseColormap(true);
+    cubeLut.getIndexMatch(0, 0, 0);
+    treeLut = new ColorLUT(icm);
+    treeLut.setKDTree(true);
+    treeLut.getIndexMatch(0, 0, 0);
+    argb = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+  }
+  
+  @Benchmark
+  public ColorSet addColors(ImageCorpus corpus, PixelCounter counter) {
+    ColorSet set = new ColorSet();
+    set.addColors(corpus.image);
+    counter.pixels += corpus.pixels;
+    return set;
+  }
+  
+  @Benchmark
+  public ColorSet medianCut() {
+    return new MedianCutColorQuantization().createReducedSet(colorSet, colors, true);
+  }
+  
+  @Benchmark
+  public ColorSet wu() {
+    return new WuColorQuantization().createReducedSet(colorSet, colors, true);
+  }
+  
+  @Benchmark
+  public void getMatch(PixelCounter counter, Blackhole bh) {
+    for (int i = 0; i < argb.length; i++) {
+      int rgb = argb[i];
+      bh.consume(lut.getMatch((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff));
+    }
+    counter.pixels += argb.length;
+  }
+  
+  @Benchmark
+  public void getIndexMatch(PixelCounter counter, Blackhole bh) {
+    for (int i = 0; i < argb.length; i++) {
+      int rgb = argb[i];
+      bh.consume(lut.getIndexMatch((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff));
+    }
+    counter.pixels += argb.length;
+  }
+  
+  @Benchmark
+  public void getIndexMatchCube(PixelCounter counter, Blackhole bh) {
+    for (int i = 0; i < argb.length; i++) {
+      int rgb = argb[i];
+      bh.consume(cubeLut.getIndexMatch((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff));
+    }
+    counter.pixels += argb.length;
+  }
+  
+  @Benchmark
+  public void getIndexMatchKDTree(PixelCounter counter, Blackhole bh) {
+    for (int i = 0; i < argb.length; i++) {
+      int rgb = argb[i];
+      bh.consume(treeLut.getIndexMatch((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff));
+    }
+    counter.pixels += argb.length;
+  }
+  
+  @Benchmark
+  public ColorLUT buildCube() {
+    ColorLUT l = new ColorLUT(lut.getIndexColorModel());
+    l.setInverseColormap(true);
+    l.getIndexMatch(0, 0, 0);
+    return l;
+  }
+
+}
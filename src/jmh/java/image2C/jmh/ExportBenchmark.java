@@ -0,0 +1,125 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.jmh;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import image2C.common.CArrayOutputStream;
+import image2C.common.ImageUtils;
+import image2C.common.RGB565Encoder;
+
+/**
+ * The Class ExportBenchmark.
+ * The 16 bit export path: RGB565 conversion, hex formatting and
+ * the whole image2C_Array() call including the file write.
+ * 
+ * @author Paul Conti
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExportBenchmark {
+  
+  /** The Constant BACKGROUND, the default transparent pixel color. */
+  private final static Color BACKGROUND = new Color(255,0,255);
+  
+  /** The output file. */
+  private File file;
+  
+  /** The image utils, set up as if the GUI had opened the image. */
+  private ImageUtils imageUtils;
+  
+  /** The converted pixels. */
+  private int[] rgb565;
+  
+  @Setup
+  public void setup(ImageCorpus corpus) throws IOException {
+    file = File.createTempFile("image2c-bench", ".c");
+    imageUtils = new ImageUtils();
+    // counting the colors picks the 16 bit export
+    imageUtils.getNumberOfColors(corpus.image);
+    rgb565 = RGB565Encoder.encode(corpus.image, BACKGROUND);
+  }
+  
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+  
+  @Benchmark
+  public void image2C_Array(ImageCorpus corpus, PixelCounter counter) throws IOException {
+    imageUtils.setStreamExport(false);
+    imageUtils.image2C_Array(corpus.image, "bench", file, "bench", ".png", true, true, false);
+    counter.pixels += corpus.pixels;
+  }
+  
+  @Benchmark
+  public void image2C_ArrayStream(ImageCorpus corpus, PixelCounter counter) throws IOException {
+    imageUtils.setStreamExport(true);
+    imageUtils.image2C_Array(corpus.image, "bench", file, "bench", ".png", true, true, false);
+    counter.pixels += corpus.pixels;
+  }
+  
+  @Benchmark
+  public int[] encode(ImageCorpus corpus, PixelCounter counter) {
+    counter.pixels += corpus.pixels;
+    return RGB565Encoder.encode(corpus.image, BACKGROUND);
+  }
+  
+  @Benchmark
+  public int[] encodeParallel(ImageCorpus corpus, PixelCounter counter) {
+    counter.pixels += corpus.pixels;
+    return RGB565Encoder.encodeParallel(corpus.image, BACKGROUND);
+  }
+  
+  @Benchmark
+  public void streamArray(ImageCorpus corpus, PixelCounter counter) throws IOException {
+    CArrayOutputStream out = new CArrayOutputStream(file, true);
+    out.streamArray(rgb565);
+    out.close();
+    counter.pixels += corpus.pixels;
+  }
+
+}
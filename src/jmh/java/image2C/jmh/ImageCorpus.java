@@ -0,0 +1,149 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.jmh;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The Class ImageCorpus.
+ * Generates the benchmark input images, one per size and image type.
+ * 
+ * The images look like typical GUI assets: flat backgrounds and 
+ * buttons, a gradient, anti-aliased shapes and a noisy photo-like 
+ * patch, with a transparent border for the types that have alpha.
+ * The same seed is used every time so results can be compared 
+ * between commits.
+ * 
+ * @author Paul Conti
+ * 
+ */
+@State(Scope.Benchmark)
+public class ImageCorpus {
+  
+  /** The image size as width x height. */
+  @Param({"64x64", "320x240", "1024x768"})
+  public String size;
+  
+  /** The BufferedImage type. */
+  @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR", "4BYTE_ABGR"})
+  public String type;
+  
+  /** The image. */
+  public BufferedImage image;
+  
+  /** The number of pixels in the image. */
+  public int pixels;
+  
+  @Setup
+  public void setup() {
+    String[] wh = size.split("x");
+    image = create(Integer.parseInt(wh[0]), Integer.parseInt(wh[1]), getType(type));
+    pixels = image.getWidth() * image.getHeight();
+  }
+  
+  /**
+   * Gets the BufferedImage type from its name.
+   *
+   * @param name
+   *          the name without TYPE_
+   * @return the type
+   */
+  static int getType(String name) {
+    switch (name) {
+      case "INT_RGB":    return BufferedImage.TYPE_INT_RGB;
+      case "INT_ARGB":   return BufferedImage.TYPE_INT_ARGB;
+      case "INT_BGR":    return BufferedImage.TYPE_INT_BGR;
+      case "3BYTE_BGR":  return BufferedImage.TYPE_3BYTE_BGR;
+      case "4BYTE_ABGR": return BufferedImage.TYPE_4BYTE_ABGR;
+      default:
+        throw new IllegalArgumentException("Unknown image type: " + name);
+    }
+  }
+  
+  /**
+   * create
+   * Draw one corpus image.
+   *
+   * @param width
+   *          the width
+   * @param height
+   *          the height
+   * @param type
+   *          the BufferedImage type
+   * @return the image
+   */
+  public static BufferedImage create(int width, int height, int type) {
+    BufferedImage image = new BufferedImage(width, height, type);
+    Random random = new Random(31);
+    Graphics2D g = image.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    int border = image.getColorModel().hasAlpha() ? Math.max(1, width / 16) : 0;
+    
+    // flat background
+    g.setColor(new Color(0x20, 0x30, 0x40));
+    g.fillRect(border, border, width - 2 * border, height - 2 * border);
+    
+    // title bar gradient
+    g.setPaint(new GradientPaint(0, 0, new Color(0x00, 0x66, 0xCC), 
+        width, 0, new Color(0x99, 0xCC, 0xFF)));
+    g.fillRect(border, border, width - 2 * border, height / 6);
+    
+    // buttons
+    for (int i = 0; i < 6; i++) {
+      g.setColor(new Color(random.nextInt(0x1000000)));
+      int x = border + random.nextInt(Math.max(1, width - width / 4 - 2 * border));
+      int y = height / 6 + random.nextInt(Math.max(1, height / 2));
+      g.fillRoundRect(x, y, width / 4, height / 8, 8, 8);
+    }
+    g.setColor(Color.WHITE);
+    g.drawOval(width / 3, height / 3, width / 3, height / 3);
+    g.dispose();
+    
+    // photo-like noise patch in the bottom right corner
+    int x0 = width / 2;
+    int y0 = height * 2 / 3;
+    for (int y = y0; y < height - border; y++) {
+      for (int x = x0; x < width - border; x++) {
+        int r = (x * 255 / width + random.nextInt(32)) & 0xFF;
+        int gr = (y * 255 / height + random.nextInt(32)) & 0xFF;
+        int b = random.nextInt(256);
+        image.setRGB(x, y, 0xFF000000 | (r << 16) | (gr << 8) | b);
+      }
+    }
+    return image;
+  }
+
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.jmh;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.pump.image.pixel.BufferedImageIterator;
+import com.pump.image.pixel.IntARGBConverter;
+import com.pump.image.pixel.IntPixelIterator;
+
+import image2C.common.RGB565Encoder;
+
+/**
+ * The Class IteratorBenchmark.
+ * Reading an image a row at a time through the pixel iterators.
+ * 
+ * @author Paul Conti
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IteratorBenchmark {
+  
+  @Benchmark
+  public void intARGBConverter(ImageCorpus corpus, PixelCounter counter, Blackhole bh) {
+    IntARGBConverter iter = new IntARGBConverter(BufferedImageIterator.get(corpus.image));
+    drain(iter, bh);
+    counter.pixels += corpus.pixels;
+  }
+  
+  @Benchmark
+  public void rgb565Iterator(ImageCorpus corpus, PixelCounter counter, Blackhole bh) {
+    drain(RGB565Encoder.createIterator(corpus.image, Color.MAGENTA), bh);
+    counter.pixels += corpus.pixels;
+  }
+  
+  private static void drain(IntPixelIterator iter, Blackhole bh) {
+    int[] row = new int[iter.getMinimumArrayLength()];
+    while (!iter.isDone()) {
+      iter.next(row);
+      bh.consume(row);
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.jmh;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pump.image.pixel.quantize.ColorLUT;
+import com.pump.image.pixel.quantize.ColorSet;
+import com.pump.image.pixel.quantize.ImageQuantization;
+import com.pump.image.pixel.quantize.MedianCutColorQuantization;
+
+/**
+ * The Class QuantizeBenchmark.
+ * Mapping a whole image to its palette with each of the 
+ * image quantization methods.
+ * 
+ * @author Paul Conti
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuantizeBenchmark {
+  
+  /** The number of palette colors. */
+  @Param({"16", "256"})
+  public int colors;
+  
+  /** The image quantization method. */
+  @Param({"NEAREST_NEIGHBOR", "SIMPLEST_DIFFUSION", "MEDIUM_DIFFUSION", "MOST_DIFFUSION"})
+  public String quantization;
+  
+  /** The palette lookup. */
+  private ColorLUT lut;
+  
+  /** The image quantization. */
+  private ImageQuantization iq;
+  
+  @Setup
+  public void setup(ImageCorpus corpus) {
+    BufferedImage image = corpus.image;
+    ColorSet reduced = new MedianCutColorQuantization().createReducedSet(new ColorSet(image), colors, true);
+    IndexColorModel icm = reduced.createIndexColorModel(false, false);
+    lut = new ColorLUT(icm);
+    switch (quantization) {
+      case "NEAREST_NEIGHBOR":   iq = ImageQuantization.NEAREST_NEIGHBOR;   break;
+      case "SIMPLEST_DIFFUSION": iq = ImageQuantization.SIMPLEST_DIFFUSION; break;
+      case "MEDIUM_DIFFUSION":   iq = ImageQuantization.MEDIUM_DIFFUSION;   break;
+      case "MOST_DIFFUSION":     iq = ImageQuantization.MOST_DIFFUSION;     break;
+      default:
+        throw new IllegalArgumentException("Unknown quantization: " + quantization);
+    }
+  }
+  
+  @Benchmark
+  public BufferedImage quantize(ImageCorpus corpus, PixelCounter counter) {
+    counter.pixels += corpus.pixels;
+    return iq.createImage(corpus.image, lut);
+  }
+
+}
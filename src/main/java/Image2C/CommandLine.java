@@ -0,0 +1,440 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import image2C.common.BatchConverter;
+import image2C.common.ConversionCache;
+import image2C.common.ImageUtils;
+import image2C.views.ImageApp;
+
+/**
+ * The Class CommandLine is the headless version of Image2C.
+ * 
+ * It converts any number of image files, directories of images 
+ * or glob patterns like "icons/**.png" to C Array files or raw binary files 
+ * using a pool of worker threads. No display is needed.
+ * 
+ * Each file gets one line on standard output:
+ * <pre>
+ * OK   &lt;tab&gt; input &lt;tab&gt; output
+ * FAIL &lt;tab&gt; input &lt;tab&gt; reason
+ * </pre>
+ * The exit status is EXIT_OK, EXIT_FAILED if any image failed
+ * to convert or EXIT_USAGE for bad arguments.
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class CommandLine {
+  
+  /** The Constant EXIT_OK. */
+  public static final int EXIT_OK     = 0;
+  
+  /** The Constant EXIT_FAILED. */
+  public static final int EXIT_FAILED = 1;
+  
+  /** The Constant EXIT_USAGE. */
+  public static final int EXIT_USAGE  = 2;
+  
+  /** The Constant IMAGE_TYPES we can read. */
+  private static final List<String> IMAGE_TYPES = Arrays.asList(".bmp", ".gif", ".jpg", ".png");
+  
+  /** The Constant USAGE. */
+  private static final String USAGE = 
+      "usage: image2c [options] <file|directory|glob>...\n"
+    + "  -o, --output <dir>         write C files here (default: next to each image)\n"
+    + "  -b, --big-endian           byte order of --binary files and of bytes packed\n"
+    + "                             into a --bundle (C arrays are always native)\n"
+    + "  -r, --ram                  don't store the C array as PROGMEM\n"
+    + "  -m, --monochrome <color>   color used for 1 bit images (default: image's foreground)\n"
+    + "  -t, --transparent <color>  color for transparent pixels (default: FF00FF)\n"
+    + "  -d, --depth <1|4|8|16>     reduce colors before export (default: keep)\n"
+    + "  -q, --quantizer <name>     biased, median, octree or wu, for depth 4 and 8 (default: biased)\n"
+    + "      --dither <name>        most, medium, simplest, nearest, bayer2, bayer4, bayer8\n"
+    + "                             or bluenoise, for depth 4 and 8 (default: most)\n"
+    + "      --dither16             also dither 16 bit output instead of truncating it\n"
+    + "      --perceptual           match 4 and 8 bit colors by how close they look (OKLab)\n"
+    + "      --shared-palette       reduce all 4 and 8 bit images to one common palette\n"
+    + "      --fast-lookup          match 4 and 8 bit colors with a precomputed table, faster\n"
+    + "                             for large images but approximate at near ties\n"
+    + "      --refine <n>           refine the 4 and 8 bit palette with up to n k-means passes\n"
+    + "      --palette-cache <kb>   memory for reusing palettes of repeated images, 0 for none\n"
+    + "                             (default: 4096)\n"
+    + "  -s, --size <width>x<height> resize images\n"
+    + "  -j, --threads <n>          worker threads (default: number of cores)\n"
+    + "      --stream               convert 16 bit images a row at a time to save memory\n"
+    + "      --parallel             use all cores for each image\n"
+    + "      --binary               write raw .bin files for loading from SD card\n"
+    + "      --rle                  run length encode the C array pixels\n"
+    + "      --bundle <name>        write all images to name.c and name.h with an index table\n"
+    + "      --cache <file>         skip images that are unchanged since the last run\n"
+    + "  -h, --help                 show this help\n"
+    + "colors are given as RRGGBB hex, with an optional # or 0x prefix\n";
+
+  /**
+   * Run the conversion.
+   *
+   * @param args
+   *          the arguments
+   */
+  public static void main(String[] args) {
+    System.exit(run(args));
+  }
+  
+  /**
+   * run
+   * Parse the arguments and convert the images.
+   *
+   * @param args
+   *          the arguments
+   * @return the exit status
+   */
+  public static int run(String[] args) {
+    System.setProperty("java.awt.headless", "true");
+    BatchConverter converter = new BatchConverter();
+    List<String> inputs = new ArrayList<String>();
+    File cacheFile = null;
+    try {
+      for (int i=0; i<args.length; i++) {
+        String arg = args[i];
+        switch (arg) {
+          case "-h":
+          case "--help":
+            System.out.print(USAGE);
+            return EXIT_OK;
+          case "-o":
+          case "--output":
+            File dir = new File(value(args, ++i, arg));
+            if (!dir.isDirectory() && !dir.mkdirs())
+              throw new IllegalArgumentException("can't create directory " + dir);
+            converter.setOutputDir(dir);
+            break;
+          case "-b":
+          case "--big-endian":
+            converter.setLittleEndian(false);
+            break;
+          case "-r":
+          case "--ram":
+            converter.setCArrayFlash(false);
+            break;
+          case "-m":
+          case "--monochrome":
+            converter.setMonochromeColor(parseColor(value(args, ++i, arg)));
+            break;
+          case "-t":
+          case "--transparent":
+            converter.setTransparentPixelColor(parseColor(value(args, ++i, arg)));
+            break;
+          case "-d":
+          case "--depth":
+            converter.setBitDepth(Integer.parseInt(value(args, ++i, arg)));
+            break;
+          case "-q":
+          case "--quantizer":
+            converter.setQuantizer(parseQuantizer(value(args, ++i, arg)));
+            break;
+          case "--dither":
+            converter.setDither(parseDither(value(args, ++i, arg)));
+            break;
+          case "--dither16":
+            converter.setRGB565Dither(true);
+            break;
+          case "--perceptual":
+            converter.setPerceptual(true);
+            break;
+          case "--shared-palette":
+            converter.setSharedPalette(true);
+            break;
+          case "--fast-lookup":
+            converter.setInverseColormap(true);
+            break;
+          case "--refine":
+            converter.setPaletteRefinement(Integer.parseInt(value(args, ++i, arg)));
+            break;
+          case "--palette-cache":
+            long kb = Long.parseLong(value(args, ++i, arg));
+            if (kb < 0)
+              throw new IllegalArgumentException("bad palette cache size " + kb);
+            ImageUtils.getPaletteCache().setMaximumSize(kb * 1024);
+            break;
+          case "-s":
+          case "--size":
+            String[] size = value(args, ++i, arg).toLowerCase().split("x");
+            if (size.length != 2)
+              throw new IllegalArgumentException("size must be <width>x<height>");
+            int w = Integer.parseInt(size[0]);
+            int h = Integer.parseInt(size[1]);
+            if (w <= 0 || h <= 0)
+              throw new IllegalArgumentException("size must be positive");
+            converter.setSize(w, h);
+            break;
+          case "-j":
+          case "--threads":
+            converter.setThreads(Integer.parseInt(value(args, ++i, arg)));
+            break;
+          case "--stream":
+            converter.setStreamExport(true);
+            break;
+          case "--parallel":
+            converter.setParallelExport(true);
+            break;
+          case "--binary":
+            converter.setBinaryExport(true);
+            break;
+          case "--rle":
+            converter.setRLEExport(true);
+            break;
+          case "--bundle":
+            converter.setBundle(value(args, ++i, arg));
+            break;
+          case "--cache":
+            cacheFile = new File(value(args, ++i, arg));
+            break;
+          default:
+            if (arg.startsWith("-") && arg.length() > 1)
+              throw new IllegalArgumentException("unknown option " + arg);
+            inputs.add(arg);
+            break;
+        }
+      }
+      if (inputs.isEmpty())
+        throw new IllegalArgumentException("no images given");
+    } catch (IllegalArgumentException e) {
+      // NumberFormatException lands here too
+      System.err.println("image2c: " + e.getMessage());
+      System.err.print(USAGE);
+      return EXIT_USAGE;
+    }
+
+    List<File> files;
+    try {
+      files = expand(inputs);
+    } catch (IOException e) {
+      System.err.println("image2c: " + e.getMessage());
+      return EXIT_USAGE;
+    }
+    if (files.isEmpty()) {
+      System.err.println("image2c: no images found");
+      return EXIT_USAGE;
+    }
+
+    if (cacheFile != null) {
+      try {
+        converter.setCache(new ConversionCache(cacheFile));
+        converter.setToolVersion(ImageApp.VERSION);
+      } catch (IOException e) {
+        System.err.println("image2c: can't read cache " + e.getMessage());
+        return EXIT_USAGE;
+      }
+    }
+
+    int failed = 0;
+    int cached = 0;
+    for (BatchConverter.Result result : converter.convert(files)) {
+      if (result.isOK()) {
+        System.out.println("OK\t" + result.input.getPath() + "\t" + result.output.getPath());
+        if (result.isCached())
+          cached++;
+      } else {
+        System.out.println("FAIL\t" + result.input.getPath() + "\t" + result.error);
+        failed++;
+      }
+    }
+    long reused = ImageUtils.getPaletteCache().getHitCount();
+    System.err.println("image2c: converted " + (files.size() - failed) + " of " + files.size() + " images"
+        + ((cached > 0) ? ", " + cached + " unchanged" : "")
+        + ((reused > 0) ? ", " + reused + " palettes reused" : ""));
+    return (failed == 0) ? EXIT_OK : EXIT_FAILED;
+  }
+  
+  /**
+   * value
+   * Get the value following an option.
+   */
+  private static String value(String[] args, int i, String option) {
+    if (i >= args.length)
+      throw new IllegalArgumentException(option + " needs a value");
+    return args[i];
+  }
+  
+  /**
+   * parseColor
+   * Parse RRGGBB, #RRGGBB or 0xRRGGBB.
+   *
+   * @param s
+   *          the string
+   * @return the color
+   */
+  static Color parseColor(String s) {
+    String hex = s;
+    if (hex.startsWith("#"))
+      hex = hex.substring(1);
+    else if (hex.startsWith("0x") || hex.startsWith("0X"))
+      hex = hex.substring(2);
+    if (hex.length() != 6)
+      throw new IllegalArgumentException("bad color " + s);
+    return new Color(Integer.parseInt(hex, 16));
+  }
+  
+  /**
+   * parseQuantizer
+   * Parse biased, median, octree or wu.
+   *
+   * @param s
+   *          the string
+   * @return the ImageUtils quantizer
+   */
+  static int parseQuantizer(String s) {
+    switch (s.toLowerCase()) {
+      case "biased":
+        return ImageUtils.BIASED;
+      case "median":
+        return ImageUtils.MEDIAN;
+      case "octree":
+        return ImageUtils.OCTREE;
+      case "wu":
+        return ImageUtils.WU;
+      default:
+        throw new IllegalArgumentException("bad quantizer " + s);
+    }
+  }
+  
+  /**
+   * parseDither
+   * Parse most, medium, simplest, nearest, bayer2, bayer4, bayer8 or bluenoise.
+   *
+   * @param s
+   *          the string
+   * @return the ImageUtils dither
+   */
+  static int parseDither(String s) {
+    switch (s.toLowerCase()) {
+      case "most":
+        return ImageUtils.MOST_DIFFUSION;
+      case "medium":
+        return ImageUtils.MEDIUM_DIFFUSION;
+      case "simplest":
+        return ImageUtils.SIMPLEST_DIFFUSION;
+      case "nearest":
+        return ImageUtils.NEAREST_NEIGHBOR;
+      case "bayer2":
+        return ImageUtils.BAYER_2X2;
+      case "bayer4":
+        return ImageUtils.BAYER_4X4;
+      case "bayer8":
+        return ImageUtils.BAYER_8X8;
+      case "bluenoise":
+        return ImageUtils.BLUE_NOISE;
+      default:
+        throw new IllegalArgumentException("bad dither " + s);
+    }
+  }
+  
+  /**
+   * expand
+   * Turn the command line inputs into a list of image files.
+   * Directories give their images, anything with a glob character
+   * is matched against the files below its fixed leading directories.
+   *
+   * @param inputs
+   *          the inputs
+   * @return the files, without duplicates
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  static List<File> expand(List<String> inputs) throws IOException {
+    Set<File> files = new LinkedHashSet<File>();
+    for (String input : inputs) {
+      if (isGlob(input)) {
+        // walk from the last directory before the first glob character,
+        // glob patterns use '/' as the separator on every platform
+        String pattern = input.replace(File.separatorChar, '/');
+        int n = firstGlobChar(pattern);
+        int slash = pattern.lastIndexOf('/', n);
+        Path base = Paths.get((slash < 0) ? "." : (slash == 0) ? "/" : pattern.substring(0, slash));
+        if (slash < 0)
+          pattern = "./" + pattern;
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        if (Files.isDirectory(base)) {
+          try (Stream<Path> walk = Files.walk(base)) {
+            walk.filter(p -> Files.isRegularFile(p) && matcher.matches(p))
+                .sorted()
+                .forEach(p -> files.add(p.toFile()));
+          }
+        }
+      } else {
+        File file = new File(input);
+        if (file.isDirectory()) {
+          File[] list = file.listFiles();
+          Arrays.sort(list);
+          for (File f : list) {
+            if (f.isFile() && isImage(f))
+              files.add(f);
+          }
+        } else if (file.isFile()) {
+          files.add(file);
+        } else {
+          throw new IOException("no such file " + input);
+        }
+      }
+    }
+    return new ArrayList<File>(files);
+  }
+  
+  private static boolean isGlob(String s) {
+    return firstGlobChar(s) < s.length();
+  }
+  
+  private static int firstGlobChar(String s) {
+    for (int i=0; i<s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '*' || c == '?' || c == '[' || c == '{')
+        return i;
+    }
+    return s.length();
+  }
+  
+  private static boolean isImage(File f) {
+    String name = f.getName().toLowerCase();
+    int n = name.lastIndexOf('.');
+    return n != -1 && IMAGE_TYPES.contains(name.substring(n));
+  }
+}
@@ -0,0 +1,765 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.common;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.pump.image.pixel.quantize.ColorLUT;
+import com.pump.image.pixel.quantize.ColorSet;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The Class BatchConverter.
+ * Converts many image files to C Array or raw binary files without any 
+ * user interface.
+ * 
+ * Each file is converted by its own ImageUtils object on a fixed size
+ * pool of worker threads, the same steps the GUI takes when an image 
+ * is opened and exported.
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class BatchConverter {
+  
+  /** The Constant DEPTH_AUTO keeps the image's colors. */
+  public final static int DEPTH_AUTO = 0;
+  
+  /** The b little endian. */
+  private boolean bLittleEndian;
+  
+  /** The b C array flash. */
+  private boolean bCArrayFlash;
+  
+  /** The monochrome color, null to use the image's foreground. */
+  private Color colMonochrome;
+  
+  /** The transparent color. */
+  private Color colTransparent;
+  
+  /** The bit depth, 1, 4, 8, 16 or DEPTH_AUTO. */
+  private int nBitDepth;
+  
+  /** The new width and height, 0 to keep the image size. */
+  private int nWidth;
+  private int nHeight;
+  
+  /** The output directory, null to write next to each image. */
+  private File outputDir;
+  
+  /** The number of worker threads. */
+  private int nThreads;
+  
+  /** The b stream export. */
+  private boolean bStreamExport;
+  
+  /** The b parallel export. */
+  private boolean bParallelExport;
+  
+  /** The b binary export writes raw .bin files instead of C arrays. */
+  private boolean bBinaryExport;
+  
+  /** The b RLE export. */
+  private boolean bRLEExport;
+  
+  /** The color reduction algorithm, see ImageUtils.setQuantizer(). */
+  private int nQuantizer;
+  
+  /** The dithering, see ImageUtils.setDither(). */
+  private int nDither;
+  
+  /** Dither 16 bit exports, see ImageUtils.setRGB565Dither(). */
+  private boolean bDither565;
+  
+  /** Compare colors in OKLab, see ImageUtils.setPerceptual(). */
+  private boolean bPerceptual;
+  
+  /** Match colors through an inverse colormap, see ImageUtils.setInverseColormap(). */
+  private boolean bInverseColormap;
+  
+  /** The most k-means iterations over the palette, see ImageUtils.setPaletteRefinement(). */
+  private int nRefineIterations;
+  
+  /** Pick one palette for all 4 and 8 bit images. */
+  private boolean bSharedPalette;
+  
+  /** The palette of the current batch, null to pick one per image. */
+  private volatile ColorLUT sharedPalette;
+  
+  /** The digest of every image sharing the palette, part of the cache key. */
+  private volatile String sharedKey;
+  
+  /** The bundle name, null to write one file per image. */
+  private String bundleName;
+  
+  /** The conversion cache, null to always convert. */
+  private ConversionCache cache;
+  
+  /** The tool version, part of every cache key. */
+  private String toolVersion;
+  
+  /**
+   * The Class Result.
+   * The outcome of converting one file.
+   */
+  public static class Result {
+    
+    /** The input file. */
+    public final File input;
+    
+    /** The output file. */
+    public final File output;
+    
+    /** The error message, null on success. */
+    public final String error;
+    
+    /** The image data waiting to be bundled. */
+    BundleWriter.Entry entry;
+    
+    /** The b cached, output was already up to date. */
+    boolean bCached;
+    
+    Result(File input, File output, String error) {
+      this.input = input;
+      this.output = output;
+      this.error = error;
+    }
+    
+    /**
+     * isOK
+     * @return <code>true</code> if the conversion succeeded
+     */
+    public boolean isOK() {
+      return error == null;
+    }
+    
+    /**
+     * isCached
+     * @return <code>true</code> if the conversion was skipped because 
+     *         the output was already up to date
+     */
+    public boolean isCached() {
+      return bCached;
+    }
+  }
+  
+  /**
+   * Instantiates a new batch converter using the same defaults as the GUI.
+   */
+  public BatchConverter() {
+    bLittleEndian = true;
+    bCArrayFlash = true;
+    colMonochrome = null;
+    colTransparent = new Color(255,0,255); // Color MAGENTA
+    nBitDepth = DEPTH_AUTO;
+    nWidth = 0;
+    nHeight = 0;
+    outputDir = null;
+    nThreads = Runtime.getRuntime().availableProcessors();
+    bStreamExport = false;
+    bParallelExport = false;
+    bBinaryExport = false;
+    bRLEExport = false;
+    nQuantizer = ImageUtils.BIASED;
+    nDither = ImageUtils.MOST_DIFFUSION;
+    bDither565 = false;
+    bPerceptual = false;
+    bInverseColormap = false;
+    nRefineIterations = 0;
+    bSharedPalette = false;
+    bundleName = null;
+    cache = null;
+    toolVersion = "";
+  }
+
+  public void setLittleEndian(boolean bLittleEndian) {
+    this.bLittleEndian = bLittleEndian;
+  }
+
+  public void setCArrayFlash(boolean bCArrayFlash) {
+    this.bCArrayFlash = bCArrayFlash;
+  }
+
+  public void setMonochromeColor(Color color) {
+    this.colMonochrome = color;
+  }
+
+  public void setTransparentPixelColor(Color color) {
+    this.colTransparent = color;
+  }
+
+  /**
+   * Set the bit depth
+   *
+   * @param nBitDepth
+   *          1, 4, 8, 16 or DEPTH_AUTO
+   */
+  public void setBitDepth(int nBitDepth) {
+    if (nBitDepth != DEPTH_AUTO && nBitDepth != 1 && nBitDepth != 4 
+        && nBitDepth != 8 && nBitDepth != 16)
+      throw new IllegalArgumentException("Unsupported bit depth: " + nBitDepth);
+    this.nBitDepth = nBitDepth;
+  }
+
+  /**
+   * Set the size every image is scaled to
+   *
+   * @param nWidth
+   *          the width, 0 to keep the image size
+   * @param nHeight
+   *          the height, 0 to keep the image size
+   */
+  public void setSize(int nWidth, int nHeight) {
+    this.nWidth = nWidth;
+    this.nHeight = nHeight;
+  }
+
+  public void setOutputDir(File outputDir) {
+    this.outputDir = outputDir;
+  }
+
+  public void setThreads(int nThreads) {
+    this.nThreads = Math.max(1, nThreads);
+  }
+
+  public void setStreamExport(boolean bStreamExport) {
+    this.bStreamExport = bStreamExport;
+  }
+
+  public void setParallelExport(boolean bParallelExport) {
+    this.bParallelExport = bParallelExport;
+  }
+
+  public void setBinaryExport(boolean bBinaryExport) {
+    this.bBinaryExport = bBinaryExport;
+  }
+
+  public void setRLEExport(boolean bRLEExport) {
+    this.bRLEExport = bRLEExport;
+  }
+
+  /**
+   * Set the quantizer used to reduce images to 4 or 8 bits
+   *
+   * @param nQuantizer
+   *          ImageUtils.BIASED, ImageUtils.MEDIAN, ImageUtils.OCTREE 
+   *          or ImageUtils.WU
+   */
+  public void setQuantizer(int nQuantizer) {
+    if (nQuantizer != ImageUtils.BIASED && nQuantizer != ImageUtils.MEDIAN 
+        && nQuantizer != ImageUtils.OCTREE && nQuantizer != ImageUtils.WU)
+      throw new IllegalArgumentException("Unsupported quantizer: " + nQuantizer);
+    this.nQuantizer = nQuantizer;
+  }
+
+  /**
+   * Set the dithering used when reducing images to 4 or 8 bits
+   *
+   * @param nDither
+   *          one of the ImageUtils diffusion, BAYER or BLUE_NOISE constants
+   */
+  public void setDither(int nDither) {
+    if (nDither < ImageUtils.MOST_DIFFUSION || nDither > ImageUtils.BLUE_NOISE)
+      throw new IllegalArgumentException("Unsupported dither: " + nDither);
+    this.nDither = nDither;
+  }
+
+  /**
+   * Set whether 16 bit exports are dithered with the setDither() mode
+   *
+   * @param bDither565
+   *          <code>true</code> to dither instead of truncating each channel
+   */
+  public void setRGB565Dither(boolean bDither565) {
+    this.bDither565 = bDither565;
+  }
+
+  /**
+   * Set whether colors are compared by their perceptual (OKLab) distance
+   * when reducing images to 4 or 8 bits
+   *
+   * @param bPerceptual
+   *          <code>true</code> for perceptual distance, <code>false</code> for RGB
+   */
+  public void setPerceptual(boolean bPerceptual) {
+    this.bPerceptual = bPerceptual;
+  }
+
+  /**
+   * Set whether pixels are matched to the palette through an inverse
+   * colormap when reducing images to 4 or 8 bits
+   *
+   * @param bInverseColormap
+   *          <code>true</code> for the faster, approximate table
+   */
+  public void setInverseColormap(boolean bInverseColormap) {
+    this.bInverseColormap = bInverseColormap;
+  }
+
+  /**
+   * Set the palette refinement used when reducing images to 4 or 8 bits
+   *
+   * @param nRefineIterations
+   *          the most k-means iterations, 0 for none
+   */
+  public void setPaletteRefinement(int nRefineIterations) {
+    if (nRefineIterations < 0)
+      throw new IllegalArgumentException("Unsupported refinement: " + nRefineIterations);
+    this.nRefineIterations = nRefineIterations;
+  }
+
+  /**
+   * Set the shared palette mode
+   * When set and reducing to 4 or 8 bits the colors of all the images 
+   * in a batch are counted in parallel and merged, the quantizer runs 
+   * once on the merged colors, and then every image is mapped onto that 
+   * one palette.
+   *
+   * @param bSharedPalette
+   *          <code>true</code> to share one palette across the batch
+   */
+  public void setSharedPalette(boolean bSharedPalette) {
+    this.bSharedPalette = bSharedPalette;
+  }
+
+  /**
+   * Set the bundle name
+   * When set all images are written to bundleName.c and bundleName.h
+   * with an index table, see BundleWriter.
+   *
+   * @param bundleName
+   *          the bundle name, null for one C file per image
+   */
+  public void setBundle(String bundleName) {
+    this.bundleName = bundleName;
+  }
+
+  /**
+   * Set the conversion cache
+   * When set images whose source and options have not changed since 
+   * they were last converted are skipped. The cache is saved at the 
+   * end of convert(List).
+   *
+   * @param cache
+   *          the cache, null to always convert
+   */
+  public void setCache(ConversionCache cache) {
+    this.cache = cache;
+  }
+
+  public void setToolVersion(String toolVersion) {
+    this.toolVersion = toolVersion;
+  }
+  
+  /**
+   * getOptionsKey
+   * Everything besides the source image that changes the output,
+   * stream and parallel export give the same output so they are left out.
+   *
+   * @return the options
+   */
+  private String getOptionsKey() {
+    return "version=" + toolVersion
+        + ";littleEndian=" + bLittleEndian
+        + ";flash=" + bCArrayFlash
+        + ";monochrome=" + ((colMonochrome != null) ? colMonochrome.getRGB() : "auto")
+        + ";transparent=" + colTransparent.getRGB()
+        + ";depth=" + nBitDepth
+        + ";size=" + nWidth + "x" + nHeight
+        + ";binary=" + bBinaryExport
+        + ";rle=" + bRLEExport
+        + ";quantizer=" + nQuantizer
+        + ";dither=" + nDither
+        + ";dither565=" + bDither565
+        + ";perceptual=" + bPerceptual
+        + ";inverse=" + bInverseColormap
+        + ";refine=" + nRefineIterations
+        + ";shared=" + sharedKey
+        + ";bundle=" + bundleName;
+  }
+
+  /**
+   * convert
+   * Convert all files, the results are in the same order as the files.
+   *
+   * @param files
+   *          the image files
+   * @return the results
+   */
+  public List<Result> convert(List<File> files) {
+    List<Result> results = convertAll(files);
+    if (cache != null) {
+      try {
+        cache.save();
+      } catch (IOException e) {
+        // the conversions are done, a lost manifest only costs time next run
+        System.err.println("image2c: can't save cache " + e.getMessage());
+      }
+    }
+    return results;
+  }
+  
+  /**
+   * convertAll
+   * Convert the files on the thread pool, skipping those the cache 
+   * says are up to date.
+   *
+   * @param files
+   *          the image files
+   * @return the results
+   */
+  private List<Result> convertAll(List<File> files) {
+    boolean bShared = bSharedPalette && (nBitDepth == 4 || nBitDepth == 8) 
+        && !files.isEmpty();
+    sharedPalette = null;
+    sharedKey = null;
+    if (bShared && cache != null) {
+      // every output depends on every image through the palette
+      try {
+        MessageDigest md = ConversionCache.newKey("shared");
+        for (File file : files) {
+          md.update(file.getName().getBytes(StandardCharsets.UTF_8));
+          ConversionCache.addFile(md, file);
+        }
+        sharedKey = ConversionCache.toString(md);
+      } catch (IOException e) {
+        // no key, so nothing is reused
+        sharedKey = "none";
+      }
+    }
+    String bundleKey = null;
+    File bundleFile = null;
+    if (bundleName != null && cache != null && !files.isEmpty()) {
+      bundleFile = new BundleWriter(bundleName, bLittleEndian, bCArrayFlash).getFile(getBundleDir(files));
+      try {
+        MessageDigest md = ConversionCache.newKey(getOptionsKey());
+        for (File file : files) {
+          md.update(file.getName().getBytes(StandardCharsets.UTF_8));
+          ConversionCache.addFile(md, file);
+        }
+        bundleKey = ConversionCache.toString(md);
+      } catch (IOException e) {
+        // let the conversion report it
+      }
+      if (bundleKey != null && cache.isCurrent(bundleFile, bundleKey)) {
+        List<Result> results = new ArrayList<Result>(files.size());
+        for (File file : files) {
+          Result result = new Result(file, bundleFile, null);
+          result.bCached = true;
+          results.add(result);
+        }
+        return results;
+      }
+    }
+    List<Result> results = new ArrayList<Result>(files.size());
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, Math.max(1, files.size())));
+    try {
+      if (bShared)
+        sharedPalette = createSharedPalette(files, pool);
+      List<Future<Result>> futures = new ArrayList<Future<Result>>(files.size());
+      for (File file : files) {
+        futures.add(pool.submit(() -> (bundleName != null) ? convertEntry(file) : convert(file)));
+      }
+      for (int i=0; i<futures.size(); i++) {
+        try {
+          results.add(futures.get(i).get());
+        } catch (ExecutionException e) {
+          results.add(new Result(files.get(i), null, e.getCause().toString()));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          results.add(new Result(files.get(i), null, "interrupted"));
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+      sharedPalette = null;
+    }
+    if (bundleName != null) {
+      results = writeBundle(files, results);
+      if (bundleKey != null) {
+        boolean bAllOK = true;
+        for (Result result : results)
+          bAllOK &= result.isOK();
+        if (bAllOK)
+          cache.put(bundleFile, bundleKey);
+        else
+          cache.remove(bundleFile);
+      }
+    }
+    return results;
+  }
+  
+  /**
+   * createSharedPalette
+   * Count the colors of every image on the pool, merge the counts and 
+   * reduce them to one palette.
+   *
+   * @param files
+   *          the image files
+   * @param pool
+   *          the worker threads
+   * @return the palette, null if no image could be read
+   */
+  private ColorLUT createSharedPalette(List<File> files, ExecutorService pool) {
+    List<Future<ColorSet>> futures = new ArrayList<Future<ColorSet>>(files.size());
+    for (File file : files) {
+      futures.add(pool.submit(() -> readHistogram(file)));
+    }
+    ColorSet merged = new ColorSet();
+    for (Future<ColorSet> future : futures) {
+      try {
+        merged.addColors(future.get());
+      } catch (ExecutionException e) {
+        // the image's own conversion will report it
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    // nothing to share, each image will fail on its own
+    if (merged.getColorCount() == 0)
+      return null;
+    ImageUtils imageUtils = new ImageUtils();
+    setUp(imageUtils);
+    return imageUtils.createPalette(merged, (nBitDepth == 4) ? 16 : 256);
+  }
+  
+  /**
+   * readHistogram
+   * Read the file, apply the size option and count its colors.
+   *
+   * @param file
+   *          the image file
+   * @return the colors of the image
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private ColorSet readHistogram(File file) throws IOException {
+    BufferedImage image = ImageIO.read(file);
+    if (image == null)
+      throw new IOException("unsupported image format");
+    ImageUtils imageUtils = new ImageUtils();
+    setUp(imageUtils);
+    if (nWidth > 0 && nHeight > 0)
+      image = imageUtils.imageResize(image, nWidth, nHeight);
+    return imageUtils.getColorHistogram(image);
+  }
+  
+  /**
+   * getBundleDir
+   * The bundle goes to the output directory or next to the first image.
+   */
+  private File getBundleDir(List<File> files) {
+    return (outputDir != null) ? outputDir 
+        : files.get(0).getAbsoluteFile().getParentFile();
+  }
+  
+  /**
+   * writeBundle
+   * Add the converted images to the bundle in file order and write it.
+   *
+   * @param files
+   *          the image files
+   * @param results
+   *          the results holding the bundle entries
+   * @return the final results, all pointing at the bundle
+   */
+  private List<Result> writeBundle(List<File> files, List<Result> results) {
+    BundleWriter bundle = new BundleWriter(bundleName, bLittleEndian, bCArrayFlash);
+    for (Result result : results) {
+      if (result.isOK())
+        bundle.add(result.entry);
+    }
+    File dir = getBundleDir(files);
+    File outFile = null;
+    String error = null;
+    if (bundle.size() > 0) {
+      try {
+        outFile = bundle.write(dir);
+      } catch (IOException e) {
+        error = e.toString();
+      }
+    }
+    List<Result> bundled = new ArrayList<Result>(results.size());
+    for (Result result : results) {
+      String msg = (result.error != null) ? result.error : error;
+      bundled.add(new Result(result.input, outFile, msg));
+    }
+    return bundled;
+  }
+  
+  /**
+   * convert
+   * Convert one file.
+   *
+   * @param file
+   *          the image file
+   * @return the result
+   */
+  public Result convert(File file) {
+    File outFile = null;
+    try {
+      String fileName = file.getName();
+      int n = fileName.lastIndexOf('.');
+      String sInputName = (n == -1) ? fileName : fileName.substring(0, n);
+      String sInputExt = (n == -1) ? " " : fileName.substring(n);
+      File dir = (outputDir != null) ? outputDir : file.getAbsoluteFile().getParentFile();
+      outFile = new File(dir, sInputName + (bBinaryExport ? ".bin" : ".c"));
+      String sCArrayName = sInputName.replaceAll("[^A-Za-z0-9()\\[\\]]", "_");
+
+      String key = null;
+      if (cache != null) {
+        // the array name and the header comment come from the file name
+        MessageDigest md = ConversionCache.newKey(getOptionsKey() + ";name=" + fileName);
+        ConversionCache.addFile(md, file);
+        key = ConversionCache.toString(md);
+        if (cache.isCurrent(outFile, key)) {
+          Result result = new Result(file, outFile, null);
+          result.bCached = true;
+          return result;
+        }
+        cache.remove(outFile);
+      }
+
+      ImageUtils imageUtils = new ImageUtils();
+      BufferedImage image = readImage(file, imageUtils);
+      if (bBinaryExport) {
+        imageUtils.image2Binary(image, outFile, bLittleEndian);
+      } else {
+        imageUtils.image2C_Array(image, sInputName, outFile, sCArrayName, sInputExt,
+            bLittleEndian, bCArrayFlash, false);
+      }
+      if (key != null)
+        cache.put(outFile, key);
+      return new Result(file, outFile, null);
+    } catch (Exception e) {
+      String msg = e.getMessage();
+      return new Result(file, outFile, (msg != null) ? msg : e.toString());
+    }
+  }
+  
+  /**
+   * convertEntry
+   * Convert one file for the bundle.
+   *
+   * @param file
+   *          the image file
+   * @return the result holding the bundle entry
+   */
+  private Result convertEntry(File file) {
+    try {
+      String fileName = file.getName();
+      int n = fileName.lastIndexOf('.');
+      String sInputName = (n == -1) ? fileName : fileName.substring(0, n);
+      ImageUtils imageUtils = new ImageUtils();
+      BufferedImage image = readImage(file, imageUtils);
+      Result result = new Result(file, null, null);
+      result.entry = imageUtils.image2Bundle(image, sInputName);
+      return result;
+    } catch (Exception e) {
+      String msg = e.getMessage();
+      return new Result(file, null, (msg != null) ? msg : e.toString());
+    }
+  }
+  
+  /**
+   * setUp
+   * Copy the export options to an image utils.
+   *
+   * @param imageUtils
+   *          the image utils
+   */
+  private void setUp(ImageUtils imageUtils) {
+    imageUtils.setTransparentPixelColor(colTransparent);
+    imageUtils.setStreamExport(bStreamExport);
+    imageUtils.setParallelExport(bParallelExport);
+    imageUtils.setRLEExport(bRLEExport);
+    imageUtils.setQuantizer(nQuantizer);
+    imageUtils.setDither(nDither);
+    imageUtils.setRGB565Dither(bDither565);
+    imageUtils.setPerceptual(bPerceptual);
+    imageUtils.setInverseColormap(bInverseColormap);
+    imageUtils.setPaletteRefinement(nRefineIterations);
+  }
+  
+  /**
+   * readImage
+   * Read the file and apply the size and color options, 
+   * the same steps the GUI takes when an image is opened.
+   *
+   * @param file
+   *          the image file
+   * @param imageUtils
+   *          the image utils to set up for the export
+   * @return the image
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private BufferedImage readImage(File file, ImageUtils imageUtils) throws IOException {
+    BufferedImage image = ImageIO.read(file);
+    if (image == null)
+      throw new IOException("unsupported image format");
+    setUp(imageUtils);
+    imageUtils.setSharedPalette(sharedPalette);
+    if (nWidth > 0 && nHeight > 0)
+      image = imageUtils.imageResize(image, nWidth, nHeight);
+    long numColors = imageUtils.getNumberOfColors(image);
+    switch (nBitDepth) {
+      case 1:
+        if (!ImageUtils.isMonochrome(image))
+          image = imageUtils.convertTo1(image);
+        break;
+      case 4:
+        image = imageUtils.convertTo4(image);
+        break;
+      case 8:
+        image = imageUtils.convertTo8(image);
+        break;
+      default:
+        break;
+    }
+    if (image == null)
+      throw new IOException("unable to reduce image to " + nBitDepth + " bits");
+    if (ImageUtils.isMonochrome(image) || numColors <= 2) {
+      // same as the GUI, monochrome images are drawn in their foreground color
+      imageUtils.setMonochromeColor((colMonochrome != null) ? colMonochrome : imageUtils.getFGColor());
+    }
+    return image;
+  }
+
+}
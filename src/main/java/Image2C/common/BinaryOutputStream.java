@@ -0,0 +1,194 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.pump.image.pixel.IntPixelIterator;
+
+/**
+ * The Class BinaryOutputStream.
+ * This class is the raw binary counterpart of CArrayOutputStream.
+ * It writes the same header and pixel data but as bytes instead of
+ * hexadecimal text, so the result can be copied to an SD card and
+ * loaded at run time without being compiled into the sketch.
+ * 
+ * 16 bit values are written in little or big endian format,
+ * bytes are written as is.
+ * 
+ * Data is collected in a direct buffer and handed to a FileChannel
+ * in large blocks.
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class BinaryOutputStream {
+  
+  /** The Constant BUFFER_SIZE in bytes. */
+  private final static int BUFFER_SIZE = 64 * 1024;
+  
+  /** The channel. */
+  private FileChannel channel;
+  
+  /** The output buffer. */
+  private ByteBuffer buf;
+  
+  /**
+   * Instantiates a new binary output stream.
+   *
+   * @param file
+   *          the file
+   * @param bLittleEndian
+   *          the b little endian
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public BinaryOutputStream(File file, boolean bLittleEndian) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    buf.order(bLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+  }
+  
+  /**
+   * Stream array.
+   *
+   * @param data
+   *          the data
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public void streamArray(int[] data) throws IOException {
+    for(int i=0; i<data.length; i++)
+    {
+      writeShort(data[i]);
+    }
+  }
+
+  /**
+   * Stream array.
+   * Writes each row of 16 bit pixels as soon as the iterator
+   * returns it so the image is never held in memory.
+   *
+   * @param iter
+   *          the pixel rows
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public void streamArray(IntPixelIterator iter) throws IOException {
+    int width = iter.getWidth();
+    int[] row = new int[iter.getMinimumArrayLength()];
+    while (!iter.isDone()) {
+      iter.next(row);
+      for (int x=0; x<width; x++)
+      {
+        writeShort(row[x]);
+      }
+    }
+  }
+
+  /**
+   * Stream array.
+   *
+   * @param data
+   *          the data
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public void streamArray(byte[] data) throws IOException {
+    int off = 0;
+    while (off < data.length) {
+      if (!buf.hasRemaining())
+        drain();
+      int len = Math.min(buf.remaining(), data.length - off);
+      buf.put(data, off, len);
+      off += len;
+    }
+  }
+
+  /**
+   * Write byte.
+   *
+   * @param b
+   *          the b
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public void writeByte(int b) throws IOException {
+    if (buf.remaining() < 1)
+      drain();
+    buf.put((byte) b);
+  }
+
+  /**
+   * Write short.
+   *
+   * @param data
+   *          the 16 bit value
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public void writeShort(int data) throws IOException {
+    if (buf.remaining() < 2)
+      drain();
+    buf.putShort((short) data);
+  }
+
+  /**
+   * drain
+   * Hand the buffered bytes over to the channel.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private void drain() throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    buf.clear();
+  }
+  
+  /**
+   * Close.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public void close() throws IOException {
+    try {
+      drain();
+    } finally {
+      channel.close();
+    }
+  }
+
+}
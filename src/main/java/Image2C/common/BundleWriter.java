@@ -0,0 +1,311 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.common;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The Class BundleWriter.
+ * Collects any number of exported images into one C file and a 
+ * matching header instead of one C file per image.
+ * 
+ * All images share a single array of 16 bit words, laid out back 
+ * to back in flash, and an index table gives each image's name, 
+ * size, GUIslice image format and word offset into that array.
+ * The data of each image is exactly what image2C_Array() would 
+ * output, 1 bit images are byte arrays so each pair of bytes is 
+ * packed into one word in the target's byte order and padded to 
+ * an even length. Either way
+ * <pre>
+ *   (const unsigned char*)&amp;name_data[name_index[i].offset]
+ * </pre>
+ * can be handed to gslc_GetImageFromProg().
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class BundleWriter {
+  
+  /** The Constant RLE_FLAG is or'ed into the format of run length encoded images. */
+  public final static int RLE_FLAG = 0x8000;
+  
+  /**
+   * The Class Entry.
+   * One image's data ready to be added to a bundle.
+   */
+  public static class Entry {
+    final String name;
+    final int width;
+    final int height;
+    final int bpp;
+    final boolean bRLE;
+    final int[] shorts;
+    final byte[] bytes;
+    
+    Entry(String name, int width, int height, int bpp, boolean bRLE, 
+        int[] shorts, byte[] bytes) {
+      this.name = name;
+      this.width = width;
+      this.height = height;
+      this.bpp = bpp;
+      this.bRLE = bRLE;
+      this.shorts = shorts;
+      this.bytes = bytes;
+    }
+    
+    /**
+     * Gets the size in 16 bit words once added to the bundle.
+     *
+     * @return the number of words
+     */
+    int getWords() {
+      return (shorts != null) ? shorts.length : (bytes.length + 1) / 2;
+    }
+  }
+  
+  /** The bundle name, used as prefix for every C symbol. */
+  private String name;
+  
+  /** The b little endian. */
+  private boolean bLittleEndian;
+  
+  /** The b C array flash. */
+  private boolean bCArrayFlash;
+  
+  /** The images. */
+  private List<Entry> entries;
+  
+  /**
+   * Instantiates a new bundle writer.
+   *
+   * @param name
+   *          the bundle name, also the C and header file name
+   * @param bLittleEndian
+   *          the b little endian
+   * @param bCArrayFlash
+   *          store the data as PROGMEM
+   */
+  public BundleWriter(String name, boolean bLittleEndian, boolean bCArrayFlash) {
+    this.name = name.replaceAll("[^A-Za-z0-9_]", "_");
+    this.bLittleEndian = bLittleEndian;
+    this.bCArrayFlash = bCArrayFlash;
+    entries = new ArrayList<Entry>();
+  }
+  
+  /**
+   * add
+   * Add the next image, images are output in the order they are added.
+   *
+   * @param entry
+   *          the entry from ImageUtils.image2Bundle()
+   */
+  public void add(Entry entry) {
+    entries.add(entry);
+  }
+  
+  /**
+   * Gets the number of images.
+   *
+   * @return the size
+   */
+  public int size() {
+    return entries.size();
+  }
+  
+  /**
+   * Gets the C file the bundle is written to.
+   *
+   * @param dir
+   *          the directory
+   * @return the C file
+   */
+  public File getFile(File dir) {
+    return new File(dir, name + ".c");
+  }
+  
+  /**
+   * write
+   * Output the bundle as name.c and name.h in the given directory.
+   *
+   * @param dir
+   *          the directory
+   * @return the C file
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public File write(File dir) throws IOException {
+    List<String> ids = makeIds();
+    File cFile = getFile(dir);
+    writeHeader(new File(dir, name + ".h"), ids);
+    
+    int total = 0;
+    for (Entry e : entries)
+      total += e.getWords();
+    int[] data = new int[total];
+    int[] offsets = new int[entries.size()];
+    int pos = 0;
+    for (int i=0; i<entries.size(); i++) {
+      Entry e = entries.get(i);
+      offsets[i] = pos;
+      if (e.shorts != null) {
+        System.arraycopy(e.shorts, 0, data, pos, e.shorts.length);
+        pos += e.shorts.length;
+      } else {
+        for (int j=0; j<e.bytes.length; j+=2) {
+          int b0 = e.bytes[j] & 0xFF;
+          int b1 = (j+1 < e.bytes.length) ? e.bytes[j+1] & 0xFF : 0;
+          data[pos++] = bLittleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+      }
+    }
+    
+    String line;
+    CArrayOutputStream fOut = new CArrayOutputStream(cFile);
+    fOut.writeString("//------------------------------------------------------------------------------\n");
+    fOut.writeString("// File Generated by GUIslice_Image2C\n");
+    fOut.writeString("//------------------------------------------------------------------------------\n");
+    line = String.format("// Bundle           : %s\n", name);
+    fOut.writeString(line);
+    line = String.format("// Images           : %d\n", entries.size());
+    fOut.writeString(line);
+    line = String.format("// Memory Size      : %d Bytes\n", total * 2);
+    fOut.writeString(line);
+    line = String.format("// Little Endian    : %s\n", bLittleEndian);
+    fOut.writeString(line);
+    fOut.writeString("//------------------------------------------------------------------------------\n");
+    fOut.writeString("\n");
+    fOut.writeString("#include \"GUIslice.h\"\n");
+    fOut.writeString("#include \"GUIslice_config.h\"\n");
+    line = String.format("#include \"%s.h\"\n", name);
+    fOut.writeString(line);
+    fOut.writeString("\n");
+    if (bCArrayFlash) {
+      fOut.writeString("#if (GSLC_USE_PROGMEM)\n");
+      fOut.writeString("  #if defined(__AVR__)\n");
+      fOut.writeString("    #include <avr/pgmspace.h>\n");
+      fOut.writeString("  #else\n");
+      fOut.writeString("    #include <pgmspace.h>\n");
+      fOut.writeString("  #endif\n");
+      fOut.writeString("#endif\n");
+      fOut.writeString("\n");
+    }
+    line = String.format("const %s_tsImage %s_index[%s_COUNT] = {\n", name, name, name.toUpperCase());
+    fOut.writeString(line);
+    for (int i=0; i<entries.size(); i++) {
+      Entry e = entries.get(i);
+      line = String.format("  { \"%s\", %d, %d, %s, %d }, // %s\n", e.name, e.width, e.height,
+          getFormat(e), offsets[i], ids.get(i));
+      fOut.writeString(line);
+    }
+    fOut.writeString("};\n");
+    fOut.writeString("\n");
+    if (bCArrayFlash) {
+      line = String.format("const unsigned short %s_data[%d] GSLC_PMEM = {\n", name, total);
+    } else {
+      line = String.format("const unsigned short %s_data[%d] = {\n", name, total);
+    }
+    fOut.writeString(line);
+    fOut.streamArray(data);
+    fOut.close();
+    return cFile;
+  }
+  
+  /**
+   * writeHeader
+   * Output the declarations of the index table and data array.
+   */
+  private void writeHeader(File file, List<String> ids) throws IOException {
+    String guard = "_" + name.toUpperCase() + "_H_";
+    String prefix = name.toUpperCase();
+    try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
+      pw.print("//------------------------------------------------------------------------------\n");
+      pw.print("// File Generated by GUIslice_Image2C\n");
+      pw.print("//------------------------------------------------------------------------------\n");
+      pw.print("\n");
+      pw.printf("#ifndef %s\n", guard);
+      pw.printf("#define %s\n", guard);
+      pw.print("\n");
+      pw.print("#include <stdint.h>\n");
+      pw.print("\n");
+      pw.printf("#define %s_COUNT %d\n", prefix, entries.size());
+      pw.print("\n");
+      pw.print("// or'ed into the format when the image data is run length encoded\n");
+      pw.printf("#define %s_RLE 0x%04X\n", prefix, RLE_FLAG);
+      pw.print("\n");
+      pw.print("enum {\n");
+      for (int i=0; i<ids.size(); i++) {
+        pw.printf("  %s = %d,\n", ids.get(i), i);
+      }
+      pw.print("};\n");
+      pw.print("\n");
+      pw.print("typedef struct {\n");
+      pw.print("  const char* name;\n");
+      pw.print("  uint16_t    width;\n");
+      pw.print("  uint16_t    height;\n");
+      pw.printf("  uint16_t    format;  // GSLC_IMGREF_FMT_xxx, plus %s_RLE\n", prefix);
+      pw.printf("  uint32_t    offset;  // in words from the start of %s_data\n", name);
+      pw.printf("} %s_tsImage;\n", name);
+      pw.print("\n");
+      pw.printf("extern const %s_tsImage %s_index[%s_COUNT];\n", name, name, prefix);
+      pw.printf("extern const unsigned short %s_data[];\n", name);
+      pw.print("\n");
+      pw.printf("#endif // %s\n", guard);
+    }
+  }
+  
+  /**
+   * makeIds
+   * Build a unique enum name for every image.
+   */
+  private List<String> makeIds() {
+    String prefix = name.toUpperCase() + "_";
+    Set<String> used = new HashSet<String>();
+    List<String> ids = new ArrayList<String>(entries.size());
+    for (Entry e : entries) {
+      String id = prefix + e.name.replaceAll("[^A-Za-z0-9_]", "_").toUpperCase();
+      String unique = id;
+      for (int n=2; !used.add(unique); n++)
+        unique = id + "_" + n;
+      ids.add(unique);
+    }
+    return ids;
+  }
+  
+  private String getFormat(Entry e) {
+    String format = (e.bpp == 1) ? "GSLC_IMGREF_FMT_RAW1" : "GSLC_IMGREF_FMT_BMP24";
+    if (e.bRLE)
+      format = format + "|" + name.toUpperCase() + "_RLE";
+    return format;
+  }
+
+}
@@ -31,7 +31,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.pump.image.pixel.IntPixelIterator;
 
 /**
  * The Class CArrayOutputStream.
@@ -41,6 +48,14 @@ import java.nio.ShortBuffer;
  * 
  * You can write normal strings using writeString() function.
  * 
+ * Output is formatted by hand using a hex digit table into a
+ * reusable character buffer that is handed to the writer in
+ * large blocks, so no format strings are parsed per pixel.
+ * 
+ * streamArrayParallel() formats bands of whole lines on separate
+ * cores and writes them out in order, the result is identical to
+ * streamArray().
+ * 
  * @author Paul Conti
  * 
  */
@@ -49,6 +64,18 @@ public class CArrayOutputStream {
   /** The Constant MAXBYTES. */
   private final static int MAXITEMS = 16;
   
+  /** The Constant BUFFER_SIZE in characters. */
+  private final static int BUFFER_SIZE = 64 * 1024;
+  
+  /** The Constant HEX_DIGITS. */
+  private final static char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+  
+  /** The Constant BAND_ITEMS is the number of items formatted by one parallel task. */
+  private final static int BAND_ITEMS = MAXITEMS * 4096;
+  
+  /** The Constant LINE_PAD is the space taken by one missing item. */
+  private final static String LINE_PAD = "        ";
+  
   /** The fw. */
   private FileWriter  fw;
   
@@ -61,27 +88,45 @@ public class CArrayOutputStream {
   /** The pos. */
   private int pos;
   
-  /** The b little endian. */
-  private boolean bLittleEndian;
+  /** The output buffer. */
+  private char[] buf;
   
-  ShortBuffer byteBuffer;
+  /** The number of chars in buf. */
+  private int count;
   
   /**
    * Instantiates a new c array output stream.
    *
    * @param file
    *          the file
-   * @param bLittleEndian
-   *          the b little endian
    * @throws IOException
    *           Signals that an I/O exception has occurred.
    */
-  public CArrayOutputStream(File file, boolean bLittleEndian) throws IOException {
+  public CArrayOutputStream(File file) throws IOException {
     fw = new FileWriter(file);
     pw = new PrintWriter(fw);
-    this.bLittleEndian = bLittleEndian;
     lineLen = 0;
     pos = 0;
+    buf = new char[BUFFER_SIZE];
+    count = 0;
+  }
+  
+  /**
+   * Instantiates an in-memory c array output stream, used to format 
+   * one band of a parallel stream.
+   *
+   * @param pos
+   *          the position of the band's first item
+   * @param capacity
+   *          the expected number of chars
+   */
+  private CArrayOutputStream(int pos, int capacity) {
+    fw = null;
+    pw = null;
+    lineLen = 0;
+    this.pos = pos;
+    buf = new char[capacity];
+    count = 0;
   }
   
   /**
@@ -98,6 +143,28 @@ public class CArrayOutputStream {
     flush();
   }
 
+  /**
+   * Stream array.
+   * Writes each row of 16 bit pixels as soon as the iterator
+   * returns it so the image is never held in memory.
+   *
+   * @param iter
+   *          the pixel rows
+   */
+  public void streamArray(IntPixelIterator iter) {
+    int width = iter.getWidth();
+    int[] row = new int[iter.getMinimumArrayLength()];
+    while (!iter.isDone()) {
+      iter.next(row);
+      boolean bLastRow = iter.isDone();
+      for (int x=0; x<width; x++)
+      {
+        writeShort(row[x], (bLastRow && x+1==width));
+      }
+    }
+    flush();
+  }
+
   /**
    * Stream array.
    *
@@ -113,6 +180,70 @@ public class CArrayOutputStream {
     flush();
   }
 
+  /**
+   * Stream array in parallel.
+   * Output is identical to streamArray(int[]).
+   *
+   * @param data
+   *          the data
+   */
+  public void streamArrayParallel(int[] data) {
+    streamBands(data, null, data.length);
+  }
+
+  /**
+   * Stream array in parallel.
+   * Output is identical to streamArray(byte[]).
+   *
+   * @param data
+   *          the data
+   */
+  public void streamArrayParallel(byte[] data) {
+    streamBands(null, data, data.length);
+  }
+
+  /**
+   * streamBands
+   * Split the data into bands of whole lines, format them on the 
+   * fork join pool and write them in order. Bands are processed a few 
+   * per core at a time so we never hold the text of the whole image.
+   *
+   * @param shorts
+   *          the 16 bit data or null
+   * @param bytes
+   *          the 8 bit data or null
+   * @param length
+   *          the number of items
+   */
+  private void streamBands(int[] shorts, byte[] bytes, int length) {
+    if (length <= BAND_ITEMS || lineLen != 0) {
+      // too small to bother or we are not at the start of a line
+      if (shorts != null)
+        streamArray(shorts);
+      else
+        streamArray(bytes);
+      return;
+    }
+    int wave = ForkJoinPool.getCommonPoolParallelism() * 2;
+    List<FormatBand> bands = new ArrayList<FormatBand>(wave);
+    for (int start = 0; start < length; ) {
+      bands.clear();
+      while (start < length && bands.size() < wave) {
+        int end = Math.min(start + BAND_ITEMS, length);
+        bands.add(new FormatBand(shorts, bytes, start, end, length, pos + start));
+        start = end;
+      }
+      ForkJoinTask.invokeAll(bands);
+      for (FormatBand band : bands) {
+        drain();
+        pw.write(band.out.buf, 0, band.out.count);
+        lineLen = band.out.lineLen;
+      }
+    }
+    pos += length;
+    flush();
+  }
+
   /**
    * Stream byte.
    *
@@ -120,17 +251,14 @@ public class CArrayOutputStream {
    *          the b
    */
   private void writeByte(byte b, boolean bLast) {
-    if (bLast) {
-      pw.printf("0x%02X  ",b);
-    } else {
-      pw.printf("0x%02X, ",b);
-    }
-    lineLen++;
-    pos++;
-    if (lineLen >= MAXITEMS) {
-      pw.printf("    // 0x%04X (%d) pixels\n",pos,pos);
-      lineLen = 0;
-    }
+    ensureCapacity(6);
+    buf[count++] = '0';
+    buf[count++] = 'x';
+    buf[count++] = HEX_DIGITS[(b >> 4) & 0xF];
+    buf[count++] = HEX_DIGITS[b & 0xF];
+    buf[count++] = bLast ? ' ' : ',';
+    buf[count++] = ' ';
+    endItem();
   }
 
   /**
@@ -140,7 +268,17 @@ public class CArrayOutputStream {
    *          the s
    */
   public void writeString(String s) {
-    pw.printf("%s", s);
+    s = String.valueOf(s);
+    int len = s.length();
+    if (len > buf.length - count) {
+      drain();
+      if (len > buf.length) {
+        pw.write(s);
+        return;
+      }
+    }
+    s.getChars(0, len, buf, count);
+    count += len;
   }
 
   /**
@@ -150,28 +288,21 @@ public class CArrayOutputStream {
    *          the v
    */
   public void writeShort(int data, boolean bLast) {
-    short v = Integer.valueOf(data).shortValue();
-    if (!bLittleEndian) {
-      v = convertShortBigEndian(v);
-    }
-    if (bLast) {
-      pw.printf("0x%04X  ",v);
-    } else {
-      pw.printf("0x%04X, ",v);
-    }
-    lineLen++;
-    pos++;
-    if (lineLen >= MAXITEMS) {
-      pw.printf("    // 0x%04X (%d) pixels\n",pos,pos);
-      lineLen = 0;
-    }
+    // A C array of unsigned shorts is laid out in memory by the target's
+    // compiler so its byte order is always native and there is nothing
+    // to swap here; the byte order option only applies to binary files.
+    ensureCapacity(8);
+    buf[count++] = '0';
+    buf[count++] = 'x';
+    buf[count++] = HEX_DIGITS[(data >> 12) & 0xF];
+    buf[count++] = HEX_DIGITS[(data >> 8) & 0xF];
+    buf[count++] = HEX_DIGITS[(data >> 4) & 0xF];
+    buf[count++] = HEX_DIGITS[data & 0xF];
+    buf[count++] = bLast ? ' ' : ',';
+    buf[count++] = ' ';
+    endItem();
   }
 
-  private short convertShortBigEndian (short inValue) {
-    byte tmpValue [] = shortToArray(inValue);
-    return shortFromArray(tmpValue);
- }
-
   public short shortFromArray(byte[] payload){
     ByteBuffer buffer = ByteBuffer.wrap(payload);
     buffer.order(ByteOrder.BIG_ENDIAN);
@@ -186,6 +317,91 @@ public class CArrayOutputStream {
       return buffer.array();
   }
   
+  /**
+   * endItem
+   * Count the item just written and end the line once it is full.
+   */
+  private void endItem() {
+    lineLen++;
+    pos++;
+    if (lineLen >= MAXITEMS) {
+      writeLineComment();
+      lineLen = 0;
+    }
+  }
+  
+  /**
+   * writeLineComment
+   * Output "    // 0x%04X (%d) pixels\n" for the current position.
+   */
+  private void writeLineComment() {
+    // 8 hex digits plus 10 decimal digits is the worst case
+    ensureCapacity(40);
+    writeChars("    // 0x");
+    int digits = 4;
+    while (digits < 8 && (pos >>> (digits * 4)) != 0) {
+      digits++;
+    }
+    for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+      buf[count++] = HEX_DIGITS[(pos >>> shift) & 0xF];
+    }
+    writeChars(" (");
+    int start = count;
+    int n = pos;
+    do {
+      buf[count++] = (char) ('0' + (n % 10));
+      n /= 10;
+    } while (n != 0);
+    // digits came out backwards
+    for (int i = start, j = count - 1; i < j; i++, j--) {
+      char c = buf[i];
+      buf[i] = buf[j];
+      buf[j] = c;
+    }
+    writeChars(") pixels\n");
+  }
+  
+  /**
+   * writeChars
+   * Copy a short constant into the buffer, caller must ensure capacity.
+   *
+   * @param s
+   *          the string
+   */
+  private void writeChars(String s) {
+    s.getChars(0, s.length(), buf, count);
+    count += s.length();
+  }
+  
+  /**
+   * ensureCapacity
+   * Make room for at least n more chars in the buffer.
+   *
+   * @param n
+   *          the number of chars needed
+   */
+  private void ensureCapacity(int n) {
+    if (count + n > buf.length) {
+      if (pw == null) {
+        // in-memory band, just grow
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+      } else {
+        drain();
+      }
+    }
+  }
+  
+  /**
+   * drain
+   * Hand the buffered chars over to the writer.
+   */
+  private void drain() {
+    if (count > 0) {
+      pw.write(buf, 0, count);
+      count = 0;
+    }
+  }
+  
   /**
    * Flush.
    *
@@ -196,10 +412,10 @@ public class CArrayOutputStream {
     if (lineLen != 0) {
       int leftOver = MAXITEMS - lineLen;
       for (int i=0; i<leftOver; i++)
-        pw.printf("        ");
-      pw.printf("    // 0x%04X (%d) pixels\n",pos,pos);
+        writeString(LINE_PAD);
+      writeLineComment();
     }
-    pw.printf("};\n");
+    writeString("};\n");
   }
   
   /**
@@ -209,8 +425,57 @@ public class CArrayOutputStream {
    *           Signals that an I/O exception has occurred.
    */
   public void close() throws IOException {
+    drain();
     pw.close();
     fw.close();
   }
 
+  /**
+   * The Class FormatBand.
+   * Formats items [start, end) of the data into its own
+   * in-memory stream.
+   */
+  private static class FormatBand extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    /** The 16 bit data or null. */
+    final int[] shorts;
+    
+    /** The 8 bit data or null. */
+    final byte[] bytes;
+    
+    /** The first item. */
+    final int start;
+    
+    /** One past the last item. */
+    final int end;
+    
+    /** The total number of items. */
+    final int length;
+    
+    /** The formatted text. */
+    final CArrayOutputStream out;
+
+    FormatBand(int[] shorts, byte[] bytes, int start, int end, int length, int pos) {
+      this.shorts = shorts;
+      this.bytes = bytes;
+      this.start = start;
+      this.end = end;
+      this.length = length;
+      int items = end - start;
+      out = new CArrayOutputStream(pos, items * 8 + (items / MAXITEMS + 1) * 40);
+    }
+
+    @Override
+    protected void compute() {
+      if (shorts != null) {
+        for (int i=start; i<end; i++)
+          out.writeShort(shorts[i], (i+1==length));
+      } else {
+        for (int i=start; i<end; i++)
+          out.writeByte(bytes[i], (i+1==length));
+      }
+    }
+  }
+
 }
@@ -0,0 +1,196 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * The Class ConversionCache.
+ * A manifest of the conversions already done, so images that 
+ * have not changed since the last run can be skipped.
+ * 
+ * Each output file is recorded with a key that is the SHA-256 of 
+ * the conversion options and the bytes of the source image, plus 
+ * the size of the output file. A conversion is current when its 
+ * key matches and the output file is still there with that size.
+ * 
+ * The manifest is a properties file so it can be checked in or
+ * inspected by hand.
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class ConversionCache {
+  
+  /** The manifest file. */
+  private File file;
+  
+  /** The entries, output path to "key size". */
+  private Properties entries;
+  
+  /** The b dirty. */
+  private boolean bDirty;
+  
+  /**
+   * Instantiates a new conversion cache, loading the manifest if it exists.
+   *
+   * @param file
+   *          the manifest file
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public ConversionCache(File file) throws IOException {
+    this.file = file;
+    entries = new Properties();
+    if (file.isFile()) {
+      try (InputStream in = new FileInputStream(file)) {
+        entries.load(in);
+      }
+    }
+    bDirty = false;
+  }
+  
+  /**
+   * Start a key.
+   *
+   * @param options
+   *          everything besides the source bytes that affects the output
+   * @return the digest to add the source files to
+   */
+  public static MessageDigest newKey(String options) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(options.getBytes(StandardCharsets.UTF_8));
+      return md;
+    } catch (NoSuchAlgorithmException e) {
+      // every java platform has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * Add a source file to a key.
+   *
+   * @param md
+   *          the key
+   * @param source
+   *          the source file
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public static void addFile(MessageDigest md, File source) throws IOException {
+    byte[] buf = new byte[64 * 1024];
+    try (InputStream in = new FileInputStream(source)) {
+      int n;
+      while ((n = in.read(buf)) > 0)
+        md.update(buf, 0, n);
+    }
+    // keep file boundaries apart for multi file keys
+    md.update((byte) 0);
+  }
+  
+  /**
+   * Finish a key.
+   *
+   * @param md
+   *          the key
+   * @return the key as hexadecimal
+   */
+  public static String toString(MessageDigest md) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : md.digest())
+      sb.append(String.format("%02x", b));
+    return sb.toString();
+  }
+  
+  /**
+   * isCurrent
+   *
+   * @param output
+   *          the output file
+   * @param key
+   *          the key of the conversion
+   * @return <code>true</code> if output was made by this conversion 
+   *         and has not changed since
+   */
+  public synchronized boolean isCurrent(File output, String key) {
+    String entry = entries.getProperty(output.getAbsolutePath());
+    return entry != null && output.isFile() 
+        && entry.equals(key + " " + output.length());
+  }
+  
+  /**
+   * put
+   * Record a finished conversion.
+   *
+   * @param output
+   *          the output file
+   * @param key
+   *          the key of the conversion
+   */
+  public synchronized void put(File output, String key) {
+    entries.setProperty(output.getAbsolutePath(), key + " " + output.length());
+    bDirty = true;
+  }
+  
+  /**
+   * remove
+   * Forget an output, for example after a failed conversion.
+   *
+   * @param output
+   *          the output file
+   */
+  public synchronized void remove(File output) {
+    if (entries.remove(output.getAbsolutePath()) != null)
+      bDirty = true;
+  }
+  
+  /**
+   * save
+   * Write the manifest if anything changed.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public synchronized void save() throws IOException {
+    if (!bDirty)
+      return;
+    try (OutputStream out = new FileOutputStream(file)) {
+      entries.store(out, "GUIslice_Image2C conversion cache");
+    }
+    bDirty = false;
+  }
+
+}
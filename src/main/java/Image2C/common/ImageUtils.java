@@ -37,19 +37,23 @@ import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
 import java.awt.image.RescaleOp;
 import java.awt.image.WritableRaster;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.function.IntConsumer;
 
 import javax.imageio.ImageIO;
 
 
+import com.pump.image.pixel.IntPixelIterator;
 import com.pump.image.pixel.quantize.BiasedMedianCutColorQuantization;
 import com.pump.image.pixel.quantize.ColorLUT;
 import com.pump.image.pixel.quantize.ColorQuantization;
 import com.pump.image.pixel.quantize.ColorSet;
 import com.pump.image.pixel.quantize.ImageQuantization;
+import com.pump.image.pixel.quantize.KMeansColorQuantization;
 import com.pump.image.pixel.quantize.MedianCutColorQuantization;
+import com.pump.image.pixel.quantize.OctreeColorQuantization;
+import com.pump.image.pixel.quantize.OrderedDitherImageQuantization;
+import com.pump.image.pixel.quantize.WuColorQuantization;
 
 import java.io.IOException;
 
@@ -58,6 +62,10 @@ public class ImageUtils {
   /** The instance. */
   private static ImageUtils instance  = null;
   
+  // Palettes already picked, shared by every instance
+  private static final PaletteCache paletteCache = 
+      new PaletteCache(PaletteCache.DEFAULT_MAXIMUM_SIZE);
+  
   private Color[] colors;
   private Color colMonochrome;
   private Color colCurrentFG;
@@ -68,42 +76,57 @@ public class ImageUtils {
   public final static int MEDIUM_DIFFUSION   = 1;
   public final static int SIMPLEST_DIFFUSION = 2;
   public final static int NEAREST_NEIGHBOR   = 3;
+  public final static int BAYER_2X2          = 4;
+  public final static int BAYER_4X4          = 5;
+  public final static int BAYER_8X8          = 6;
+  public final static int BLUE_NOISE         = 7;
   
   public final static int BIASED             = 0;
   public final static int MEDIAN             = 1;
-
-  private int hfType;           // File type "BM"
-  private int hfSize;           // File size
-  private short hfReserved1;    // Reserved for apps
-  private short hfReserved2;
-  private int hfOffset;         // Offset to pixel data
+  public final static int OCTREE             = 2;
+  public final static int WU                 = 3;
 
   // Header info
-  private int bmpHdrSz;         // DIB Header 2 size (40)
   private int bmpWidth;         // Width in pixels
   private int bmpHeight;        // Height in pixels
-  private short bmpPlanes;      // Number of planes
   private short bmpBpp;         // Number bits per pixel
-  private int bmpCompression;
   private int bmpImgSz;         // Image size
-  private int bmpXRes;          // Horizontal image resolution (pixels per meter)
-  private int bmpYRes;          // Vertical image resolution   (pixels per meter)
-  private int bmpClrUsed;       // Number colors in palette (0 to n)
-  private int bmpClrImportant;  // Number colors that are important (0 is all) 
-//  private int[] bmpClrIndex;    // bpp <=8 use color index for each color
-//  private int bmpClrSize;       // Size of bmpClrIndex;
   
   // Image's pixel data
-  private short[] bmpShortArray;
   private byte[]  bmpByteArray;
   private int[] decodedImage;
   private long nOriginalColors;
   private long nCurrentColors;
   
-  // RLE data
-  boolean bFlip;
-  byte lastByte;
-  int  matchCount;
+  // Export options
+  private boolean bStreamExport;
+  private boolean bParallelExport;
+  private boolean bRLEExport;
+  
+  // Color reduction algorithm for convertTo4() and convertTo8()
+  private int nQuantizer;
+  
+  // Dithering for convertTo4() and convertTo8()
+  private int nDither;
+  
+  // Apply the dithering to 16 bit exports too
+  private boolean bDither565;
+  
+  // Compare colors in OKLab instead of RGB
+  private boolean bPerceptual;
+  
+  // Match colors with a precomputed inverse colormap
+  private boolean bInverseColormap;
+  
+  // Palette shared by a batch of images, null to pick one per image
+  private ColorLUT sharedPalette;
+  
+  // Number of k-means passes over the palette, 0 for none
+  private int nRefineIterations;
+  
+  // RLE results of the last export
+  private int rleRawSize;
+  private int rleSize;
   
   /**
    * getInstance() - get our Singleton Object.
@@ -129,9 +152,24 @@ public class ImageUtils {
     colCurrentFG = new Color(255,255,255); // Color WHITE
   }
   
+  /**
+   * isMonochrome
+   * Test if an image has one bit per pixel. Java reports packed 1, 2 
+   * and 4 bit images all as TYPE_BYTE_BINARY, so the type alone can't
+   * tell.
+   *
+   * @param image
+   *        the image
+   * @return <code>true</code> for a 1 bit image
+   */
+  public static boolean isMonochrome(BufferedImage image) {
+    return image.getType() == BufferedImage.TYPE_BYTE_BINARY
+        && image.getSampleModel().getSampleSize(0) == 1;
+  }
+  
   public BufferedImage convertForegroundColor(BufferedImage inputImage, Color newColor) {
     BufferedImage newImage = null;
-    if (inputImage.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+    if (isMonochrome(inputImage)) {
       if (inputImage.getColorModel() instanceof IndexColorModel) {
         IndexColorModel colorModelOriginal = (IndexColorModel) inputImage.getColorModel();
         int[] palette = new int[2];
@@ -236,16 +274,19 @@ public class ImageUtils {
   
   public BufferedImage convertTo4(BufferedImage inputImage) {
     BufferedImage outputImage = null;
-    ColorSet inputColors = new ColorSet();
-    inputColors.addColors(inputImage);
-    BufferedImage tempImage = colorQuantizer(inputImage, inputColors, 16, 
-        ImageUtils.MOST_DIFFUSION, ImageUtils.BIASED);
-    ColorSet outputColors = new ColorSet();
-    outputColors.addColors(tempImage);
+    // the octree and wu read the pixels themselves
+    ColorSet inputColors = (nQuantizer == OCTREE || nQuantizer == WU 
+        || sharedPalette != null) 
+        ? null : countColors(inputImage);
+    BufferedImage tempImage = (sharedPalette != null)
+        ? colorQuantizer(inputImage, sharedPalette, nDither)
+        : colorQuantizer(inputImage, inputColors, 16, nQuantizer, nDither);
+    ColorSet outputColors = countColors(tempImage);
     int nColors = outputColors.getColorCount();
+    IndexColorModel icm = (IndexColorModel) tempImage.getColorModel();
 
     // Success?
-    if (nColors <= 16) {
+    if (nColors <= 16 && icm.getMapSize() <= 16) {
       // Create the BufferedImage
       int w = inputImage.getWidth(), h = inputImage.getHeight();
       int length = (w * h);
@@ -253,13 +294,16 @@ public class ImageUtils {
       byte[] data = new byte[length];
       DataBuffer db = new DataBufferByte(data, length);
       WritableRaster wr = Raster.createPackedRaster(db, w, h, 4, null);
-      outputImage = new BufferedImage(outputColors.createIndexColorModel(false, false), 
-          wr, false, null);
+      outputImage = new BufferedImage(icm, wr, false, null);
 
-      // packs the input image to the output image
-      Graphics2D g2d = outputImage.createGraphics();
-      g2d.drawImage(inputImage, 0, 0, inputImage.getWidth(),  inputImage.getHeight(), null);
-      g2d.dispose();
+      // packs the quantized indices into the output image, drawing the 
+      // input would map it onto the palette again and lose the dithering
+      Raster src = tempImage.getRaster();
+      int[] row = new int[w];
+      for (int y = 0; y < h; y++) {
+        src.getPixels(0, y, w, 1, row);
+        wr.setPixels(0, y, w, 1, row);
+      }
 
       nCurrentColors = nColors;
       bmpBpp = 4;
@@ -272,12 +316,13 @@ public class ImageUtils {
   
   public BufferedImage convertTo8(BufferedImage inputImage) {
     BufferedImage outputImage = null;
-    ColorSet inputColors = new ColorSet();
-    inputColors.addColors(inputImage);
-    outputImage = colorQuantizer(inputImage, inputColors, 256, 
-        ImageUtils.MOST_DIFFUSION, ImageUtils.BIASED);
-    ColorSet outputColors = new ColorSet();
-    outputColors.addColors(outputImage);
+    ColorSet inputColors = (nQuantizer == OCTREE || nQuantizer == WU 
+        || sharedPalette != null) 
+        ? null : countColors(inputImage);
+    outputImage = (sharedPalette != null)
+        ? colorQuantizer(inputImage, sharedPalette, nDither)
+        : colorQuantizer(inputImage, inputColors, 256, nQuantizer, nDither);
+    ColorSet outputColors = countColors(outputImage);
     int nColors = outputColors.getColorCount();
     // Success?
     if (nColors <= 256) {
@@ -301,8 +346,7 @@ public class ImageUtils {
     Graphics2D g2d = outputImage.createGraphics();
     g2d.drawImage(inputImage, 0, 0, inputImage.getWidth(),  inputImage.getHeight(), colTransparent, null);
     g2d.dispose();
-    ColorSet outputColors = new ColorSet();
-    outputColors.addColors(outputImage);
+    ColorSet outputColors = countColors(outputImage);
     nCurrentColors = outputColors.getColorCount();
     return outputImage;
   }
@@ -332,8 +376,7 @@ public class ImageUtils {
         outputImage.setRGB(row, col, gray);
       }
     }
-    ColorSet outputColors = new ColorSet();
-    outputColors.addColors(outputImage);
+    ColorSet outputColors = countColors(outputImage);
     nCurrentColors = outputColors.getColorCount();
     if (nCurrentColors <= 2)
       bmpBpp = 1;
@@ -346,11 +389,27 @@ public class ImageUtils {
     return outputImage;
   }
   
+  /**
+   * countColors
+   * Build the color statistics of an image, on all cores 
+   * when parallel export is set.
+   * 
+   * @param image the image
+   * @return the colors
+   */
+  private ColorSet countColors(BufferedImage image) {
+    ColorSet colorSet = new ColorSet();
+    if (bParallelExport)
+      colorSet.addColorsParallel(image);
+    else
+      colorSet.addColors(image);
+    return colorSet;
+  }
+  
   public long getNumberOfColors(BufferedImage inputImage) {
     colors = null;
     colCurrentFG = new Color(255,255,255); // Color WHITE
-    ColorSet inputColors = new ColorSet();
-    inputColors.addColors(inputImage);
+    ColorSet inputColors = countColors(inputImage);
     nOriginalColors = inputColors.getColorCount();
     nCurrentColors = nOriginalColors;
     if (nCurrentColors < 3) {
@@ -414,6 +473,267 @@ public class ImageUtils {
     return colMonochrome;
   }
   
+  /**
+   * Set streaming export
+   * When set 16 bit images are converted and written one scan line
+   * at a time instead of converting the whole image first, this keeps
+   * memory use down to a few rows for very large images.
+   *
+   * @param bStreamExport
+   *        <code>true</code> to stream the export
+   */
+  public void setStreamExport(boolean bStreamExport) {
+    this.bStreamExport = bStreamExport;
+  }
+  
+  /**
+   * is streaming export
+   * @return <code>true</code> if 16 bit exports are streamed
+   */
+  public boolean isStreamExport() {
+    return bStreamExport;
+  }
+  
+  /**
+   * Set parallel export
+   * When set the color counting, error diffusion, pixel conversion and 
+   * hex formatting are split into bands of rows that run on all cores. 
+   * The output is the same.
+   * Streaming export, if also set, takes precedence for 16 bit images.
+   *
+   * @param bParallelExport
+   *        <code>true</code> to use all cores
+   */
+  public void setParallelExport(boolean bParallelExport) {
+    this.bParallelExport = bParallelExport;
+  }
+  
+  /**
+   * is parallel export
+   * @return <code>true</code> if exports use all cores
+   */
+  public boolean isParallelExport() {
+    return bParallelExport;
+  }
+  
+  /**
+   * Set run length encoded export
+   * When set the pixel data of C array exports is run length encoded,
+   * see RLEEncoder for the layout. The image then needs to be decoded 
+   * by the sketch before it can be drawn.
+   *
+   * @param bRLEExport
+   *        <code>true</code> to run length encode
+   */
+  public void setRLEExport(boolean bRLEExport) {
+    this.bRLEExport = bRLEExport;
+  }
+  
+  /**
+   * is run length encoded export
+   * @return <code>true</code> if exports are run length encoded
+   */
+  public boolean isRLEExport() {
+    return bRLEExport;
+  }
+  
+  /**
+   * Set the quantizer
+   * The algorithm convertTo4() and convertTo8() use to pick the palette.
+   * OCTREE streams the pixels into a tree of bounded size instead of 
+   * counting every color of the image first, which is much faster on 
+   * photographs. WU minimizes the variance of the palette using moment
+   * tables of a 33x33x33 grid, its cost doesn't depend on the number of
+   * colors either.
+   *
+   * @param nQuantizer
+   *        BIASED, MEDIAN, OCTREE or WU
+   */
+  public void setQuantizer(int nQuantizer) {
+    if (nQuantizer != BIASED && nQuantizer != MEDIAN && nQuantizer != OCTREE
+        && nQuantizer != WU)
+      throw new IllegalArgumentException("Unsupported quantizer: " + nQuantizer);
+    this.nQuantizer = nQuantizer;
+  }
+  
+  /**
+   * get quantizer
+   * @return BIASED, MEDIAN, OCTREE or WU
+   */
+  public int getQuantizer() {
+    return nQuantizer;
+  }
+  
+  /**
+   * Set dither
+   * The way convertTo4() and convertTo8() map pixels onto the palette.
+   * The diffusion modes spread the error of each pixel to its neighbors.
+   * The BAYER and BLUE_NOISE modes offset each pixel by a tiled threshold
+   * matrix instead, so every pixel is independent of the others and the 
+   * repeating patterns run length encode much better.
+   *
+   * @param nDither
+   *        MOST_DIFFUSION, MEDIUM_DIFFUSION, SIMPLEST_DIFFUSION, 
+   *        NEAREST_NEIGHBOR, BAYER_2X2, BAYER_4X4, BAYER_8X8 or BLUE_NOISE
+   */
+  public void setDither(int nDither) {
+    if (nDither < MOST_DIFFUSION || nDither > BLUE_NOISE)
+      throw new IllegalArgumentException("Unsupported dither: " + nDither);
+    this.nDither = nDither;
+  }
+  
+  /**
+   * get dither
+   * @return MOST_DIFFUSION, MEDIUM_DIFFUSION, SIMPLEST_DIFFUSION, 
+   *         NEAREST_NEIGHBOR, BAYER_2X2, BAYER_4X4, BAYER_8X8 or BLUE_NOISE
+   */
+  public int getDither() {
+    return nDither;
+  }
+  
+  /**
+   * Set RGB565 dither
+   * When set 16 bit exports dither each channel into its 5 or 6 bits
+   * with the setDither() mode instead of truncating it, so gradients 
+   * don't band. NEAREST_NEIGHBOR rounds to the closest level.
+   *
+   * @param bDither565
+   *        <code>true</code> to dither 16 bit exports
+   */
+  public void setRGB565Dither(boolean bDither565) {
+    this.bDither565 = bDither565;
+  }
+  
+  /**
+   * is RGB565 dither
+   * @return <code>true</code> if 16 bit exports are dithered
+   */
+  public boolean isRGB565Dither() {
+    return bDither565;
+  }
+  
+  /**
+   * Set perceptual
+   * When set convertTo4() and convertTo8() compare colors by their 
+   * distance in the OKLab color space instead of RGB, both when the 
+   * median cut quantizers pick which way to split the colors and when 
+   * pixels are matched to the palette. This mostly helps at low color 
+   * counts.
+   *
+   * @param bPerceptual
+   *        <code>true</code> for perceptual distance
+   */
+  public void setPerceptual(boolean bPerceptual) {
+    this.bPerceptual = bPerceptual;
+  }
+  
+  /**
+   * is perceptual
+   * @return <code>true</code> if colors are compared in OKLab
+   */
+  public boolean isPerceptual() {
+    return bPerceptual;
+  }
+  
+  /**
+   * Set inverse colormap
+   * When set convertTo4() and convertTo8() match pixels to the palette
+   * through a 64x64x64 table built once per palette, instead of 
+   * searching the palette for every pixel. Building the table takes a
+   * fraction of a second, so this pays off for large 256 color images.
+   * Colors that are nearly as close to two palette entries may get the
+   * other one.
+   *
+   * @param bInverseColormap
+   *        <code>true</code> to use the table
+   */
+  public void setInverseColormap(boolean bInverseColormap) {
+    this.bInverseColormap = bInverseColormap;
+  }
+  
+  /**
+   * is inverse colormap
+   * @return <code>true</code> if pixels are matched through the table
+   */
+  public boolean isInverseColormap() {
+    return bInverseColormap;
+  }
+  
+  /**
+   * Set shared palette
+   * When set convertTo4() and convertTo8() map every image onto this
+   * palette instead of picking one for each image. See createPalette().
+   *
+   * @param sharedPalette
+   *        the palette, null to pick one per image
+   */
+  public void setSharedPalette(ColorLUT sharedPalette) {
+    this.sharedPalette = sharedPalette;
+  }
+  
+  /**
+   * get shared palette
+   * @return the palette shared by a batch of images, or null
+   */
+  public ColorLUT getSharedPalette() {
+    return sharedPalette;
+  }
+  
+  /**
+   * getPaletteCache
+   * The palettes picked by colorQuantizer(), shared by every instance.
+   * Use it to read the hit and miss counts or to change its size.
+   *
+   * @return the palette cache
+   */
+  public static PaletteCache getPaletteCache() {
+    return paletteCache;
+  }
+  
+  /**
+   * getColorHistogram
+   * The histogram of an image's colors.
+   *
+   * @param image
+   *        the image
+   * @return the colors and how often each occurs
+   */
+  public ColorSet getColorHistogram(BufferedImage image) {
+    return countColors(image);
+  }
+  
+  /**
+   * Set palette refinement
+   * When set the palette picked by the quantizer is refined by up to 
+   * this many k-means iterations over all the colors of the image, 
+   * stopping early once the palette settles. This is most noticeable 
+   * with 16 colors.
+   *
+   * @param nRefineIterations
+   *        the most iterations, 0 to use the palette as is
+   */
+  public void setPaletteRefinement(int nRefineIterations) {
+    if (nRefineIterations < 0)
+      throw new IllegalArgumentException("Unsupported refinement: " + nRefineIterations);
+    this.nRefineIterations = nRefineIterations;
+  }
+  
+  /**
+   * get palette refinement
+   * @return the most k-means iterations, 0 for none
+   */
+  public int getPaletteRefinement() {
+    return nRefineIterations;
+  }
+  
+  /**
+   * Get the compression ratio of the last run length encoded export
+   * @return raw size divided by encoded size, 1.0 if nothing was encoded
+   */
+  public double getRLERatio() {
+    return (rleSize == 0) ? 1.0 : (double) rleRawSize / rleSize;
+  }
+  
   /**
    * setBackgroundColor
    * @param color
@@ -437,36 +757,210 @@ public class ImageUtils {
 
   public BufferedImage colorQuantizer(BufferedImage image, ColorSet ic, int nColors,
       int algorithm, int q) {
-     ColorQuantization cq = null;
-     if (algorithm == ImageUtils.BIASED)
-         cq = new BiasedMedianCutColorQuantization(.1f);
-     else
-       cq = new MedianCutColorQuantization();
-     ColorSet reducedImageColors = cq.createReducedSet(ic, nColors, true);
-     IndexColorModel icm = reducedImageColors.createIndexColorModel(false, false);
-     ColorLUT lut = new ColorLUT(icm);
+     PaletteCache.Key key = null;
+     PaletteCache.Palette palette = null;
+     if (paletteCache.isEnabled()) {
+       long fingerprint = (ic == null) ? PaletteCache.fingerprint(image) 
+           : PaletteCache.fingerprint(ic);
+       key = new PaletteCache.Key(fingerprint, 
+           (long) image.getWidth() * image.getHeight(), nColors, algorithm, 
+           nRefineIterations, bPerceptual, bInverseColormap);
+       palette = paletteCache.get(key);
+     }
+     if (palette == null) {
+       ColorSet reducedImageColors = reduceColors(image, ic, nColors, algorithm);
+       palette = new PaletteCache.Palette(createLUT(reducedImageColors), 
+           reducedImageColors == ic);
+       if (key != null)
+         paletteCache.put(key, palette);
+     }
+     // the palette holds every color so there is nothing to dither, the
+     // threshold offsets would only add noise
+     if (palette.isExact() 
+         && getImageQuantization(q) instanceof OrderedDitherImageQuantization)
+       q = ImageUtils.NEAREST_NEIGHBOR;
+     return colorQuantizer(image, palette.getLUT(), q);
+  }
+  
+  /**
+   * colorQuantizer
+   * Map the pixels of an image onto an existing palette.
+   *
+   * @param image
+   *        the image
+   * @param lut
+   *        the palette, this may be shared by several threads
+   * @param q
+   *        the dither, see setDither()
+   * @return the indexed image, null if q is unknown
+   */
+  public BufferedImage colorQuantizer(BufferedImage image, ColorLUT lut, int q) {
+     ImageQuantization quantization = getImageQuantization(q);
      BufferedImage reducedImage = null;
-     switch (q) {
-       case ImageUtils.MOST_DIFFUSION:
-         reducedImage = ImageQuantization.MOST_DIFFUSION.createImage(image, lut);
-         break;
-       case ImageUtils.MEDIUM_DIFFUSION:
-         reducedImage = ImageQuantization.MEDIUM_DIFFUSION.createImage(image, lut);
-         break;
-       case ImageUtils.SIMPLEST_DIFFUSION:
-         reducedImage = ImageQuantization.SIMPLEST_DIFFUSION.createImage(image, lut);
-         break;
-       case ImageUtils.NEAREST_NEIGHBOR:
-         reducedImage = ImageQuantization.NEAREST_NEIGHBOR.createImage(image, lut);
-         break;
+     if (quantization != null) {
+       // error diffusion runs as a wavefront over the rows and ordered
+       // dithering in bands of rows, the output is the same either way
+       if (bParallelExport)
+         reducedImage = quantization.createImageParallel(image, lut);
+       else
+         reducedImage = quantization.createImage(image, lut);
      }
      return reducedImage;
   }
   
+  /**
+   * createPalette
+   * Reduce a histogram, for example the merged colors of a whole batch of
+   * images, to a palette using the quantizer, palette refinement and 
+   * perceptual settings.
+   *
+   * @param colors
+   *        the histogram
+   * @param nColors
+   *        the most colors in the palette
+   * @return the palette
+   */
+  public ColorLUT createPalette(ColorSet colors, int nColors) {
+    return createLUT(reduceColors(null, colors, nColors, nQuantizer));
+  }
+  
+  /**
+   * reduceColors
+   * Pick the palette of an image.
+   *
+   * @param image
+   *        the image, only used when ic is null
+   * @param ic
+   *        the colors of the image, may be null for OCTREE and WU
+   * @param nColors
+   *        the most colors in the palette
+   * @param algorithm
+   *        BIASED, MEDIAN, OCTREE or WU
+   * @return the palette, ic itself if it already fits
+   */
+  private ColorSet reduceColors(BufferedImage image, ColorSet ic, int nColors,
+      int algorithm) {
+     ColorQuantization cq = null;
+     ColorSet reducedImageColors = null;
+     if (algorithm == ImageUtils.OCTREE) {
+       OctreeColorQuantization octree = new OctreeColorQuantization();
+       // ic may be null, the octree only needs the pixels
+       if (ic == null)
+         reducedImageColors = octree.createReducedSet(image, nColors);
+       else
+         reducedImageColors = octree.createReducedSet(ic, nColors, true);
+     } else if (algorithm == ImageUtils.WU) {
+       WuColorQuantization wu = new WuColorQuantization();
+       if (ic == null)
+         reducedImageColors = wu.createReducedSet(image, nColors);
+       else
+         reducedImageColors = wu.createReducedSet(ic, nColors, true);
+     } else {
+       if (algorithm == ImageUtils.BIASED)
+           cq = new BiasedMedianCutColorQuantization(.1f, bPerceptual);
+       else
+         cq = new MedianCutColorQuantization(false, bPerceptual);
+       reducedImageColors = cq.createReducedSet(ic, nColors, true);
+     }
+     if (nRefineIterations > 0 && reducedImageColors != ic) {
+       if (ic == null)
+         ic = countColors(image);
+       reducedImageColors = new KMeansColorQuantization(nRefineIterations, 
+           KMeansColorQuantization.DEFAULT_TOLERANCE, bPerceptual).refine(ic, reducedImageColors);
+     }
+     return reducedImageColors;
+  }
+  
+  /**
+   * createLUT
+   * Create the color lookup table of a palette.
+   */
+  private ColorLUT createLUT(ColorSet palette) {
+     IndexColorModel icm = palette.createIndexColorModel(false, false);
+     ColorLUT lut = new ColorLUT(icm);
+     lut.setPerceptual(bPerceptual);
+     lut.setInverseColormap(bInverseColormap);
+     return lut;
+  }
+  
+  /**
+   * getImageQuantization
+   * Map a dither constant to its ImageQuantization.
+   *
+   * @param q
+   *        MOST_DIFFUSION, MEDIUM_DIFFUSION, SIMPLEST_DIFFUSION, 
+   *        NEAREST_NEIGHBOR, BAYER_2X2, BAYER_4X4, BAYER_8X8 or BLUE_NOISE
+   * @return the ImageQuantization, null if q is unknown
+   */
+  private static ImageQuantization getImageQuantization(int q) {
+    switch (q) {
+      case ImageUtils.MOST_DIFFUSION:
+        return ImageQuantization.MOST_DIFFUSION;
+      case ImageUtils.MEDIUM_DIFFUSION:
+        return ImageQuantization.MEDIUM_DIFFUSION;
+      case ImageUtils.SIMPLEST_DIFFUSION:
+        return ImageQuantization.SIMPLEST_DIFFUSION;
+      case ImageUtils.NEAREST_NEIGHBOR:
+        return ImageQuantization.NEAREST_NEIGHBOR;
+      case ImageUtils.BAYER_2X2:
+        return ImageQuantization.BAYER_2X2;
+      case ImageUtils.BAYER_4X4:
+        return ImageQuantization.BAYER_4X4;
+      case ImageUtils.BAYER_8X8:
+        return ImageQuantization.BAYER_8X8;
+      case ImageUtils.BLUE_NOISE:
+        return ImageQuantization.BLUE_NOISE;
+    }
+    return null;
+  }
+  
+  /**
+   * encodeRGB565
+   * Convert the image to 16 bit pixels, dithered if requested.
+   * 
+   * @param inputImage the image
+   * @return the RGB565 pixels
+   */
+  private int[] encodeRGB565(BufferedImage inputImage) {
+    if (bDither565)
+      return new RGB565Ditherer(getImageQuantization(nDither)).encode(inputImage, colTransparent);
+    return RGB565Encoder.encode(inputImage, colTransparent);
+  }
+  
+  /**
+   * encodeRGB565Parallel
+   * Same as encodeRGB565() using all cores where the dithering allows it.
+   * 
+   * @param inputImage the image
+   * @return the RGB565 pixels
+   */
+  private int[] encodeRGB565Parallel(BufferedImage inputImage) {
+    if (bDither565)
+      return new RGB565Ditherer(getImageQuantization(nDither)).encodeParallel(inputImage, colTransparent);
+    return RGB565Encoder.encodeParallel(inputImage, colTransparent);
+  }
+  
+  /**
+   * createRGB565Iterator
+   * Convert the image to 16 bit pixels a row at a time, dithered if requested.
+   * 
+   * @param inputImage the image
+   * @return the rows of RGB565 pixels
+   */
+  private IntPixelIterator createRGB565Iterator(BufferedImage inputImage) {
+    if (bDither565)
+      return new RGB565Ditherer(getImageQuantization(nDither)).createIterator(inputImage, colTransparent);
+    return RGB565Encoder.createIterator(inputImage, colTransparent);
+  }
+  
   public BufferedImage imageResize(BufferedImage inputImage, int scaledWidth, int scaledHeight) {
-    // creates output image
+    // creates output image, custom types can't be created so use ARGB for them
+    int type = inputImage.getType();
+    if (type == BufferedImage.TYPE_CUSTOM 
+        || (type == BufferedImage.TYPE_BYTE_BINARY && !isMonochrome(inputImage)))
+      type = BufferedImage.TYPE_INT_ARGB;
     BufferedImage outputImage = new BufferedImage(scaledWidth,
-            scaledHeight, inputImage.getType());
+            scaledHeight, type);
 
     // scales the input image to the output image
     Graphics2D g2d = outputImage.createGraphics();
@@ -476,13 +970,17 @@ public class ImageUtils {
     return outputImage;
   }
 
-  public void image2C_Array(BufferedImage inputImage, String bmpFileName, File file, String arrayName, 
-      String ext, boolean bUseLittleEndian, boolean bCArrayFlash, boolean bIsTransparent) throws IOException
-  {
+  /**
+   * prepareExport
+   * Decide between 1 and 16 bit output and set up bmpBpp, bmpWidth, 
+   * bmpHeight and either bmpByteArray or decodedImage to match.
+   * 
+   * @param inputImage the image to export
+   * @return the size of the pixel data in bytes
+   */
+  private int prepareExport(BufferedImage inputImage) {
     int arraySz;
-    try {
-
-      if( nCurrentColors < 3 && inputImage.getType() != BufferedImage.TYPE_BYTE_BINARY) {
+    if( nCurrentColors < 3 && !isMonochrome(inputImage)) {
        BufferedImage blackWhite = convertTo1(inputImage);
        DataBufferByte data = (DataBufferByte) blackWhite.getRaster().getDataBuffer();
        bmpByteArray = data.getData();
@@ -491,7 +989,7 @@ public class ImageUtils {
        bmpHeight = inputImage.getHeight();
        bmpImgSz = bmpByteArray.length;
        arraySz = bmpImgSz;
-    } else if(inputImage.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+    } else if(isMonochrome(inputImage)) {
       
       BufferedImage blackWhite = 
          new BufferedImage(inputImage.getWidth(), inputImage.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
@@ -506,236 +1004,308 @@ public class ImageUtils {
       arraySz = bmpImgSz;
 //      System.out.println("bmpByteArray len: " + bmpImgSz);
     } else {
-      // First thing is to convert our image to a BMP 24 bit memory based image
-      // for processing.
-      BufferedImage convertedImage = convertTo24(inputImage);
-      
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      // writes to the output image in specified format
-      boolean result = ImageIO.write(convertedImage, "bmp", outputStream);
-      if (!result) {
-        throw new IOException("ImageIO.write failed");
+      // Convert straight from the image's raster to RGB565, the transparent 
+      // pixel color is used as the background just like convertTo24().
+      bmpBpp = 24;
+      bmpWidth = inputImage.getWidth();
+      bmpHeight = inputImage.getHeight();
+      if (bStreamExport) {
+        // converted while writing
+      } else if (bParallelExport) {
+        decodedImage = encodeRGB565Parallel(inputImage);
+      } else {
+        decodedImage = encodeRGB565(inputImage);
       }
-      // needs to close the streams
-      outputStream.flush();
-      outputStream.close();
-      // Now read our memory based BMP into variables so we can later do our output
-      byte[] bmpArray = outputStream.toByteArray();
-    
-      LittleEndianDataInputStream fIn = 
-          new LittleEndianDataInputStream(new ByteArrayInputStream(bmpArray));
-      hfType = fIn.readShort();
-      if (hfType != 0x4D42) {  // test for "BM"
-        fIn.close();
-        throw new IOException("hfType != 0x4D42");
+      arraySz =  bmpWidth * bmpHeight * 2; 
+    }
+    return arraySz;
+  }
+
+  public void image2C_Array(BufferedImage inputImage, String bmpFileName, File file, String arrayName, 
+      String ext, boolean bUseLittleEndian, boolean bCArrayFlash, boolean bIsTransparent) throws IOException
+  {
+    int arraySz;
+    try {
+      arraySz = prepareExport(inputImage);
+      boolean bStreamPixels = bStreamExport;
+      rleRawSize = 0;
+      rleSize = 0;
+      if (bRLEExport) {
+        rleRawSize = arraySz;
+        if (bmpBpp == 1) {
+          bmpByteArray = RLEEncoder.encode(bmpByteArray).toByteArray();
+          arraySz = bmpByteArray.length;
+        } else {
+          if (bStreamExport) {
+            // only count the packets here, they are encoded again 
+            // a row at a time while being written
+            arraySz = encodeRLE(createRGB565Iterator(inputImage), item -> {}).size() * 2;
+          } else {
+            decodedImage = RLEEncoder.encode(decodedImage).toShortArray();
+            arraySz = decodedImage.length * 2;
+          }
+        }
+        rleSize = arraySz;
       }
-      hfSize = fIn.readInt();
-      hfReserved1 = fIn.readShort();     
-      hfReserved2 = fIn.readShort();     
-      hfOffset = fIn.readInt();
-  
-      //Read Header Info
-      bmpHdrSz = fIn.readInt();
-      bmpWidth = fIn.readInt();
-      bmpHeight = fIn.readInt();
-      bmpPlanes = fIn.readShort();     
-      bmpBpp = fIn.readShort();
-      bmpCompression = fIn.readInt();
-      bmpImgSz = fIn.readInt();
-      bmpXRes = fIn.readInt();
-      bmpYRes = fIn.readInt();
-      bmpClrUsed = fIn.readInt();
-      bmpClrImportant = fIn.readInt();
-  /*
-        if (bmpClrUsed == 0 && bmpClrImportant > 0)
-          bmpClrUsed = bmpClrImportant;
-        bmpClrIndex = null;
-        bmpClrSize = 0;
-        if (hfOffset > 54) { 
-          bmpClrSize = (hfOffset-54)/4;
-          if (bmpClrSize > 256) {
-            fIn.close();
-            return false;
+
+      // We can now output the BMP
+      // Start with the Header info
+      String line;
+      CArrayOutputStream fOut = new CArrayOutputStream(file);
+      boolean bWritten = false;
+      try {
+        // output our boiler plate
+        fOut.writeString("//------------------------------------------------------------------------------\n");
+        fOut.writeString("// File Generated by GUIslice_Image2C\n");
+        fOut.writeString("//------------------------------------------------------------------------------\n");
+        line = String.format("// Generated from   : %s%s\n",bmpFileName, ext);
+        fOut.writeString(line);
+        line = String.format("// Dimensions       : %dx%d pixels\n",bmpWidth,bmpHeight);
+        fOut.writeString(line);
+        if (bmpBpp == 1) {
+          line = String.format("// Bits Per Pixel   : %d Bits\n",1);
+        } else {
+          line = String.format("// Bits Per Pixel   : %d Bits\n",16);
+        }
+        fOut.writeString(line); 
+        line = String.format("// Memory Size      : %d Bytes\n",arraySz);
+        fOut.writeString(line); 
+        line = String.format("// Little Endian    : %s\n",bUseLittleEndian);
+        fOut.writeString(line);
+        if (bRLEExport) {
+          line = String.format("// Compression      : RLE %d of %d Bytes (%.2f:1)\n",
+              rleSize, rleRawSize, getRLERatio());
+          fOut.writeString(line);
+        }
+        fOut.writeString("//------------------------------------------------------------------------------\n");
+        fOut.writeString("\n");
+    
+        fOut.writeString("// For details on how to generate this file please refer to\n");
+        fOut.writeString("// https://github.com/ImpulseAdventure/GUIslice/wiki/Display-Images-from-FLASH\n");
+        fOut.writeString("\n");
+        fOut.writeString("#include \"GUIslice.h\"\n");
+        fOut.writeString("#include \"GUIslice_config.h\"\n");
+        fOut.writeString("\n");
+        if (bCArrayFlash) {
+          fOut.writeString("#if (GSLC_USE_PROGMEM)\n");
+          fOut.writeString("  #if defined(__AVR__)\n");
+          fOut.writeString("    #include <avr/pgmspace.h>\n");
+          fOut.writeString("  #else\n");
+          fOut.writeString("    #include <pgmspace.h>\n");
+          fOut.writeString("  #endif\n");
+          fOut.writeString("#endif\n");
+          fOut.writeString("\n");
+          if (bmpBpp == 1) {
+            line = String.format("const unsigned char %s[%d+7] GSLC_PMEM = {\n", arrayName, arraySz);
+          } else {
+            line = String.format("const unsigned short %s[%d+2] GSLC_PMEM = {\n", arrayName, arraySz/2);
           }
-          // copy the color palette
-          bmpClrIndex = new int[bmpClrSize];
-          for (int i=0; i<bmpClrSize; i++) {
-            bmpClrIndex[i] = fIn.readInt();
+        } else {
+          if (bmpBpp == 1) {
+            line = String.format("const unsigned char %s[%d+5] = {\n", arrayName, arraySz);
+          } else {
+            line = String.format("const unsigned short %s[%d+2] = {\n", arrayName, arraySz/2);
           }
         }
-  */
-/*  
-      String hexType = Integer.toHexString(hfType & 0xffff);
-      System.out.println("hfType: " + hexType);
-      System.out.println("hfSize: " + hfSize);
-      System.out.println("hfOffset: " + hfOffset);
-      System.out.println("bmpHdrSz: " + bmpHdrSz);
-      System.out.println("bmpWidth: " + bmpWidth);
-      System.out.println("bmpHeight: " + bmpHeight);
-      System.out.println("bmpBpp: " + bmpBpp);
-      System.out.println("bmpCompression: " + bmpCompression);
-      System.out.println("bmpImgSz: " + bmpImgSz);
-      System.out.println("bmpXRes: " + bmpXRes);
-      System.out.println("bmpYRes: " + bmpYRes);
-      System.out.println("bmpClrUsed: " + bmpClrUsed);
-      System.out.println("bmpClrImportant: " + bmpClrImportant);
-      // display the color palette
-      System.out.println("bmpClrSize: " + bmpClrSize);
-      if (bmpClrSize > 0) {
-        for (int i=0; i<bmpClrSize; i++) {
-          String hex = String.format("0x%08X",bmpClrIndex[i]);
-          System.out.println("bmpClrIndex[" + i + "]: " + hex);
-         }
-       }
-   * 
-   */
-      bFlip = true;
-      if (bmpHeight < 0) {
-        bFlip = false;
-        bmpHeight = -bmpHeight;
-      }
-      
-      bmpShortArray = new short[bmpImgSz];
-      for(int x=0; x<bmpImgSz; x++)
-      {
-        bmpShortArray[x] = (short) (fIn.readByte() & 0xFF);
+        fOut.writeString(line);
+    
+        if (bmpBpp == 1) {
+          // output Height and width as two bytes in big endian format
+          int byteHi = (bmpHeight >>> 8) & 0xFF;
+          int byteLo = bmpHeight & 0xFF;
+          line = String.format("0x%02X, // Height of image\n", byteHi);
+          fOut.writeString(line);
+          line = String.format("0x%02X,\n", byteLo);
+          fOut.writeString(line);
+          byteHi = (bmpWidth >>> 8) & 0xFF;
+          byteLo = bmpWidth & 0xFF;
+          line = String.format("0x%02X, // Width of image\n", byteHi);
+          fOut.writeString(line);
+          line = String.format("0x%02X,\n", byteLo);
+          fOut.writeString(line);
+          /* for 1 bit pixel imahes GUIslice expects 
+           * the foreground color to be output as
+           * red, green, and blue
+           */
+          line = String.format("%3d, // red color\n",colMonochrome.getRed());
+          fOut.writeString(line);
+          line = String.format("%3d, // green color\n",colMonochrome.getGreen());
+          fOut.writeString(line);
+          line = String.format("%3d, // blue color\n",colMonochrome.getBlue());
+          fOut.writeString(line);
+          // Our header is completed so now do the bitmap image
+          if (bParallelExport) {
+            fOut.streamArrayParallel(bmpByteArray);
+          } else {
+            fOut.streamArray(bmpByteArray);
+          }
+        }  else {  
+          line = String.format("%d, // Height of image\n", bmpHeight);
+          fOut.writeString(line);
+          line = String.format("%d, // Width of image\n", bmpWidth);
+          fOut.writeString(line);
+          // Our header is completed so now do the bitmap image
+          if (bStreamPixels && bRLEExport) {
+            final int items = arraySz / 2;
+            final int[] written = new int[1];
+            encodeRLE(createRGB565Iterator(inputImage), 
+                item -> fOut.writeShort(item, ++written[0] == items));
+            fOut.flush();
+          } else if (bStreamPixels) {
+            fOut.streamArray(createRGB565Iterator(inputImage));
+          } else if (bParallelExport) {
+            fOut.streamArrayParallel(decodedImage);
+          } else {
+            fOut.streamArray(decodedImage);
+          }
+        }
+        bWritten = true;
+      } finally {
+        fOut.close();
+        // don't leave a partial file behind
+        if (!bWritten)
+          file.delete();
       }
-      arraySz =  bmpWidth * bmpHeight * 2; 
-      fIn.close();
+      // don't hang on to the pixels, we are a singleton
+      bmpByteArray = null;
+      decodedImage = null;
+    } catch (RuntimeException e) {
+      // let callers know the export failed
+      throw new IOException(e.toString(), e);
     }
-      
-    // We can now output the BMP
-    // Start with the Header info
-    String line;
-    CArrayOutputStream fOut = new CArrayOutputStream(file, bUseLittleEndian);
-    
-    // output our boiler plate
-    fOut.writeString("//------------------------------------------------------------------------------\n");
-    fOut.writeString("// File Generated by GUIslice_Image2C\n");
-    fOut.writeString("//------------------------------------------------------------------------------\n");
-    line = String.format("// Generated from   : %s%s\n",bmpFileName, ext);
-    fOut.writeString(line);
-    line = String.format("// Dimensions       : %dx%d pixels\n",bmpWidth,bmpHeight);
-    fOut.writeString(line);
+  }
+
+  /**
+   * image2Bundle
+   * Convert the image to the same data image2C_Array() would output, 
+   * header included, ready to be added to a BundleWriter.
+   * 
+   * @param inputImage the image to export
+   * @param arrayName the name of the image in the bundle
+   * @return the bundle entry
+   * @throws IOException
+   */
+  public BundleWriter.Entry image2Bundle(BufferedImage inputImage, String arrayName) throws IOException
+  {
+    try {
+    prepareExport(inputImage);
+    BundleWriter.Entry entry;
     if (bmpBpp == 1) {
-      line = String.format("// Bits Per Pixel   : %d Bits\n",1);
+      byte[] pixels = bmpByteArray;
+      if (bRLEExport)
+        pixels = RLEEncoder.encode(pixels).toByteArray();
+      byte[] bytes = new byte[7 + pixels.length];
+      bytes[0] = (byte) (bmpHeight >>> 8);
+      bytes[1] = (byte) bmpHeight;
+      bytes[2] = (byte) (bmpWidth >>> 8);
+      bytes[3] = (byte) bmpWidth;
+      bytes[4] = (byte) colMonochrome.getRed();
+      bytes[5] = (byte) colMonochrome.getGreen();
+      bytes[6] = (byte) colMonochrome.getBlue();
+      System.arraycopy(pixels, 0, bytes, 7, pixels.length);
+      entry = new BundleWriter.Entry(arrayName, bmpWidth, bmpHeight, 1, bRLEExport, null, bytes);
     } else {
-      line = String.format("// Bits Per Pixel   : %d Bits\n",16);
-    }
-    fOut.writeString(line); 
-    line = String.format("// Memory Size      : %d Bytes\n",arraySz);
-    fOut.writeString(line); 
-    line = String.format("// Little Endian    : %s\n",bUseLittleEndian);
-    fOut.writeString(line);
-    fOut.writeString("//------------------------------------------------------------------------------\n");
-    fOut.writeString("\n");
-    
-    fOut.writeString("// For details on how to generate this file please refer to\n");
-    fOut.writeString("// https://github.com/ImpulseAdventure/GUIslice/wiki/Display-Images-from-FLASH\n");
-    fOut.writeString("\n");
-    fOut.writeString("#include \"GUIslice.h\"\n");
-    fOut.writeString("#include \"GUIslice_config.h\"\n");
-    fOut.writeString("\n");
-    if (bCArrayFlash) {
-      fOut.writeString("#if (GSLC_USE_PROGMEM)\n");
-      fOut.writeString("  #if defined(__AVR__)\n");
-      fOut.writeString("    #include <avr/pgmspace.h>\n");
-      fOut.writeString("  #else\n");
-      fOut.writeString("    #include <pgmspace.h>\n");
-      fOut.writeString("  #endif\n");
-      fOut.writeString("#endif\n");
-      fOut.writeString("\n");
-      if (bmpBpp == 1) {
-        line = String.format("const unsigned char %s[%d+7] GSLC_PMEM = {\n", arrayName, arraySz);
+      int[] pixels;
+      if (bRLEExport) {
+        pixels = (decodedImage == null) 
+            ? encodeRLE(createRGB565Iterator(inputImage), null).toShortArray()
+            : RLEEncoder.encode(decodedImage).toShortArray();
       } else {
-        line = String.format("const unsigned short %s[%d+2] GSLC_PMEM = {\n", arrayName, arraySz/2);
-      }
-    } else {
-      if (bmpBpp == 1) {
-        line = String.format("const unsigned char %s[%d+5] = {\n", arrayName, arraySz);
-      } else {
-        line = String.format("const unsigned short %s[%d+2] = {\n", arrayName, arraySz/2);
+        pixels = (decodedImage == null) 
+            ? encodeRGB565(inputImage)
+            : decodedImage;
       }
+      int[] shorts = new int[2 + pixels.length];
+      shorts[0] = bmpHeight;
+      shorts[1] = bmpWidth;
+      System.arraycopy(pixels, 0, shorts, 2, pixels.length);
+      entry = new BundleWriter.Entry(arrayName, bmpWidth, bmpHeight, 16, bRLEExport, shorts, null);
     }
-    fOut.writeString(line);
-    
-    if (bmpBpp == 1) {
-      // output Height and width as two bytes in big endian format
-      int byteHi = (bmpHeight >>> 8) & 0xFF;
-      int byteLo = bmpHeight & 0xFF;
-      line = String.format("0x%02X, // Height of image\n", byteHi);
-      fOut.writeString(line);
-      line = String.format("0x%02X,\n", byteLo);
-      fOut.writeString(line);
-      byteHi = (bmpWidth >>> 8) & 0xFF;
-      byteLo = bmpWidth & 0xFF;
-      line = String.format("0x%02X, // Width of image\n", byteHi);
-      fOut.writeString(line);
-      line = String.format("0x%02X,\n", byteLo);
-      fOut.writeString(line);
-      /* for 1 bit pixel imahes GUIslice expects 
-       * the foreground color to be output as
-       * red, green, and blue
-       */
-      line = String.format("%3d, // red color\n",colMonochrome.getRed());
-      fOut.writeString(line);
-      line = String.format("%3d, // green color\n",colMonochrome.getGreen());
-      fOut.writeString(line);
-      line = String.format("%3d, // blue color\n",colMonochrome.getBlue());
-      fOut.writeString(line);
-      // Our header is completed so now do the bitmap image
-      fOut.streamArray(bmpByteArray);
-    }  else {  
-      line = String.format("%d, // Height of image\n", bmpHeight);
-      fOut.writeString(line);
-      line = String.format("%d, // Width of image\n", bmpWidth);
-      fOut.writeString(line);
-      // Our header is completed
-      // Everything is now stored in variables but our bitmap image needs further processing
-      decodeBitmap(bUseLittleEndian);
-      fOut.streamArray(decodedImage);
-    }
-    fOut.close();
-    } catch (Exception e) {
-      System.out.println(e.toString());
+    // don't hang on to the pixels, we are a singleton
+    bmpByteArray = null;
+    decodedImage = null;
+    return entry;
+    } catch (RuntimeException e) {
+      // let callers know the export failed
+      throw new IOException(e.toString(), e);
     }
   }
 
-  /*
-   * decodeBitmap converts the image to RGB565 colors
-   * Remember: scan lines are inverted in a bitmap file!
-   */
-  private void decodeBitmap(boolean bUseLittleEndian) {
-    int nColRaw;
-    decodedImage = new int[bmpWidth * bmpHeight];
-    int idx = 0;
-    int pos;
-    // BMP rows are padded (if needed) to 4-byte boundary
-    int rowSize = (bmpWidth * 3 + 3) & ~3;
-    int r, g, b;
-    for (int row = 0; row < bmpHeight; row++) { // For each scanline...
+  /**
+   * encodeRLE
+   * Run length encode 16 bit pixel rows as they are converted.
+   * 
+   * @param iter the pixel rows
+   * @param sink takes the encoded items, null to keep them in the encoder
+   * @return the finished encoder
+   */
+  private RLEEncoder encodeRLE(IntPixelIterator iter, IntConsumer sink) {
+    RLEEncoder rle = new RLEEncoder(true, sink);
+    int width = iter.getWidth();
+    int[] row = new int[iter.getMinimumArrayLength()];
+    while (!iter.isDone()) {
+      iter.next(row);
+      for (int x=0; x<width; x++)
+        rle.add(row[x]);
+    }
+    rle.finish();
+    return rle;
+  }
 
-      // position to start of scan line.
-      if (bFlip) {
-        // Bitmap is stored bottom-to-top order (normal BMP)
-        pos = (bmpHeight - 1 - row) * rowSize;
+  /**
+   * image2Binary
+   * Export the image as a raw binary asset for loading from external storage.
+   * The layout matches the C array output:
+   * 16 bit images are height, width and then the RGB565 pixels as 16 bit values
+   * in the requested byte order. 1 bit images are height and width as two bytes 
+   * each in big endian format, the red, green and blue foreground color bytes
+   * and then the packed pixel rows, exactly like the unsigned char array.
+   * 
+   * @param inputImage the image to export
+   * @param file the output file
+   * @param bUseLittleEndian byte order of 16 bit values
+   * @throws IOException
+   */
+  public void image2Binary(BufferedImage inputImage, File file, 
+      boolean bUseLittleEndian) throws IOException
+  {
+    try {
+    prepareExport(inputImage);
+    BinaryOutputStream fOut = new BinaryOutputStream(file, bUseLittleEndian);
+    boolean bWritten = false;
+    try {
+      if (bmpBpp == 1) {
+        fOut.writeByte(bmpHeight >>> 8);
+        fOut.writeByte(bmpHeight);
+        fOut.writeByte(bmpWidth >>> 8);
+        fOut.writeByte(bmpWidth);
+        fOut.writeByte(colMonochrome.getRed());
+        fOut.writeByte(colMonochrome.getGreen());
+        fOut.writeByte(colMonochrome.getBlue());
+        fOut.streamArray(bmpByteArray);
       } else {
-        // Bitmap is stored top-to-bottom
-        pos = row * rowSize;
+        fOut.writeShort(bmpHeight);
+        fOut.writeShort(bmpWidth);
+        if (bStreamExport) {
+          fOut.streamArray(createRGB565Iterator(inputImage));
+        } else {
+          fOut.streamArray(decodedImage);
+        }
       }
-      for (int col = 0; col < bmpWidth; col++) { // For each pixel...
-        // Convert pixel from BMP to TFT format, push to display
-        b = bmpShortArray[pos++];
-        g = bmpShortArray[pos++];
-        r = bmpShortArray[pos++];
-        // Default to DRV_COLORMODE_RGB565
-
-        nColRaw  = (((r & 0xF8) >> 3) << 11); // Mask: 1111 1000 0000 0000
-        nColRaw |= (((g & 0xFC) >> 2) <<  5); // Mask: 0000 0111 1110 0000
-        nColRaw |= (((b & 0xF8) >> 3) <<  0); // Mask: 0000 0000 0001 1111
-        decodedImage[idx++] = (short) (nColRaw);
-      } // end pixel
-    } // end scanline
+      bWritten = true;
+    } finally {
+      fOut.close();
+      // don't leave a partial file behind
+      if (!bWritten)
+        file.delete();
+    }
+    // don't hang on to the pixels, we are a singleton
+    bmpByteArray = null;
+    decodedImage = null;
+    } catch (RuntimeException e) {
+      // let callers know the export failed
+      throw new IOException(e.toString(), e);
+    }
   }
 
   /**
@@ -0,0 +1,402 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.common;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.pump.image.pixel.BufferedImageIterator;
+import com.pump.image.pixel.IntARGBConverter;
+import com.pump.image.pixel.quantize.ColorLUT;
+import com.pump.image.pixel.quantize.ColorSet;
+
+/**
+ * The Class PaletteCache.
+ * Remembers the palettes picked by ImageUtils.colorQuantizer(), so a 
+ * batch with repeated images (the same icon in several sizes of output,
+ * or a sprite sheet with recurring frames) runs the quantizer only once.
+ * 
+ * A palette is found by a 64 bit fingerprint of the image's color 
+ * histogram, or of its pixels when no histogram was counted, plus the 
+ * settings that change the palette. The dither is not part of the key
+ * because it only changes how pixels are mapped onto the palette.
+ * 
+ * The least recently used palettes are dropped once the cache holds 
+ * more than its maximum size, an estimate in bytes of the lookup tables.
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class PaletteCache {
+  
+  /** The default maximum size, 4 MB. */
+  public final static long DEFAULT_MAXIMUM_SIZE = 4L * 1024 * 1024;
+  
+  /** The estimated bytes of a ColorLUT before any colors are added. */
+  private final static int LUT_SIZE = 20 * 1024;
+  
+  /** The estimated bytes each color adds to a ColorLUT. */
+  private final static int COLOR_SIZE = 128;
+  
+  /** The bytes of the inverse colormap of a ColorLUT, 64x64x64 shorts. */
+  private final static int INVERSE_COLORMAP_SIZE = 2 * 64 * 64 * 64;
+  
+  /** The palettes, least recently used first. */
+  private final LinkedHashMap<Key, Palette> entries = 
+      new LinkedHashMap<Key, Palette>(16, 0.75f, true);
+  
+  /** The most bytes to hold, 0 to disable the cache. */
+  private long maximumSize;
+  
+  /** The bytes held. */
+  private long size;
+  
+  /** The hits. */
+  private long hits;
+  
+  /** The misses. */
+  private long misses;
+  
+  /** The evictions. */
+  private long evictions;
+  
+  /**
+   * Instantiates a new palette cache.
+   *
+   * @param maximumSize
+   *          the most bytes to hold, 0 to disable the cache
+   */
+  public PaletteCache(long maximumSize) {
+    setMaximumSize(maximumSize);
+  }
+  
+  /**
+   * The Class Key.
+   * The fingerprint of an image plus the settings used to reduce it.
+   */
+  public static class Key {
+    
+    private final long fingerprint;
+    private final long pixels;
+    private final int nColors;
+    private final int algorithm;
+    private final int nRefineIterations;
+    private final boolean bPerceptual;
+    private final boolean bInverseColormap;
+    
+    /**
+     * Instantiates a new key.
+     *
+     * @param fingerprint
+     *          see fingerprint()
+     * @param pixels
+     *          the number of pixels of the image
+     * @param nColors
+     *          the most colors in the palette
+     * @param algorithm
+     *          the color reduction algorithm
+     * @param nRefineIterations
+     *          the most k-means passes over the palette
+     * @param bPerceptual
+     *          colors are compared in OKLab
+     * @param bInverseColormap
+     *          pixels are matched through an inverse colormap
+     */
+    public Key(long fingerprint, long pixels, int nColors, int algorithm, 
+        int nRefineIterations, boolean bPerceptual, boolean bInverseColormap) {
+      this.fingerprint = fingerprint;
+      this.pixels = pixels;
+      this.nColors = nColors;
+      this.algorithm = algorithm;
+      this.nRefineIterations = nRefineIterations;
+      this.bPerceptual = bPerceptual;
+      this.bInverseColormap = bInverseColormap;
+    }
+    
+    @Override
+    public int hashCode() {
+      return (int) (fingerprint ^ (fingerprint >>> 32)) 
+          + 31 * (nColors + 31 * (algorithm + 31 * nRefineIterations));
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key k = (Key) obj;
+      return fingerprint == k.fingerprint && pixels == k.pixels 
+          && nColors == k.nColors && algorithm == k.algorithm 
+          && nRefineIterations == k.nRefineIterations 
+          && bPerceptual == k.bPerceptual
+          && bInverseColormap == k.bInverseColormap;
+    }
+  }
+  
+  /**
+   * The Class Palette.
+   * A cached palette.
+   */
+  public static class Palette {
+    
+    private final ColorLUT lut;
+    private final boolean bExact;
+    
+    /**
+     * Instantiates a new palette.
+     *
+     * @param lut
+     *          the lookup table of the palette
+     * @param bExact
+     *          the palette holds every color of the image
+     */
+    public Palette(ColorLUT lut, boolean bExact) {
+      this.lut = lut;
+      this.bExact = bExact;
+    }
+    
+    /**
+     * get LUT
+     * @return the lookup table, this may be shared by several threads
+     */
+    public ColorLUT getLUT() {
+      return lut;
+    }
+    
+    /**
+     * is exact
+     * @return <code>true</code> if the palette holds every color of the image
+     */
+    public boolean isExact() {
+      return bExact;
+    }
+    
+    /**
+     * get size
+     * @return the estimated bytes of the lookup table
+     */
+    long getSize() {
+      return LUT_SIZE + (long) COLOR_SIZE * lut.getIndexColorModel().getMapSize()
+          + (lut.isInverseColormap() ? INVERSE_COLORMAP_SIZE : 0);
+    }
+  }
+  
+  /**
+   * fingerprint
+   * A 64 bit hash of a color histogram. It depends only on the colors
+   * and how often each occurs, not on where they are in the image.
+   *
+   * @param colors
+   *          the histogram
+   * @return the fingerprint
+   */
+  public static long fingerprint(ColorSet colors) {
+    long h = 0;
+    synchronized (colors) {
+      Map<Integer, Integer> frequencyMap = colors.getRGBtoFrequencyMap(false);
+      for (Map.Entry<Integer, Integer> entry : frequencyMap.entrySet()) {
+        h += mix(((long) entry.getKey() << 32) | (entry.getValue() & 0xffffffffL));
+      }
+      return mix(h + frequencyMap.size());
+    }
+  }
+  
+  /**
+   * fingerprint
+   * A 64 bit hash of the pixels of an image, for when the histogram 
+   * was not counted.
+   *
+   * @param image
+   *          the image
+   * @return the fingerprint
+   */
+  public static long fingerprint(BufferedImage image) {
+    IntARGBConverter iter = new IntARGBConverter(BufferedImageIterator.get(image));
+    int[] row = new int[iter.getWidth()];
+    long h = iter.getWidth();
+    while (!iter.isDone()) {
+      iter.next(row);
+      for (int x = 0; x < row.length; x++) {
+        h = (h ^ row[x]) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+      }
+    }
+    return mix(h);
+  }
+  
+  /** The splitmix64 finalizer, every input bit affects every output bit. */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+  
+  /**
+   * get
+   * Look up a palette, counting a hit or a miss.
+   *
+   * @param key
+   *          the key
+   * @return the palette, or null if it is not cached
+   */
+  public synchronized Palette get(Key key) {
+    Palette palette = entries.get(key);
+    if (palette == null)
+      misses++;
+    else
+      hits++;
+    return palette;
+  }
+  
+  /**
+   * put
+   * Add a palette, dropping the least recently used ones if the cache
+   * grows past its maximum size.
+   *
+   * @param key
+   *          the key
+   * @param palette
+   *          the palette
+   */
+  public synchronized void put(Key key, Palette palette) {
+    if (palette.getSize() > maximumSize)
+      return;
+    Palette old = entries.put(key, palette);
+    if (old != null)
+      size -= old.getSize();
+    size += palette.getSize();
+    trim();
+  }
+  
+  /**
+   * Drop the least recently used palettes until the cache fits.
+   */
+  private void trim() {
+    Iterator<Palette> i = entries.values().iterator();
+    while (size > maximumSize && i.hasNext()) {
+      size -= i.next().getSize();
+      i.remove();
+      evictions++;
+    }
+  }
+  
+  /**
+   * clear
+   * Drop every palette, the counters are kept.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+  
+  /**
+   * Set maximum size
+   *
+   * @param maximumSize
+   *          the most bytes to hold, 0 to disable the cache
+   */
+  public synchronized void setMaximumSize(long maximumSize) {
+    if (maximumSize < 0)
+      throw new IllegalArgumentException("Unsupported cache size: " + maximumSize);
+    this.maximumSize = maximumSize;
+    trim();
+  }
+  
+  /**
+   * get maximum size
+   * @return the most bytes to hold, 0 if the cache is disabled
+   */
+  public synchronized long getMaximumSize() {
+    return maximumSize;
+  }
+  
+  /**
+   * is enabled
+   * @return <code>true</code> if palettes are cached
+   */
+  public synchronized boolean isEnabled() {
+    return maximumSize > 0;
+  }
+  
+  /**
+   * get size
+   * @return the estimated bytes held
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+  
+  /**
+   * get entry count
+   * @return the number of palettes held
+   */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+  
+  /**
+   * get hit count
+   * @return the number of lookups that found a palette
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+  
+  /**
+   * get miss count
+   * @return the number of lookups that did not
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+  
+  /**
+   * get eviction count
+   * @return the number of palettes dropped to stay under the maximum size
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+  
+  /**
+   * reset counters
+   * Zero the hit, miss and eviction counts.
+   */
+  public synchronized void resetCounters() {
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+  }
+  
+  @Override
+  public synchronized String toString() {
+    return "PaletteCache[entries=" + entries.size() + ", size=" + size 
+        + ", maximumSize=" + maximumSize + ", hits=" + hits 
+        + ", misses=" + misses + ", evictions=" + evictions + "]";
+  }
+
+}
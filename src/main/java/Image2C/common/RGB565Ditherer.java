@@ -0,0 +1,460 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.common;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import com.pump.image.pixel.IntPixelIterator;
+import com.pump.image.pixel.quantize.ErrorDiffusionImageQuantization;
+import com.pump.image.pixel.quantize.ImageQuantization;
+import com.pump.image.pixel.quantize.OrderedDitherImageQuantization;
+
+/**
+ * The Class RGB565Ditherer.
+ * Converts a BufferedImage into RGB565 pixels like RGB565Encoder,
+ * but dithers each channel into its 5 or 6 bits instead of truncating
+ * it, so gradients don't band.
+ * 
+ * The 5-6-5 levels are a fixed grid, so each channel is simply rounded 
+ * to its nearest level with a lookup table. That is what makes this
+ * cheap compared to searching a 65536 color ColorLUT. The dithering is 
+ * taken from an ImageQuantization: error diffusion kernels spread the 
+ * rounding error of each channel to the pixels that follow, ordered 
+ * dithering offsets each channel by a tiled threshold matrix scaled to 
+ * the level spacing, and anything else rounds to the nearest level.
+ * 
+ * Rows are read one at a time so createIterator() only needs O(width) 
+ * memory. Ordered dithering doesn't depend on the other pixels, so
+ * encodeParallel() converts bands of rows on the fork join pool, error
+ * diffusion is always converted one row after another.
+ * 
+ * Fully transparent pixels are written as the exact RGB565 value of 
+ * the background, the key the device checks for, so they are neither
+ * dithered nor take part in error diffusion.
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class RGB565Ditherer {
+
+  /** The 8 bit value each 5 bit level stands for. */
+  private final static int[] LEVELS5 = createLevels(5);
+
+  /** The 8 bit value each 6 bit level stands for. */
+  private final static int[] LEVELS6 = createLevels(6);
+
+  /** The nearest 5 bit level of each 8 bit value. */
+  private final static int[] NEAREST5 = createNearest(LEVELS5);
+
+  /** The nearest 6 bit level of each 8 bit value. */
+  private final static int[] NEAREST6 = createNearest(LEVELS6);
+
+  /** The error diffusion kernel, or null. */
+  private final int[][] kernel;
+  
+  /** The sum of the kernel. */
+  private final int kernelSum;
+  
+  /** The threshold matrix, or null. */
+  private final int[][] matrix;
+
+  /** The red and blue offset of each matrix cell, in row major order. */
+  private final int[] offsets5;
+
+  /** The green offset of each matrix cell, in row major order. */
+  private final int[] offsets6;
+
+  /**
+   * Instantiates a new RGB565 ditherer.
+   *
+   * @param quantization
+   *          an ErrorDiffusionImageQuantization, an 
+   *          OrderedDitherImageQuantization or anything else to round 
+   *          to the nearest level
+   */
+  public RGB565Ditherer(ImageQuantization quantization) {
+    if (quantization instanceof ErrorDiffusionImageQuantization) {
+      kernel = ((ErrorDiffusionImageQuantization) quantization).getKernel();
+      int sum = 0;
+      for (int[] row : kernel)
+        for (int k : row)
+          sum += k;
+      kernelSum = sum;
+    } else {
+      kernel = null;
+      kernelSum = 0;
+    }
+    if (quantization instanceof OrderedDitherImageQuantization) {
+      matrix = ((OrderedDitherImageQuantization) quantization).getMatrix();
+      offsets5 = createOffsets(matrix, 255.0 / 31);
+      offsets6 = createOffsets(matrix, 255.0 / 63);
+    } else {
+      matrix = null;
+      offsets5 = null;
+      offsets6 = null;
+    }
+  }
+
+  /**
+   * createLevels
+   * The 8 bit values of the levels, the bits are repeated so
+   * the highest level is 255.
+   */
+  private static int[] createLevels(int bits) {
+    int[] levels = new int[1 << bits];
+    for (int k = 0; k < levels.length; k++) {
+      levels[k] = (k << (8 - bits)) | (k >> (2 * bits - 8));
+    }
+    return levels;
+  }
+
+  /**
+   * createNearest
+   * For each 8 bit value the closest level, the lower one on a tie.
+   */
+  private static int[] createNearest(int[] levels) {
+    int[] nearest = new int[256];
+    int k = 0;
+    for (int v = 0; v < 256; v++) {
+      while (k + 1 < levels.length 
+          && levels[k + 1] - v < v - levels[k])
+        k++;
+      nearest[v] = k;
+    }
+    return nearest;
+  }
+
+  /**
+   * createOffsets
+   * Scale the ranks of a threshold matrix to offsets centered on zero 
+   * that span one level.
+   */
+  private static int[] createOffsets(int[][] matrix, double step) {
+    int height = matrix.length;
+    int width = matrix[0].length;
+    int cells = width * height;
+    int[] offsets = new int[cells];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        double t = (matrix[y][x] + 0.5) / cells - 0.5;
+        offsets[y * width + x] = (int) Math.round(t * step);
+      }
+    }
+    return offsets;
+  }
+  
+  private static int clamp(int v) {
+    return Math.min(Math.max(v, 0), 255);
+  }
+
+  /**
+   * encode
+   * Convert the whole image to dithered RGB565 pixels, top row first.
+   *
+   * @param image
+   *          the image to convert
+   * @param background
+   *          the color used for transparent pixels
+   * @return the RGB565 pixels, one per array entry
+   */
+  public int[] encode(BufferedImage image, Color background) {
+    int width = image.getWidth();
+    int[] pixels = new int[width * image.getHeight()];
+    encodeRows(createIterator(image, background), pixels, 0);
+    return pixels;
+  }
+  
+  /**
+   * encodeParallel
+   * Same as encode() but bands of rows are converted on separate cores,
+   * unless this is error diffusion.
+   *
+   * @param image
+   *          the image to convert
+   * @param background
+   *          the color used for transparent pixels
+   * @return the RGB565 pixels, one per array entry
+   */
+  public int[] encodeParallel(BufferedImage image, Color background) {
+    if (kernel != null)
+      return encode(image, background);
+    int[] pixels = new int[image.getWidth() * image.getHeight()];
+    new DitherBand(image, background, 0, image.getHeight(), pixels).invoke();
+    return pixels;
+  }
+
+  /**
+   * createIterator
+   * Create an iterator returning one scan line of dithered RGB565 
+   * pixels at a time, top row first.
+   *
+   * @param image
+   *          the image to convert
+   * @param background
+   *          the color used for transparent pixels
+   * @return the iterator
+   */
+  public IntPixelIterator createIterator(BufferedImage image, Color background) {
+    return new DitherIterator(image, background, 0);
+  }
+  
+  private static void encodeRows(IntPixelIterator iter, int[] dest, int destOff) {
+    int width = iter.getWidth();
+    int[] row = new int[iter.getMinimumArrayLength()];
+    int idx = destOff;
+    while (!iter.isDone()) {
+      iter.next(row);
+      System.arraycopy(row, 0, dest, idx, width);
+      idx += width;
+    }
+  }
+
+  /**
+   * The Class DitherIterator.
+   * Reads opaque rows from a RGB565Encoder.RowIterator and 
+   * dithers them.
+   */
+  class DitherIterator implements IntPixelIterator {
+    
+    /** The rows. */
+    private final RGB565Encoder.RowIterator source;
+    
+    /** The row of the whole image, for the threshold matrix. */
+    private int y;
+    
+    /** The RGB565 value of transparent pixels. */
+    private final int key;
+    
+    /** Which pixels of the current row are fully transparent. */
+    private final boolean[] transparent;
+
+    /** The error diffused into the following rows, indexed by [kernel row][x]. */
+    private int[][] diffusionR, diffusionG, diffusionB;
+    
+    /**
+     * Instantiates a new dither iterator.
+     *
+     * @param image
+     *          the image, or a band of rows of it
+     * @param background
+     *          the background color
+     * @param firstRow
+     *          the row of the whole image the first row of image is
+     */
+    DitherIterator(BufferedImage image, Color background, int firstRow) {
+      source = new RGB565Encoder.RowIterator(image, background);
+      y = firstRow;
+      key = RGB565Encoder.toRGB565(background.getRGB());
+      transparent = new boolean[image.getWidth()];
+      if (kernel != null) {
+        diffusionR = new int[kernel.length][image.getWidth()];
+        diffusionG = new int[kernel.length][image.getWidth()];
+        diffusionB = new int[kernel.length][image.getWidth()];
+      }
+    }
+
+    public void next(int[] dest) {
+      source.nextRGB(dest, transparent);
+      if (kernel != null) {
+        diffuse(dest);
+      } else if (matrix != null) {
+        order(dest);
+      } else {
+        int width = getWidth();
+        for (int x = 0; x < width; x++) {
+          if (transparent[x]) {
+            dest[x] = key;
+            continue;
+          }
+          int p = dest[x];
+          dest[x] = (NEAREST5[(p >> 16) & 0xFF] << 11) 
+              | (NEAREST6[(p >> 8) & 0xFF] << 5) 
+              | NEAREST5[p & 0xFF];
+        }
+      }
+      y++;
+    }
+    
+    private void order(int[] dest) {
+      int width = getWidth();
+      int matrixWidth = matrix[0].length;
+      int base = (y % matrix.length) * matrixWidth;
+      for (int x = 0; x < width; x++) {
+        if (transparent[x]) {
+          dest[x] = key;
+          continue;
+        }
+        int p = dest[x];
+        int cell = base + x % matrixWidth;
+        int o5 = offsets5[cell];
+        int o6 = offsets6[cell];
+        dest[x] = (NEAREST5[clamp(((p >> 16) & 0xFF) + o5)] << 11) 
+            | (NEAREST6[clamp(((p >> 8) & 0xFF) + o6)] << 5) 
+            | NEAREST5[clamp((p & 0xFF) + o5)];
+      }
+    }
+    
+    private void diffuse(int[] dest) {
+      int width = getWidth();
+      int z = kernel[0].length / 2;
+      for (int x = 0; x < width; x++) {
+        if (transparent[x]) {
+          // any error diffused into the pixel is dropped
+          dest[x] = key;
+          continue;
+        }
+        int p = dest[x];
+        int r = clamp(((p >> 16) & 0xFF) + diffusionR[0][x] / kernelSum);
+        int g = clamp(((p >> 8) & 0xFF) + diffusionG[0][x] / kernelSum);
+        int b = clamp((p & 0xFF) + diffusionB[0][x] / kernelSum);
+        int qr = NEAREST5[r];
+        int qg = NEAREST6[g];
+        int qb = NEAREST5[b];
+        int dr = r - LEVELS5[qr];
+        int dg = g - LEVELS6[qg];
+        int db = b - LEVELS5[qb];
+        for (int ky = 0; ky < kernel.length; ky++) {
+          for (int kx = 0; kx < kernel[ky].length; kx++) {
+            int tx = x + kx - z;
+            if (tx >= 0 && tx < width) {
+              diffusionR[ky][tx] += dr * kernel[ky][kx];
+              diffusionG[ky][tx] += dg * kernel[ky][kx];
+              diffusionB[ky][tx] += db * kernel[ky][kx];
+            }
+          }
+        }
+        dest[x] = (qr << 11) | (qg << 5) | qb;
+      }
+      iterateDiffusionData(diffusionR);
+      iterateDiffusionData(diffusionG);
+      iterateDiffusionData(diffusionB);
+    }
+    
+    private void iterateDiffusionData(int[][] data) {
+      int[] swap = data[0];
+      for (int a = 0; a < data.length - 1; a++) {
+        data[a] = data[a + 1];
+      }
+      data[data.length - 1] = swap;
+      Arrays.fill(swap, 0);
+    }
+    
+    public void skip() {
+      source.skip();
+      if (kernel != null) {
+        iterateDiffusionData(diffusionR);
+        iterateDiffusionData(diffusionG);
+        iterateDiffusionData(diffusionB);
+      }
+      y++;
+    }
+    
+    public int getType() {
+      return BufferedImage.TYPE_USHORT_565_RGB;
+    }
+
+    public boolean isOpaque() {
+      return true;
+    }
+
+    public int getPixelSize() {
+      return 1;
+    }
+
+    public boolean isDone() {
+      return source.isDone();
+    }
+
+    public boolean isTopDown() {
+      return true;
+    }
+
+    public int getWidth() {
+      return source.getWidth();
+    }
+
+    public int getHeight() {
+      return source.getHeight();
+    }
+
+    public int getMinimumArrayLength() {
+      return getWidth();
+    }
+  }
+
+  /**
+   * The Class DitherBand.
+   * Dithers a band of rows, splitting it in two until 
+   * the band is small enough.
+   */
+  class DitherBand extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    /** The Constant MIN_PIXELS is the smallest band worth splitting. */
+    private final static int MIN_PIXELS = 32 * 1024;
+
+    /** The image. */
+    final BufferedImage image;
+    
+    /** The background color. */
+    final Color background;
+    
+    /** The first row. */
+    final int firstRow;
+    
+    /** One past the last row. */
+    final int endRow;
+    
+    /** The pixels. */
+    final int[] dest;
+
+    DitherBand(BufferedImage image, Color background, int firstRow, int endRow, int[] dest) {
+      this.image = image;
+      this.background = background;
+      this.firstRow = firstRow;
+      this.endRow = endRow;
+      this.dest = dest;
+    }
+
+    @Override
+    protected void compute() {
+      int width = image.getWidth();
+      int rows = endRow - firstRow;
+      if (rows < 2 || rows * width <= MIN_PIXELS) {
+        BufferedImage band = image.getSubimage(0, firstRow, width, rows);
+        encodeRows(new DitherIterator(band, background, firstRow), dest, firstRow * width);
+      } else {
+        int mid = firstRow + rows / 2;
+        invokeAll(new DitherBand(image, background, firstRow, mid, dest),
+            new DitherBand(image, background, mid, endRow, dest));
+      }
+    }
+  }
+
+}
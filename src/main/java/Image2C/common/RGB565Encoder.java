@@ -0,0 +1,536 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.common;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import com.pump.image.pixel.BufferedImageIterator;
+import com.pump.image.pixel.IntARGBConverter;
+import com.pump.image.pixel.IntPixelIterator;
+
+/**
+ * The Class RGB565Encoder.
+ * Converts a BufferedImage into packed RGB565 pixels by reading
+ * the image's raster directly.
+ * 
+ * The common image types (INT_RGB, INT_ARGB, INT_BGR, 3BYTE_BGR 
+ * and 4BYTE_ABGR) are decoded straight out of their DataBufferInt 
+ * or DataBufferByte. Transparent pixels are blended with the 
+ * background color using the same rounding as Graphics2D. Any other
+ * image type is first flattened onto a 24 bit image exactly as
+ * ImageUtils.convertTo24() would do it, so the output is always
+ * identical to the older BMP based export.
+ * 
+ * For large images createIterator() hands out the pixels one scan 
+ * line at a time so only O(width) memory is needed, and 
+ * encodeParallel() splits the work into bands of rows for the
+ * fork join pool.
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class RGB565Encoder {
+
+  /**
+   * Instantiates a new RGB565 encoder.
+   */
+  private RGB565Encoder() {
+  }
+  
+  /**
+   * encode
+   * Convert the whole image to RGB565 pixels, top row first.
+   *
+   * @param image
+   *          the image to convert
+   * @param background
+   *          the color used for transparent pixels
+   * @return the RGB565 pixels, one per array entry
+   */
+  public static int[] encode(BufferedImage image, Color background) {
+    int[] pixels = new int[image.getWidth() * image.getHeight()];
+    if (!encodeRows(image, background.getRGB(), 0, image.getHeight(), pixels, 0)) {
+      encodeRows(flatten(image, background), background.getRGB(), 0, image.getHeight(), pixels, 0);
+    }
+    return pixels;
+  }
+  
+  /**
+   * encodeParallel
+   * Same as encode() but bands of rows are converted on separate cores.
+   *
+   * @param image
+   *          the image to convert
+   * @param background
+   *          the color used for transparent pixels
+   * @return the RGB565 pixels, one per array entry
+   */
+  public static int[] encodeParallel(BufferedImage image, Color background) {
+    if (!isDirect(image)) {
+      image = flatten(image, background);
+    }
+    int[] pixels = new int[image.getWidth() * image.getHeight()];
+    new EncodeBand(image, background.getRGB(), 0, image.getHeight(), pixels).invoke();
+    return pixels;
+  }
+  
+  /**
+   * flatten
+   * Draw the image onto an opaque 24 bit image using the background color 
+   * for transparent pixels. This is the slow path for image types we can't 
+   * decode directly.
+   *
+   * @param image
+   *          the image
+   * @param background
+   *          the background color
+   * @return the opaque <code>TYPE_INT_RGB</code> image
+   */
+  public static BufferedImage flatten(BufferedImage image, Color background) {
+    BufferedImage outputImage = new BufferedImage(image.getWidth(),
+        image.getHeight(), BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2d = outputImage.createGraphics();
+    g2d.drawImage(image, 0, 0, image.getWidth(), image.getHeight(), background, null);
+    g2d.dispose();
+    return outputImage;
+  }
+  
+  /**
+   * isDirect
+   * Test if the image type can be read without flattening it first.
+   *
+   * @param image
+   *          the image
+   * @return <code>true</code> if the raster can be decoded directly
+   */
+  public static boolean isDirect(BufferedImage image) {
+    switch (image.getType()) {
+      case BufferedImage.TYPE_INT_RGB:
+      case BufferedImage.TYPE_INT_ARGB:
+      case BufferedImage.TYPE_INT_BGR:
+        return image.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel;
+      case BufferedImage.TYPE_3BYTE_BGR:
+      case BufferedImage.TYPE_4BYTE_ABGR:
+        return image.getRaster().getSampleModel() instanceof ComponentSampleModel;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * encodeRows
+   * Convert a range of scan lines to RGB565 pixels.
+   *
+   * @param image
+   *          the image
+   * @param background
+   *          the ARGB color used for fully transparent pixels
+   * @param firstRow
+   *          the first row to convert
+   * @param endRow
+   *          one past the last row to convert
+   * @param dest
+   *          the array receiving the pixels
+   * @param destOff
+   *          the offset into dest for the first pixel
+   * @return <code>false</code> if the image must be flattened first
+   */
+  public static boolean encodeRows(BufferedImage image, int background, 
+      int firstRow, int endRow, int[] dest, int destOff) {
+    if (!isDirect(image)) {
+      return false;
+    }
+    int width = image.getWidth();
+    // note: grabbing the data array stops java2d from caching the image
+    // in video memory, that's fine since we are only exporting it.
+    WritableRaster raster = image.getRaster();
+    DataBuffer db = raster.getDataBuffer();
+    SampleModel sm = raster.getSampleModel();
+    int tx = raster.getSampleModelTranslateX();
+    int ty = raster.getSampleModelTranslateY();
+    int idx = destOff;
+    int type = image.getType();
+    if (db instanceof DataBufferInt) {
+      int[] data = ((DataBufferInt) db).getData();
+      int stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+      for (int row = firstRow; row < endRow; row++) {
+        int pos = db.getOffset() + (row - ty) * stride - tx;
+        for (int col = 0; col < width; col++) {
+          int p = data[pos++];
+          switch (type) {
+            case BufferedImage.TYPE_INT_ARGB:
+              p = composite(p, background);
+              break;
+            case BufferedImage.TYPE_INT_BGR:
+              p = ((p & 0xFF) << 16) | (p & 0xFF00) | ((p >> 16) & 0xFF);
+              break;
+            default:
+              break;
+          }
+          dest[idx++] = toRGB565(p);
+        } // end pixel
+      } // end scanline
+    } else if (db instanceof DataBufferByte) {
+      byte[] data = ((DataBufferByte) db).getData();
+      ComponentSampleModel csm = (ComponentSampleModel) sm;
+      int stride = csm.getScanlineStride();
+      int pixelStride = csm.getPixelStride();
+      int[] bandOffsets = csm.getBandOffsets();
+      int rOff = bandOffsets[0];
+      int gOff = bandOffsets[1];
+      int bOff = bandOffsets[2];
+      int aOff = (bandOffsets.length > 3) ? bandOffsets[3] : -1;
+      for (int row = firstRow; row < endRow; row++) {
+        int pos = db.getOffset() + (row - ty) * stride - tx * pixelStride;
+        for (int col = 0; col < width; col++, pos += pixelStride) {
+          int p = ((data[pos + rOff] & 0xFF) << 16) 
+              | ((data[pos + gOff] & 0xFF) << 8) 
+              | (data[pos + bOff] & 0xFF);
+          if (aOff >= 0) {
+            p = composite(((data[pos + aOff] & 0xFF) << 24) | p, background);
+          }
+          dest[idx++] = toRGB565(p);
+        } // end pixel
+      } // end scanline
+    } else {
+      return false;
+    }
+    return true;
+  }
+  
+  /**
+   * createIterator
+   * Create an iterator returning one scan line of RGB565 pixels 
+   * at a time, top row first.
+   *
+   * @param image
+   *          the image to convert
+   * @param background
+   *          the color used for transparent pixels
+   * @return the iterator
+   */
+  public static IntPixelIterator createIterator(BufferedImage image, Color background) {
+    return new RowIterator(image, background);
+  }
+  
+  /**
+   * composite
+   * Blend a non-premultiplied ARGB color over an opaque background.
+   *
+   * @param argb
+   *          the color
+   * @param background
+   *          the background color, alpha is ignored
+   * @return the opaque result as RGB888
+   */
+  public static int composite(int argb, int background) {
+    int alpha = argb >>> 24;
+    if (alpha == 0xFF) {
+      return argb & 0xFFFFFF;
+    } else if (alpha == 0) {
+      return background & 0xFFFFFF;
+    }
+    int inv = 0xFF - alpha;
+    int r = mul8(alpha, (argb >> 16) & 0xFF) + mul8(inv, (background >> 16) & 0xFF);
+    int g = mul8(alpha, (argb >> 8) & 0xFF) + mul8(inv, (background >> 8) & 0xFF);
+    int b = mul8(alpha, argb & 0xFF) + mul8(inv, background & 0xFF);
+    return (r << 16) | (g << 8) | b;
+  }
+  
+  /**
+   * mul8
+   * Multiply two 0-255 values, same rounding as java2d's mul8table
+   * so our blends match Graphics2D.drawImage().
+   */
+  private static int mul8(int a, int b) {
+    return (a * b * 0x10101 + 0x800000) >>> 24;
+  }
+  
+  /**
+   * toRGB565
+   * Convert a RGB888 color, any alpha is ignored, to RGB565.
+   *
+   * @param rgb
+   *          the color as an integer
+   * @return RGB565 format color
+   */
+  public static int toRGB565(int rgb) {
+    return ((rgb >> 8) & 0xF800) | ((rgb >> 5) & 0x07E0) | ((rgb >> 3) & 0x001F);
+  }
+  
+  /**
+   * toRGB565
+   * Convert red, green and blue components to RGB565.
+   *
+   * @param r
+   *          the red value
+   * @param g
+   *          the green value
+   * @param b
+   *          the blue value
+   * @return RGB565 format color
+   */
+  public static int toRGB565(int r, int g, int b) {
+    int nColRaw  = (((r & 0xF8) >> 3) << 11); // Mask: 1111 1000 0000 0000
+    nColRaw |= (((g & 0xFC) >> 2) <<  5); // Mask: 0000 0111 1110 0000
+    nColRaw |= (((b & 0xF8) >> 3) <<  0); // Mask: 0000 0000 0001 1111
+    return nColRaw;
+  }
+
+  /**
+   * The Class RowIterator.
+   * Reads the image through a PixelIterator and converts each
+   * row to RGB565. Image types the pixel converters can't 
+   * reproduce exactly are flattened a row at a time instead.
+   */
+  static class RowIterator implements IntPixelIterator {
+    
+    /** The image. */
+    private final BufferedImage image;
+    
+    /** The background color. */
+    private final Color background;
+    
+    /** The ARGB rows, null if we flatten rows ourselves. */
+    private final IntARGBConverter argb;
+    
+    /** The scratch row. */
+    private int[] scratch;
+    
+    /** The flattened row image. */
+    private BufferedImage rowImage;
+    
+    /** The graphics drawing into rowImage. */
+    private Graphics2D g2d;
+    
+    /** The current row. */
+    private int y;
+    
+    /**
+     * Instantiates a new row iterator.
+     *
+     * @param image
+     *          the image
+     * @param background
+     *          the background color
+     */
+    RowIterator(BufferedImage image, Color background) {
+      this.image = image;
+      this.background = background;
+      switch (image.getType()) {
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_INT_BGR:
+        case BufferedImage.TYPE_3BYTE_BGR:
+        case BufferedImage.TYPE_4BYTE_ABGR:
+        case BufferedImage.TYPE_BYTE_GRAY:
+        case BufferedImage.TYPE_BYTE_INDEXED:
+          argb = new IntARGBConverter(BufferedImageIterator.get(image));
+          scratch = new int[argb.getMinimumArrayLength()];
+          break;
+        default:
+          argb = null;
+          break;
+      }
+      y = 0;
+    }
+    
+    public void next(int[] dest) {
+      nextRGB(dest);
+      int width = getWidth();
+      for (int x = 0; x < width; x++) {
+        dest[x] = toRGB565(dest[x]);
+      }
+    }
+    
+    /**
+     * nextRGB
+     * Read the next row as opaque RGB888 pixels, transparent pixels 
+     * are blended with the background.
+     *
+     * @param dest
+     *          the array receiving the pixels
+     */
+    void nextRGB(int[] dest) {
+      nextRGB(dest, null);
+    }
+    
+    /**
+     * nextRGB
+     * Read the next row as opaque RGB888 pixels, transparent pixels 
+     * are blended with the background.
+     *
+     * @param dest
+     *          the array receiving the pixels
+     * @param transparent
+     *          if not null, receives which pixels are fully transparent
+     *          and so became the background color
+     */
+    void nextRGB(int[] dest, boolean[] transparent) {
+      if (y >= getHeight())
+        throw new RuntimeException("end of data reached");
+      int width = getWidth();
+      int bg = background.getRGB();
+      if (argb != null) {
+        argb.next(scratch);
+        for (int x = 0; x < width; x++) {
+          dest[x] = composite(scratch[x], bg);
+        }
+        if (transparent != null) {
+          for (int x = 0; x < width; x++) {
+            transparent[x] = (scratch[x] >>> 24) == 0;
+          }
+        }
+      } else {
+        if (transparent != null) {
+          if (image.getColorModel().hasAlpha()) {
+            if (scratch == null)
+              scratch = new int[width];
+            image.getRGB(0, y, width, 1, scratch, 0, width);
+            for (int x = 0; x < width; x++) {
+              transparent[x] = (scratch[x] >>> 24) == 0;
+            }
+          } else {
+            Arrays.fill(transparent, 0, width, false);
+          }
+        }
+        if (rowImage == null) {
+          rowImage = new BufferedImage(width, 1, BufferedImage.TYPE_INT_RGB);
+          g2d = rowImage.createGraphics();
+        }
+        g2d.drawImage(image.getSubimage(0, y, width, 1), 0, 0, background, null);
+        rowImage.getRaster().getDataElements(0, 0, width, 1, dest);
+        for (int x = 0; x < width; x++) {
+          dest[x] &= 0xFFFFFF;
+        }
+      }
+      y++;
+      if (isDone() && g2d != null) {
+        g2d.dispose();
+        g2d = null;
+      }
+    }
+    
+    public void skip() {
+      if (argb != null) {
+        argb.skip();
+      }
+      y++;
+    }
+    
+    public int getType() {
+      return BufferedImage.TYPE_USHORT_565_RGB;
+    }
+
+    public boolean isOpaque() {
+      return true;
+    }
+
+    public int getPixelSize() {
+      return 1;
+    }
+
+    public boolean isDone() {
+      return y >= getHeight();
+    }
+
+    public boolean isTopDown() {
+      return true;
+    }
+
+    public int getWidth() {
+      return image.getWidth();
+    }
+
+    public int getHeight() {
+      return image.getHeight();
+    }
+
+    public int getMinimumArrayLength() {
+      return getWidth();
+    }
+  }
+
+  /**
+   * The Class EncodeBand.
+   * Converts a band of rows, splitting it in two until 
+   * the band is small enough.
+   */
+  static class EncodeBand extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    /** The Constant MIN_PIXELS is the smallest band worth splitting. */
+    private final static int MIN_PIXELS = 32 * 1024;
+
+    /** The image. */
+    final BufferedImage image;
+    
+    /** The background color. */
+    final int background;
+    
+    /** The first row. */
+    final int firstRow;
+    
+    /** One past the last row. */
+    final int endRow;
+    
+    /** The pixels. */
+    final int[] dest;
+
+    EncodeBand(BufferedImage image, int background, int firstRow, int endRow, int[] dest) {
+      this.image = image;
+      this.background = background;
+      this.firstRow = firstRow;
+      this.endRow = endRow;
+      this.dest = dest;
+    }
+
+    @Override
+    protected void compute() {
+      int width = image.getWidth();
+      int rows = endRow - firstRow;
+      if (rows < 2 || rows * width <= MIN_PIXELS) {
+        encodeRows(image, background, firstRow, endRow, dest, firstRow * width);
+      } else {
+        int mid = firstRow + rows / 2;
+        invokeAll(new EncodeBand(image, background, firstRow, mid, dest),
+            new EncodeBand(image, background, mid, endRow, dest));
+      }
+    }
+  }
+
+}
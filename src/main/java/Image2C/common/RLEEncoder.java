@@ -0,0 +1,282 @@
+/**
+ *
+ * The MIT License
+ *
+ * Copyright 2024 Paul Conti
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package image2C.common;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * The Class RLEEncoder.
+ * Run length encodes a stream of 16 bit pixels or 8 bit packed 
+ * monochrome bytes, one value at a time.
+ * 
+ * The encoded stream is a series of packets, each starting with a 
+ * control item of the same width as the data (16 or 8 bits):
+ * <pre>
+ *   top bit set:   run,     count = (control &amp; 0x7FFF) + 1 
+ *                  (0x7F for bytes), followed by the one value
+ *                  to repeat count times
+ *   top bit clear: literal, count = control + 1, 
+ *                  followed by count values to copy
+ * </pre>
+ * So a packet covers 1 to 32768 pixels (128 bytes for 1 bit images).
+ * Packets run on across the end of image rows, decode them in order 
+ * until width * height pixels (or the row padded bytes of a 1 bit 
+ * image) have been drawn.
+ * 
+ * Runs shorter than 3 are kept in a literal unless they would 
+ * start a new packet anyway.
+ * 
+ * The encoded items are either kept, as shorts, or handed to a sink
+ * as soon as each packet is complete, so a caller can count them in 
+ * one pass and write them out in a second without holding the stream.
+ * 
+ * @author Paul Conti
+ * 
+ */
+public class RLEEncoder {
+  
+  /** The Constant MIN_RUN. */
+  private final static int MIN_RUN = 3;
+  
+  /** The flag marking a run control item. */
+  private final int runFlag;
+  
+  /** The largest number of values in one packet. */
+  private final int maxCount;
+  
+  /** The value being matched. */
+  private int lastValue;
+  
+  /** The number of times lastValue has been seen in a row. */
+  private int matchCount;
+  
+  /** The pending literal values. */
+  private int[] literal;
+  
+  /** The number of pending literal values. */
+  private int literalCount;
+  
+  /** The encoded stream, null when items go to the sink. */
+  private short[] out;
+  
+  /** The sink taking the encoded items, or null. */
+  private final IntConsumer sink;
+  
+  /** The number of items in out. */
+  private int outCount;
+  
+  /** The number of values added. */
+  private int rawCount;
+  
+  /**
+   * Instantiates a new RLE encoder.
+   *
+   * @param bShorts
+   *          <code>true</code> for 16 bit values, 
+   *          <code>false</code> for bytes
+   */
+  public RLEEncoder(boolean bShorts) {
+    this(bShorts, null);
+  }
+  
+  /**
+   * Instantiates a new RLE encoder that passes on the encoded items 
+   * instead of keeping them.
+   *
+   * @param bShorts
+   *          <code>true</code> for 16 bit values, 
+   *          <code>false</code> for bytes
+   * @param sink
+   *          takes each encoded item in order, null to keep them
+   */
+  public RLEEncoder(boolean bShorts, IntConsumer sink) {
+    runFlag = bShorts ? 0x8000 : 0x80;
+    maxCount = runFlag;
+    literal = new int[maxCount];
+    this.sink = sink;
+    out = (sink == null) ? new short[1024] : null;
+    matchCount = 0;
+    literalCount = 0;
+    outCount = 0;
+    rawCount = 0;
+  }
+  
+  /**
+   * Encode 16 bit pixels.
+   *
+   * @param data
+   *          the pixels
+   * @return the encoder, finished
+   */
+  public static RLEEncoder encode(int[] data) {
+    RLEEncoder rle = new RLEEncoder(true);
+    for (int i=0; i<data.length; i++)
+      rle.add(data[i]);
+    rle.finish();
+    return rle;
+  }
+  
+  /**
+   * Encode bytes.
+   *
+   * @param data
+   *          the bytes
+   * @return the encoder, finished
+   */
+  public static RLEEncoder encode(byte[] data) {
+    RLEEncoder rle = new RLEEncoder(false);
+    for (int i=0; i<data.length; i++)
+      rle.add(data[i] & 0xFF);
+    rle.finish();
+    return rle;
+  }
+  
+  /**
+   * add
+   * Add the next value.
+   *
+   * @param value
+   *          the value
+   */
+  public void add(int value) {
+    rawCount++;
+    if (matchCount > 0 && value == lastValue && matchCount < maxCount) {
+      matchCount++;
+      return;
+    }
+    endMatch();
+    lastValue = value;
+    matchCount = 1;
+  }
+  
+  /**
+   * finish
+   * Output everything still pending, call once after the last value.
+   */
+  public void finish() {
+    endMatch();
+    endLiteral();
+  }
+  
+  /**
+   * endMatch
+   * Output the current group of equal values as a run, or move it 
+   * into the literal when it is too short to pay for itself.
+   */
+  private void endMatch() {
+    if (matchCount == 0)
+      return;
+    if (matchCount >= MIN_RUN || (matchCount > 1 && literalCount == 0)) {
+      endLiteral();
+      put(runFlag | (matchCount - 1));
+      put(lastValue);
+    } else {
+      for (int i=0; i<matchCount; i++) {
+        literal[literalCount++] = lastValue;
+        if (literalCount == maxCount)
+          endLiteral();
+      }
+    }
+    matchCount = 0;
+  }
+  
+  /**
+   * endLiteral
+   * Output the pending literal values.
+   */
+  private void endLiteral() {
+    if (literalCount == 0)
+      return;
+    put(literalCount - 1);
+    for (int i=0; i<literalCount; i++)
+      put(literal[i]);
+    literalCount = 0;
+  }
+  
+  private void put(int item) {
+    if (sink != null) {
+      outCount++;
+      sink.accept(item);
+      return;
+    }
+    if (outCount == out.length)
+      out = Arrays.copyOf(out, out.length * 2);
+    out[outCount++] = (short) item;
+  }
+  
+  /**
+   * Gets the encoded 16 bit stream.
+   *
+   * @return the items
+   */
+  public int[] toShortArray() {
+    int[] items = new int[outCount];
+    for (int i=0; i<outCount; i++)
+      items[i] = out[i] & 0xFFFF;
+    return items;
+  }
+  
+  /**
+   * Gets the encoded 8 bit stream.
+   *
+   * @return the items
+   */
+  public byte[] toByteArray() {
+    byte[] bytes = new byte[outCount];
+    for (int i=0; i<outCount; i++)
+      bytes[i] = (byte) out[i];
+    return bytes;
+  }
+  
+  /**
+   * Gets the number of encoded items.
+   *
+   * @return the size
+   */
+  public int size() {
+    return outCount;
+  }
+  
+  /**
+   * Gets the number of values added.
+   *
+   * @return the raw size
+   */
+  public int getRawCount() {
+    return rawCount;
+  }
+  
+  /**
+   * Gets the compression ratio, raw size over encoded size.
+   *
+   * @return the ratio
+   */
+  public double getRatio() {
+    return (outCount == 0) ? 1.0 : (double) rawCount / outCount;
+  }
+
+}
@@ -63,6 +63,7 @@ import java.awt.Graphics2D;
 
 import javax.swing.filechooser.FileFilter;
 
+import image2C.CommandLine;
 import image2C.common.ImageUtils;
 
 import javax.swing.JFormattedTextField;
@@ -165,6 +166,12 @@ public class ImageApp implements ActionListener {
    */
   public static void main(String[] args) {
     
+    // any arguments means convert them without the GUI
+    if (args.length > 0) {
+      CommandLine.main(args);
+      return;
+    }
+    
     if( SystemInfo.isMacOS ) {
 //      isMAC = true;
       // enable screen menu bar
@@ -222,6 +229,8 @@ public class ImageApp implements ActionListener {
   public ImageApp() {
     // grab our BMP Utilities
     imageUtils = ImageUtils.getInstance();
+    // one image at a time, so let it use every core, the output is the same
+    imageUtils.setParallelExport(true);
     // Start our UI
     initialize();
   }
@@ -268,6 +277,13 @@ public class ImageApp implements ActionListener {
     exportMenuItem.addActionListener(this);
     mbFile.add(exportMenuItem);
     
+    JMenuItem exportBinMenuItem = new JMenuItem("Export Binary",
+        new ImageIcon(ImageApp.class.getResource("/resources/export.png")));
+    exportBinMenuItem.setToolTipText("Export raw binary file for loading from SD card");
+    exportBinMenuItem.setActionCommand("export_bin");
+    exportBinMenuItem.addActionListener(this);
+    mbFile.add(exportBinMenuItem);
+    
     JMenuItem exitMenuItem = new JMenuItem("Exit",
         new ImageIcon(ImageApp.class.getResource("/resources/logout.png")));
     exitMenuItem.setToolTipText("Exit Program");
@@ -450,7 +466,7 @@ public class ImageApp implements ActionListener {
       try {
         imageUtils.image2File(biConvertedImage, 
             file, 
-            (biOriginalImage.getType() == BufferedImage.TYPE_BYTE_BINARY));
+            ImageUtils.isMonochrome(biOriginalImage));
         result = true;
         JOptionPane.showMessageDialog(null, "Successful save of " + name, 
             "Save BMP", JOptionPane.INFORMATION_MESSAGE);
@@ -478,7 +494,7 @@ public class ImageApp implements ActionListener {
       biOriginalImage = ImageIO.read(imageFile);
       biConvertedImage = imageUtils.clone(biOriginalImage);
       numColors = imageUtils.getNumberOfColors(biConvertedImage);
-      if(biOriginalImage.getType() == BufferedImage.TYPE_BYTE_BINARY
+      if(ImageUtils.isMonochrome(biOriginalImage)
           || numColors == 2 || numColors == 1) {
         optionsPane.btnNewForeground.setEnabled(true);
         optionsPane.btnNewForeground.setVisible(true);
@@ -633,9 +649,13 @@ public class ImageApp implements ActionListener {
           File file = new File(sName);
           boolean bUseLittleEndian = optionsPane.cbLittleEndian.isSelected();
           boolean bCArrayFlash = optionsPane.cbCArrayFlash.isSelected();
+          imageUtils.setRLEExport(optionsPane.cbRLE.isSelected());
           imageUtils.image2C_Array(biConvertedImage, sInputName, file, sCArrayName, sInputExt,
               bUseLittleEndian, bCArrayFlash, bTransparentChange);
-          JOptionPane.showMessageDialog(null, "Successful export of " + sOutputName + ".c", 
+          String sMsg = "Successful export of " + sOutputName + ".c";
+          if (imageUtils.isRLEExport())
+            sMsg = sMsg + String.format("\nRLE compression %.2f:1", imageUtils.getRLERatio());
+          JOptionPane.showMessageDialog(null, sMsg, 
               "Export Image", JOptionPane.INFORMATION_MESSAGE);
         } catch (IOException e1) {
           // TODO Auto-generated catch block
@@ -646,6 +666,29 @@ public class ImageApp implements ActionListener {
         }
         break;
         
+      case "export_bin":
+        try {
+          ((JFormattedTextField) optionsPane.txtOutputFile).commitEdit();
+          sOutputName = optionsPane.txtOutputFile.getText();
+          String sName = sOutputName;
+          if (sName.toLowerCase().endsWith(".c"))
+            sName = sName.substring(0, sName.length()-2);
+          if (!(sName.toLowerCase().endsWith(".bin")))
+            sName = sName + ".bin";
+          File file = new File(sOutputPath + sName);
+          boolean bUseLittleEndian = optionsPane.cbLittleEndian.isSelected();
+          imageUtils.image2Binary(biConvertedImage, file, bUseLittleEndian);
+          JOptionPane.showMessageDialog(null, "Successful export of " + sName, 
+              "Export Image", JOptionPane.INFORMATION_MESSAGE);
+        } catch (IOException e1) {
+          JOptionPane.showMessageDialog(null, "Unsuccessful export of " + sOutputName 
+              + "\n" + e1.getMessage(), "Export Image", JOptionPane.ERROR_MESSAGE);
+        } catch (ParseException e1) {
+          JOptionPane.showMessageDialog(null, "Invalid output file name", 
+              "Export Image", JOptionPane.ERROR_MESSAGE);
+        }
+        break;
+        
       case "save":
         if (biConvertedImage != null) {
           if (!saveImageDialog()) {
@@ -60,6 +60,7 @@ public class OptionsPanel extends JPanel {
   JFormattedTextField txtNumColors;
   JCheckBox cbLittleEndian;
   JCheckBox cbCArrayFlash;
+  JCheckBox cbRLE;
   private NumberFormat amountFormat;
 
   /**
@@ -96,6 +97,9 @@ public class OptionsPanel extends JPanel {
     cbLittleEndian = new JCheckBox("Output Little Endian?");
     cbLittleEndian.setFont(new Font("SansSerif", Font.PLAIN, 12));
     
+    cbRLE = new JCheckBox("Run Length Encode?");
+    cbRLE.setFont(new Font("SansSerif", Font.PLAIN, 12));
+    
     JLabel lblBMPDetails = new JLabel("Image Details");
     lblBMPDetails.setFont(new Font("SansSerif", Font.BOLD, 14));
     lblWidth.setFont(new Font("SansSerif", Font.PLAIN, 12));
@@ -165,6 +169,7 @@ public class OptionsPanel extends JPanel {
                 .addComponent(lblFileOptions)
                 .addComponent(cbCArrayFlash)
                 .addComponent(cbLittleEndian)
+                .addComponent(cbRLE)
                 .addGroup(groupLayout.createSequentialGroup()
                   .addPreferredGap(ComponentPlacement.RELATED)
                   .addComponent(lblImageOptions))
@@ -233,6 +238,8 @@ public class OptionsPanel extends JPanel {
           .addComponent(cbCArrayFlash)
           .addGap(3)
           .addComponent(cbLittleEndian)
+          .addGap(3)
+          .addComponent(cbRLE)
           .addGap(10)
           .addGroup(groupLayout.createParallelGroup(Alignment.LEADING)
             .addGroup(groupLayout.createSequentialGroup()
@@ -119,7 +119,7 @@ public class IntARGBConverter extends PixelConverter implements
 				break;
 			case BufferedImage.TYPE_BYTE_GRAY:
 				for (int a = 0; a < width; a++) {
-					dest[a] = ((0xff000000) << 24)
+					dest[a] = 0xff000000
 							+ ((byteScratch[a] & 0xff) << 16)
 							+ ((byteScratch[a] & 0xff) << 8)
 							+ ((byteScratch[a] & 0xff) << 0);
@@ -13,8 +13,6 @@ package com.pump.image.pixel.quantize;
 import java.util.Arrays;
 import java.util.Map;
 
-import com.pump.image.pixel.quantize.ColorSet.FrequencyComparator;
-
 /**
  * This is a modified <code>MedianCutColorQuantization</code>.
  * <p>
@@ -37,6 +35,7 @@ import com.pump.image.pixel.quantize.ColorSet.FrequencyComparator;
 public class BiasedMedianCutColorQuantization extends ColorQuantization {
 
 	final float pureColorThreshold;
+	final boolean perceptual;
 
 	/**
 	 * Create a <code>BiasedMedianCutColorQuantization</code> with a threshold
@@ -58,67 +57,80 @@ public class BiasedMedianCutColorQuantization extends ColorQuantization {
 	 *            .1 (10%).
 	 */
 	public BiasedMedianCutColorQuantization(float pureColorThreshold) {
+		this(pureColorThreshold, false);
+	}
+
+	/**
+	 * Create a <code>BiasedMedianCutColorQuantization</code> with a fixed
+	 * threshold.
+	 * 
+	 * @param pureColorThreshold
+	 *            a fractional value (from 0-1) representing the cut-off point
+	 *            for a color to be considered so important that it is added to
+	 *            the finished set as-is.
+	 * @param perceptual
+	 *            if true the remaining colors are cut along the channel that
+	 *            looks the widest, see
+	 *            {@link MedianCutColorQuantization#MedianCutColorQuantization(boolean, boolean)}
+	 *            .
+	 */
+	public BiasedMedianCutColorQuantization(float pureColorThreshold,
+			boolean perceptual) {
 		this.pureColorThreshold = pureColorThreshold;
+		this.perceptual = perceptual;
 	}
 
 	@Override
 	public ColorSet createReducedSet(ColorSet originalSet,
 			int maximumColorCount, boolean retainOriginalIntegrity) {
-		Map<Integer, Integer> frequencyMap = originalSet
-				.getRGBtoFrequencyMap(false);
-		long pixelCount = originalSet.getPixelCount();
+		MedianCutColorQuantization m = new MedianCutColorQuantization(false,
+				perceptual);
+		if (pureColorThreshold <= 0) {
+			return m.createReducedSet(originalSet, maximumColorCount,
+					retainOriginalIntegrity);
+		}
 
 		ColorSet newGuy = new ColorSet();
 
 		/*
-		 * Process all the colors that occur above the pureColorThreshold:
+		 * Process all the colors that occur above the pureColorThreshold.
+		 * Every other color is packed for the median cut, the original set
+		 * is never modified.
 		 */
-		ColorSet remainingColors;
-		if (pureColorThreshold > 0) {
-			Integer[] rgb = frequencyMap.keySet().toArray(
-					new Integer[frequencyMap.size()]);
-			FrequencyComparator comparator = new FrequencyComparator(
-					originalSet, false);
-			Arrays.sort(rgb, comparator);
-
-			if (retainOriginalIntegrity) {
-				remainingColors = new ColorSet();
-				for (int a = 0; a < rgb.length; a++) {
-					int k = frequencyMap.get(rgb[a]);
-					double frequencyFraction = ((double) k)
-							/ ((double) pixelCount);
-					if (frequencyFraction >= pureColorThreshold) {
-						newGuy.addColor((rgb[a] >> 16) & 0xff,
-								(rgb[a] >> 8) & 0xff, (rgb[a] >> 0) & 0xff, k);
-					} else {
-						remainingColors.addColor((rgb[a] >> 16) & 0xff,
-								(rgb[a] >> 8) & 0xff, (rgb[a] >> 0) & 0xff, k);
-					}
-				}
-			} else {
-				remainingColors = originalSet;
-				identifyThresholdColors: for (int a = 0; a < rgb.length; a++) {
-					int k = frequencyMap.get(rgb[a]);
-					double frequencyFraction = ((double) k)
-							/ ((double) pixelCount);
-					if (frequencyFraction >= pureColorThreshold) {
-						newGuy.addColor((rgb[a] >> 16) & 0xff,
-								(rgb[a] >> 8) & 0xff, (rgb[a] >> 0) & 0xff, k);
-						frequencyMap.remove(rgb[a]);
-					} else {
-						break identifyThresholdColors;
-					}
+		long[] remainingColors;
+		int remainingCount = 0;
+		synchronized (originalSet) {
+			Map<Integer, Integer> frequencyMap = originalSet
+					.getRGBtoFrequencyMap(false);
+			long pixelCount = originalSet.getPixelCount();
+			remainingColors = new long[frequencyMap.size()];
+			for (Map.Entry<Integer, Integer> entry : frequencyMap.entrySet()) {
+				int rgb = entry.getKey();
+				int k = entry.getValue();
+				double frequencyFraction = ((double) k) / ((double) pixelCount);
+				if (frequencyFraction >= pureColorThreshold) {
+					newGuy.addColor((rgb >> 16) & 0xff, (rgb >> 8) & 0xff,
+							(rgb >> 0) & 0xff, k);
+				} else {
+					remainingColors[remainingCount++] = MedianCutColorQuantization
+							.pack(rgb, k);
 				}
 			}
-		} else {
-			remainingColors = originalSet;
 		}
 
-		MedianCutColorQuantization m = new MedianCutColorQuantization();
-		newGuy.addColors(m.createReducedSet(remainingColors, maximumColorCount
-				- newGuy.getColorCount(), remainingColors == originalSet
-				&& retainOriginalIntegrity));
-
+		int remainingMaximum = Math.max(2,
+				maximumColorCount - newGuy.getColorCount());
+		if (remainingCount <= remainingMaximum) {
+			for (int a = 0; a < remainingCount; a++) {
+				int rgb = (int) (remainingColors[a] >>> 32);
+				newGuy.addColor((rgb >> 16) & 0xff, (rgb >> 8) & 0xff,
+						(rgb >> 0) & 0xff, (int) remainingColors[a]);
+			}
+		} else {
+			newGuy.addColors(m.createReducedSet(
+					Arrays.copyOf(remainingColors, remainingCount),
+					remainingMaximum));
+		}
 		return newGuy;
 	}
 }
\ No newline at end of file
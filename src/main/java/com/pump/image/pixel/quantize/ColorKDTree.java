@@ -0,0 +1,319 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ *
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://raw.githubusercontent.com/mickleness/pumpernickel/master/License.txt
+ *
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ *
+ * Added by Paul Conti for the GUIslice project 2024
+ */
+package com.pump.image.pixel.quantize;
+
+import java.awt.image.IndexColorModel;
+
+import com.pump.image.pixel.quantize.ColorLUT.ColorNode;
+
+/**
+ * A k-d tree over a palette that finds the exact nearest color to an
+ * arbitrary RGB value.
+ * <p>
+ * The tree is a balanced, immutable set of arrays: each node is the median
+ * of its range along the axis with the widest spread, with its children to
+ * the left and right of it. A search is a branch and bound descent that
+ * returns primitives and allocates nothing, so one tree can be shared by any
+ * number of threads.
+ * <p>
+ * Colors are identified by their entry: their position in the palette this
+ * tree was built from. When two colors are equally close the lower entry
+ * wins.
+ * <p>
+ * A perceptual tree is built over the {@link OKLab} coordinates of the
+ * palette instead of RGB, and converts each query the same way, so the
+ * nearest color is the one that looks closest.
+ */
+public class ColorKDTree {
+
+	/**
+	 * The coordinates of each tree node, in tree order. These are the color
+	 * components, or the OKLab components of a perceptual tree.
+	 */
+	final int[] reds, greens, blues;
+
+	/** The entry of each tree node. */
+	final int[] entries;
+
+	/** The axis each tree node splits: 0 = red, 1 = green, 2 = blue. */
+	final byte[] axes;
+
+	/** The palette, in entry order. */
+	final ColorNode[] palette;
+
+	/** Whether distances are measured in OKLab. */
+	final boolean perceptual;
+
+	/**
+	 * Create a ColorKDTree from an <code>IndexColorModel</code>. The
+	 * transparent pixel, if any, is left out.
+	 */
+	public ColorKDTree(IndexColorModel icm) {
+		this(icm, false);
+	}
+
+	/**
+	 * Create a ColorKDTree from an <code>IndexColorModel</code>. The
+	 * transparent pixel, if any, is left out.
+	 *
+	 * @param perceptual
+	 *            true to measure distances in {@link OKLab}, false for RGB.
+	 */
+	public ColorKDTree(IndexColorModel icm, boolean perceptual) {
+		this(getNodes(icm), perceptual);
+	}
+
+	/**
+	 * Create a ColorKDTree from a list of colors.
+	 *
+	 * @param palette
+	 *            the colors to search. The position of a color in this array
+	 *            is its entry.
+	 */
+	ColorKDTree(ColorNode[] palette) {
+		this(palette, false);
+	}
+
+	/**
+	 * Create a ColorKDTree from a list of colors.
+	 *
+	 * @param palette
+	 *            the colors to search. The position of a color in this array
+	 *            is its entry.
+	 * @param perceptual
+	 *            true to measure distances in {@link OKLab}, false for RGB.
+	 */
+	ColorKDTree(ColorNode[] palette, boolean perceptual) {
+		if (palette.length == 0)
+			throw new IllegalArgumentException("the palette is empty");
+		this.palette = palette.clone();
+		int n = palette.length;
+		reds = new int[n];
+		greens = new int[n];
+		blues = new int[n];
+		entries = new int[n];
+		axes = new byte[n];
+		this.perceptual = perceptual;
+		for (int a = 0; a < n; a++) {
+			if (perceptual) {
+				long lab = OKLab.toOKLab(palette[a].red, palette[a].green,
+						palette[a].blue);
+				reds[a] = OKLab.getL(lab);
+				greens[a] = OKLab.getA(lab);
+				blues[a] = OKLab.getB(lab);
+			} else {
+				reds[a] = palette[a].red;
+				greens[a] = palette[a].green;
+				blues[a] = palette[a].blue;
+			}
+			entries[a] = a;
+		}
+		build(0, n);
+	}
+
+	private static ColorNode[] getNodes(IndexColorModel icm) {
+		int t = icm.getTransparentPixel();
+		int n = icm.getMapSize();
+		ColorNode[] nodes = new ColorNode[t >= 0 && t < n ? n - 1 : n];
+		int k = 0;
+		for (int a = 0; a < n; a++) {
+			if (a != t) {
+				nodes[k++] = new ColorNode(icm.getRed(a), icm.getGreen(a),
+						icm.getBlue(a), a);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Arrange the nodes in [lo, hi) so the median along the widest axis is in
+	 * the middle, with smaller values before it and larger values after it.
+	 */
+	private void build(int lo, int hi) {
+		if (hi - lo < 1)
+			return;
+		int mid = (lo + hi) >>> 1;
+		int axis = getWidestAxis(lo, hi);
+		select(axis, lo, hi - 1, mid);
+		axes[mid] = (byte) axis;
+		build(lo, mid);
+		build(mid + 1, hi);
+	}
+
+	private int getWidestAxis(int lo, int hi) {
+		int minR = Integer.MAX_VALUE, maxR = Integer.MIN_VALUE;
+		int minG = Integer.MAX_VALUE, maxG = Integer.MIN_VALUE;
+		int minB = Integer.MAX_VALUE, maxB = Integer.MIN_VALUE;
+		for (int a = lo; a < hi; a++) {
+			minR = Math.min(minR, reds[a]);
+			maxR = Math.max(maxR, reds[a]);
+			minG = Math.min(minG, greens[a]);
+			maxG = Math.max(maxG, greens[a]);
+			minB = Math.min(minB, blues[a]);
+			maxB = Math.max(maxB, blues[a]);
+		}
+		int r = maxR - minR;
+		int g = maxG - minG;
+		int b = maxB - minB;
+		if (r >= g && r >= b)
+			return 0;
+		return g >= b ? 1 : 2;
+	}
+
+	private int get(int axis, int i) {
+		return axis == 0 ? reds[i] : axis == 1 ? greens[i] : blues[i];
+	}
+
+	/** Quickselect so the k-th smallest value along an axis is at k. */
+	private void select(int axis, int lo, int hi, int k) {
+		while (lo < hi) {
+			int pivot = get(axis, (lo + hi) >>> 1);
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (get(axis, i) < pivot)
+					i++;
+				while (get(axis, j) > pivot)
+					j--;
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int t = reds[i];
+		reds[i] = reds[j];
+		reds[j] = t;
+		t = greens[i];
+		greens[i] = greens[j];
+		greens[j] = t;
+		t = blues[i];
+		blues[i] = blues[j];
+		blues[j] = t;
+		t = entries[i];
+		entries[i] = entries[j];
+		entries[j] = t;
+	}
+
+	/**
+	 * Return the entry of the palette color nearest to (red, green, blue).
+	 *
+	 * @param red
+	 *            the red component (0-255).
+	 * @param green
+	 *            the green component (0-255).
+	 * @param blue
+	 *            the blue component (0-255).
+	 * @return the entry of the nearest color, see {@link #getRed(int)} and
+	 *         {@link #getIndex(int)}.
+	 */
+	public int getNearest(int red, int green, int blue) {
+		if (perceptual) {
+			long lab = OKLab.toOKLab(red, green, blue);
+			red = OKLab.getL(lab);
+			green = OKLab.getA(lab);
+			blue = OKLab.getB(lab);
+		}
+		long best = search(0, reds.length, red, green, blue, Long.MAX_VALUE);
+		return (int) best;
+	}
+
+	/**
+	 * Return the <code>IndexColorModel</code> index of the palette color
+	 * nearest to (red, green, blue), or -1 if the palette has no indices.
+	 */
+	public int getIndexMatch(int red, int green, int blue) {
+		return palette[getNearest(red, green, blue)].index;
+	}
+
+	/**
+	 * The search of the nodes in [lo, hi). Results are packed as the error
+	 * squared in the upper 32 bits and the entry in the lower 32 bits, so the
+	 * smaller long is always the better match.
+	 */
+	private long search(int lo, int hi, int red, int green, int blue,
+			long best) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int dr = red - reds[mid];
+			int dg = green - greens[mid];
+			int db = blue - blues[mid];
+			long candidate = ((long) (dr * dr + dg * dg + db * db) << 32)
+					| entries[mid];
+			if (candidate < best)
+				best = candidate;
+
+			int axis = axes[mid];
+			int d = axis == 0 ? dr : axis == 1 ? dg : db;
+			// visit the near side first, and the far side only if the
+			// splitting plane is no farther than the best match so far
+			long planeError = (long) (d * d) << 32;
+			if (d < 0) {
+				best = search(lo, mid, red, green, blue, best);
+				if (planeError > best)
+					return best;
+				lo = mid + 1;
+			} else {
+				best = search(mid + 1, hi, red, green, blue, best);
+				if (planeError > best)
+					return best;
+				hi = mid;
+			}
+		}
+		return best;
+	}
+
+	/** Returns true if distances are measured in {@link OKLab}. */
+	public boolean isPerceptual() {
+		return perceptual;
+	}
+
+	/** Return the number of colors in this tree. */
+	public int size() {
+		return palette.length;
+	}
+
+	/** Return the red component of an entry. */
+	public int getRed(int entry) {
+		return palette[entry].red;
+	}
+
+	/** Return the green component of an entry. */
+	public int getGreen(int entry) {
+		return palette[entry].green;
+	}
+
+	/** Return the blue component of an entry. */
+	public int getBlue(int entry) {
+		return palette[entry].blue;
+	}
+
+	/**
+	 * Return the <code>IndexColorModel</code> index of an entry, or -1 if it
+	 * doesn't have one.
+	 */
+	public int getIndex(int entry) {
+		return palette[entry].index;
+	}
+}
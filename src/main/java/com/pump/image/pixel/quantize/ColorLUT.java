@@ -11,9 +11,9 @@
 package com.pump.image.pixel.quantize;
 
 import java.awt.image.IndexColorModel;
-import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This is a tool to help reduce the time it takes to map an arbitrary color to
@@ -23,6 +23,21 @@ import java.util.TreeSet;
  * subcubes. So instead of searching through all possible colors every time we
  * require a match: we hone in on the exact subcube and iterate outward a cycle
  * or two.
+ * <p>
+ * Optionally <code>getIndexMatch()</code> can be answered from an inverse
+ * colormap instead: a cube of 64x64x64 palette indices that is built once per
+ * palette (on the fork join pool) and then costs one array load per lookup.
+ * Each cell holds the exact nearest color to the center of the cell, so the
+ * answer is approximate for colors that are nearly equidistant from two
+ * palette entries.
+ * <p>
+ * Lookups may be made from several threads at once. When two colors are
+ * equally close the one with the lower index wins. For an exact search that
+ * allocates nothing see {@link #getKDTree()}.
+ * <p>
+ * In perceptual mode colors are compared by their {@link OKLab} distance
+ * instead of their RGB distance. The palette is converted once, into the k-d
+ * tree that then answers every lookup.
  */
 public class ColorLUT {
 	public static class ColorNode implements Comparable<ColorNode> {
@@ -97,7 +112,8 @@ public class ColorLUT {
 				int dg = green - n.green;
 				int db = blue - n.blue;
 				int errorSquared = dr * dr + dg * dg + db * db;
-				if (bestMatch == null || errorSquared < bestMatch.errorSquared) {
+				if (bestMatch == null || errorSquared < bestMatch.errorSquared
+						|| (errorSquared == bestMatch.errorSquared && n.index < bestMatch.node.index)) {
 					bestMatch = new Match(n, errorSquared);
 				}
 			}
@@ -134,6 +150,19 @@ public class ColorLUT {
 	Cluster[][][] subcubes = new Cluster[divisions][divisions][divisions];
 	IndexColorModel indexColorModel;
 
+	/** The number of bits per channel the inverse colormap resolves. */
+	static final int CUBE_BITS = 6;
+	static final int CUBE_SIZE = 1 << CUBE_BITS;
+	static final int CUBE_SHIFT = 8 - CUBE_BITS;
+
+	boolean useInverseColormap = false;
+	volatile short[] inverseColormap;
+
+	boolean useKDTree = false;
+	volatile ColorKDTree kdTree;
+
+	boolean perceptual = false;
+
 	/** Create a ColorLUT where every color has an index of -1. */
 	public ColorLUT(Integer[] rgb) {
 		for (int a = 0; a < rgb.length; a++) {
@@ -167,6 +196,201 @@ public class ColorLUT {
 		return indexColorModel;
 	}
 
+	/**
+	 * Control whether <code>getIndexMatch()</code> consults an inverse
+	 * colormap. The colormap is built on first use, and trades a small amount
+	 * of accuracy for a constant time lookup.
+	 * 
+	 * @param b
+	 *            true to use the inverse colormap.
+	 */
+	public void setInverseColormap(boolean b) {
+		useInverseColormap = b;
+	}
+
+	/**
+	 * Returns true if <code>getIndexMatch()</code> consults an inverse
+	 * colormap.
+	 */
+	public boolean isInverseColormap() {
+		return useInverseColormap;
+	}
+
+	/**
+	 * Control whether lookups are answered by a {@link ColorKDTree} instead of
+	 * the subcube search. The tree is exact, allocates nothing per lookup and
+	 * holds no locks, which matters when several images are quantized at
+	 * once. The {@link ImageQuantization} iterators use the tree directly when
+	 * this is set.
+	 * 
+	 * @param b
+	 *            true to use the k-d tree.
+	 */
+	public void setKDTree(boolean b) {
+		useKDTree = b;
+	}
+
+	/**
+	 * Returns true if lookups are answered by a {@link ColorKDTree}.
+	 */
+	public boolean isKDTree() {
+		return useKDTree;
+	}
+
+	/**
+	 * Control whether colors are compared by their {@link OKLab} distance
+	 * instead of their RGB distance. This works best at low color counts,
+	 * where RGB distance often picks a color of the wrong hue. Lookups are
+	 * then always answered by the k-d tree (or the inverse colormap, if that
+	 * is also set), and <code>Match.errorSquared</code> is still the RGB
+	 * error.
+	 * 
+	 * @param b
+	 *            true to use perceptual distance.
+	 */
+	public synchronized void setPerceptual(boolean b) {
+		if (perceptual != b) {
+			perceptual = b;
+			kdTree = null;
+			inverseColormap = null;
+		}
+	}
+
+	/**
+	 * Returns true if colors are compared by their {@link OKLab} distance.
+	 */
+	public boolean isPerceptual() {
+		return perceptual;
+	}
+
+	/**
+	 * Returns a {@link ColorKDTree} of the colors in this LUT, building it if
+	 * necessary. The tree is safe to share across threads, and is perceptual
+	 * if this LUT is.
+	 */
+	public ColorKDTree getKDTree() {
+		ColorKDTree tree = kdTree;
+		if (tree == null) {
+			synchronized (this) {
+				tree = kdTree;
+				if (tree == null) {
+					if (indexColorModel != null) {
+						tree = new ColorKDTree(indexColorModel, perceptual);
+					} else {
+						tree = new ColorKDTree(getNodes(), perceptual);
+					}
+					kdTree = tree;
+				}
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Returns the inverse colormap, building it if necessary. The cell for
+	 * (r, g, b) is at
+	 * <code>((r >> 2) << 12) | ((g >> 2) << 6) | (b >> 2)</code>.
+	 */
+	short[] getInverseColormap() {
+		short[] cube = inverseColormap;
+		if (cube == null) {
+			synchronized (this) {
+				cube = inverseColormap;
+				if (cube == null) {
+					cube = new short[CUBE_SIZE * CUBE_SIZE * CUBE_SIZE];
+					new FillSlices(getNodes(), perceptual ? getKDTree()
+								: null, cube, 0, CUBE_SIZE).invoke();
+					inverseColormap = cube;
+				}
+			}
+		}
+		return cube;
+	}
+
+	/** Returns every color in this LUT. */
+	private ColorNode[] getNodes() {
+		Set<ColorNode> nodes = new TreeSet<ColorNode>();
+		for (Cluster[][] plane : subcubes) {
+			for (Cluster[] row : plane) {
+				for (Cluster c : row) {
+					if (c != null) {
+						for (ColorNode n : c.nodes) {
+							nodes.add(n);
+						}
+					}
+				}
+			}
+		}
+		return nodes.toArray(new ColorNode[nodes.size()]);
+	}
+
+	/**
+	 * Fills a range of red slices of the inverse colormap with an exhaustive
+	 * search of the palette, or with a search of the tree if there is one.
+	 */
+	static class FillSlices extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** The fewest slices worth splitting. */
+		static final int MIN_SLICES = 4;
+
+		final ColorNode[] nodes;
+		final ColorKDTree tree;
+		final short[] cube;
+		final int firstSlice, endSlice;
+
+		FillSlices(ColorNode[] nodes, ColorKDTree tree, short[] cube,
+				int firstSlice, int endSlice) {
+			this.nodes = nodes;
+			this.tree = tree;
+			this.cube = cube;
+			this.firstSlice = firstSlice;
+			this.endSlice = endSlice;
+		}
+
+		@Override
+		protected void compute() {
+			if (endSlice - firstSlice > MIN_SLICES) {
+				int mid = (firstSlice + endSlice) / 2;
+				invokeAll(new FillSlices(nodes, tree, cube, firstSlice, mid),
+						new FillSlices(nodes, tree, cube, mid, endSlice));
+				return;
+			}
+			int half = 1 << (CUBE_SHIFT - 1);
+			int k = firstSlice * CUBE_SIZE * CUBE_SIZE;
+			for (int i = firstSlice; i < endSlice; i++) {
+				int red = (i << CUBE_SHIFT) + half;
+				for (int j = 0; j < CUBE_SIZE; j++) {
+					int green = (j << CUBE_SHIFT) + half;
+					for (int l = 0; l < CUBE_SIZE; l++) {
+						int blue = (l << CUBE_SHIFT) + half;
+						if (tree != null) {
+							cube[k++] = (short) tree.getIndexMatch(red, green,
+									blue);
+							continue;
+						}
+						int best = 0;
+						int bestError = Integer.MAX_VALUE;
+						for (int a = 0; a < nodes.length; a++) {
+							int dr = red - nodes[a].red;
+							int dg = green - nodes[a].green;
+							int db = blue - nodes[a].blue;
+							int errorSquared = dr * dr + dg * dg + db * db;
+							// the nodes are in RGB order, ties go to the
+							// lowest index like the other lookups
+							if (errorSquared < bestError
+									|| (errorSquared == bestError && nodes[a].index < nodes[best].index)) {
+								bestError = errorSquared;
+								best = a;
+							}
+						}
+						cube[k++] = (short) nodes[best].index;
+					}
+				}
+			}
+		}
+	}
+
 	private void addRGB(int red, int green, int blue, int index) {
 		int i1 = red / span;
 		int i2 = green / span;
@@ -201,32 +425,42 @@ public class ColorLUT {
 	}
 
 	public int getIndexMatch(int red, int green, int blue) {
+		if (useInverseColormap) {
+			return getInverseColormap()[((red >> CUBE_SHIFT) << (2 * CUBE_BITS))
+					| ((green >> CUBE_SHIFT) << CUBE_BITS)
+					| (blue >> CUBE_SHIFT)];
+		}
+		if (useKDTree || perceptual) {
+			return getKDTree().getIndexMatch(red, green, blue);
+		}
 		Match match = getMatch(red, green, blue);
 		return match.node.index;
 	}
 
-	private static Set<Match> scratchMatches = new TreeSet<Match>();
-
 	public Match[] getSomeMatches(int red, int green, int blue,
 			int maxErrorSquared, boolean includeExact) {
 		int i1 = red / span;
 		int i2 = green / span;
 		int i3 = blue / span;
 
-		synchronized (scratchMatches) {
-			scratchMatches.clear();
-			if (subcubes[i1][i2][i3] != null) {
-				subcubes[i1][i2][i3].getMatches(scratchMatches, red, green,
-						blue, maxErrorSquared, includeExact);
-			}
-
-			return scratchMatches.toArray(new Match[scratchMatches.size()]);
+		Set<Match> matches = new TreeSet<Match>();
+		if (subcubes[i1][i2][i3] != null) {
+			subcubes[i1][i2][i3].getMatches(matches, red, green, blue,
+					maxErrorSquared, includeExact);
 		}
+		return matches.toArray(new Match[matches.size()]);
 	}
 
-	private static Set<Cluster> outerRing = new HashSet<Cluster>();
-
 	public Match getMatch(int red, int green, int blue) {
+		if (useKDTree || perceptual) {
+			ColorKDTree tree = getKDTree();
+			int entry = tree.getNearest(red, green, blue);
+			ColorNode n = tree.palette[entry];
+			int dr = red - n.red;
+			int dg = green - n.green;
+			int db = blue - n.blue;
+			return new Match(n, dr * dr + dg * dg + db * db);
+		}
 		int i1 = red / span;
 		int i2 = green / span;
 		int i3 = blue / span;
@@ -247,19 +481,20 @@ public class ColorLUT {
 			if (bestMatch != null && bestMatch.errorSquared == 0)
 				return bestMatch;
 			boolean lastSweep = bestMatch != null;
-			synchronized (outerRing) {
-				collectPlane(outerRing, i1, i2, i3 + d, -d, d, -d, d, 0, 0);
-				collectPlane(outerRing, i1, i2, i3 - d, -d, d, -d, d, 0, 0);
-				collectPlane(outerRing, i1, i2 + d, i3, -d, d, 0, 0, -d, d);
-				collectPlane(outerRing, i1, i2 - d, i3, -d, d, 0, 0, -d, d);
-				collectPlane(outerRing, i1 + d, i2, i3, 0, 0, -d, d, -d, d);
-				collectPlane(outerRing, i1 - d, i2, i3, 0, 0, -d, d, -d, d);
-
-				for (Cluster c : outerRing) {
-					bestMatch = c.getMatch(bestMatch, red, green, blue);
-				}
-				outerRing.clear();
-			}
+			// the faces share their edges, but visiting a subcube twice
+			// can't change the match: ties go to the lowest index
+			bestMatch = searchPlane(bestMatch, red, green, blue, i1, i2, i3
+					+ d, -d, d, -d, d, 0, 0);
+			bestMatch = searchPlane(bestMatch, red, green, blue, i1, i2, i3
+					- d, -d, d, -d, d, 0, 0);
+			bestMatch = searchPlane(bestMatch, red, green, blue, i1, i2 + d,
+					i3, -d, d, 0, 0, -d, d);
+			bestMatch = searchPlane(bestMatch, red, green, blue, i1, i2 - d,
+					i3, -d, d, 0, 0, -d, d);
+			bestMatch = searchPlane(bestMatch, red, green, blue, i1 + d, i2,
+					i3, 0, 0, -d, d, -d, d);
+			bestMatch = searchPlane(bestMatch, red, green, blue, i1 - d, i2,
+					i3, 0, 0, -d, d, -d, d);
 			if (lastSweep)
 				return bestMatch;
 		}
@@ -270,8 +505,9 @@ public class ColorLUT {
 				+ divisions + " times with no matches");
 	}
 
-	private void collectPlane(Set<Cluster> dest, int i1, int i2, int i3,
-			int i1a, int i1b, int i2a, int i2b, int i3a, int i3b) {
+	private Match searchPlane(Match bestMatch, int red, int green, int blue,
+			int i1, int i2, int i3, int i1a, int i1b, int i2a, int i2b,
+			int i3a, int i3b) {
 		for (int i = i1 + i1a; i <= i1 + i1b; i++) {
 			for (int j = i2 + i2a; j <= i2 + i2b; j++) {
 				for (int k = i3 + i3a; k <= i3 + i3b; k++) {
@@ -279,10 +515,12 @@ public class ColorLUT {
 							&& k >= 0 && k < divisions) {
 						Cluster c = subcubes[i][j][k];
 						if (c != null)
-							dest.add(c);
+							bestMatch = c.getMatch(bestMatch, red, green,
+									blue);
 					}
 				}
 			}
 		}
+		return bestMatch;
 	}
 }
\ No newline at end of file
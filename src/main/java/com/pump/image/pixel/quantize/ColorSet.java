@@ -14,6 +14,10 @@
  *
  * The particular changes:
  * - removed unsupported bit depths of 2,3,5,6,7,
+ * - colors are counted in a primitive IntHistogram and only moved
+ *   into the TreeMap when the sorted colors are needed.
+ * - added a compact binary form read and written through NIO buffers,
+ *   and fixed the color and pixel count of ColorSet(String).
  */
 package com.pump.image.pixel.quantize;
 
@@ -21,13 +25,19 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import com.pump.image.pixel.BufferedImageIterator;
 import com.pump.image.pixel.IntARGBConverter;
@@ -63,8 +73,9 @@ public class ColorSet implements Serializable {
 		}
 
 		public int compare(Integer rgb1, Integer rgb2) {
-			int p1 = set.tree.get(rgb1);
-			int p2 = set.tree.get(rgb2);
+			Map<Integer, Integer> tree = set.tree();
+			int p1 = tree.get(rgb1);
+			int p2 = tree.get(rgb2);
 			if (ascending) {
 				if (p1 < p2) {
 					return -1;
@@ -135,13 +146,28 @@ public class ColorSet implements Serializable {
 		}
 	}
 
+	/** The first bytes of the binary form. */
+	private static final byte[] BINARY_MAGIC = { 'C', 'S', 'E', 'T' };
+
+	/** The version of the binary form. */
+	private static final byte BINARY_VERSION = 1;
+
 	private static Comparator<Integer> redComparator = new RGBChannelComparator(
 			16, 8, 0);
 
-	/** Map RGB values to the number of occurrences. */
-	TreeMap<Integer, Integer> tree = new TreeMap<Integer, Integer>(
+	/**
+	 * Map RGB values to the number of occurrences. This does not include the
+	 * colors still in <code>histogram</code>, use <code>tree()</code>.
+	 */
+	private TreeMap<Integer, Integer> tree = new TreeMap<Integer, Integer>(
 			redComparator);
 
+	/**
+	 * Colors added since the last call to <code>tree()</code>. Counting
+	 * pixels here avoids boxing and a tree lookup for every pixel.
+	 */
+	private transient IntHistogram histogram;
+
 	/**
 	 * A cached value of the number of pixels. This is equivalent to the sum of
 	 * all the values in <code>tree</code>.
@@ -163,6 +189,42 @@ public class ColorSet implements Serializable {
 		addColors(i);
 	}
 
+	/**
+	 * Move the counted colors into the sorted tree.
+	 * 
+	 * @return the map of every RGB value to its number of occurrences.
+	 */
+	synchronized TreeMap<Integer, Integer> tree() {
+		if (histogram != null && histogram.size() > 0) {
+			int[] rgb = histogram.sortedKeys();
+			if (tree.isEmpty()) {
+				for (int a = 0; a < rgb.length; a++) {
+					tree.put(rgb[a], histogram.get(rgb[a]));
+				}
+			} else {
+				for (int a = 0; a < rgb.length; a++) {
+					Integer count = tree.get(rgb[a]);
+					int k = histogram.get(rgb[a]);
+					tree.put(rgb[a], (count == null) ? k : count + k);
+				}
+			}
+			histogram.clear();
+		}
+		return tree;
+	}
+
+	private IntHistogram histogram() {
+		if (histogram == null)
+			histogram = new IntHistogram();
+		return histogram;
+	}
+
+	private synchronized void writeObject(ObjectOutputStream out)
+			throws IOException {
+		tree();
+		out.defaultWriteObject();
+	}
+
 	/**
 	 * Reconstitute a ColorSet from a String.
 	 * 
@@ -174,11 +236,11 @@ public class ColorSet implements Serializable {
 			throw new IllegalArgumentException(
 					"This set did not have the correct header.");
 		}
-		int i = 23;
+		int i = ColorSet.class.getName().length() + 1;
 		int l = s.length();
 		int i2, i3;
 		int r, g, b, count;
-		while (i < l) {
+		while (i < l && s.indexOf('(', i) != -1) {
 			i2 = s.indexOf('(', i) + 1;
 			i3 = s.indexOf(',', i2);
 			r = Integer.parseInt(s.substring(i2, i3));
@@ -203,12 +265,51 @@ public class ColorSet implements Serializable {
 			} else {
 				count = 1;
 			}
-			int rgb = r << 16 + (g << 8) + b;
+			int rgb = (r << 16) + (g << 8) + b;
 			tree.put(rgb, count);
+			pixelCount += count;
 			i = i3 + 1;
 		}
 	}
 
+	/**
+	 * Reconstitute a ColorSet from its binary form. The buffer is left
+	 * positioned after the set, so several sets can be read in a row.
+	 * 
+	 * @param src
+	 *            a serialized ColorSet from <code>colorSet.write(ByteBuffer)</code>.
+	 */
+	public ColorSet(ByteBuffer src) {
+		try {
+			for (int a = 0; a < BINARY_MAGIC.length; a++) {
+				if (src.get() != BINARY_MAGIC[a])
+					throw new IllegalArgumentException(
+							"This set did not have the correct header.");
+			}
+			int version = src.get();
+			if (version != BINARY_VERSION)
+				throw new IllegalArgumentException("Unsupported version: "
+						+ version);
+			int colorCount = getVarInt(src);
+			if (colorCount < 0)
+				throw new IllegalArgumentException("Corrupt color count "
+						+ colorCount);
+			int rgb = -1;
+			for (int a = 0; a < colorCount; a++) {
+				int delta = getVarInt(src);
+				int count = getVarInt(src);
+				if (delta <= 0 || delta > 0xffffff - rgb || count <= 0)
+					throw new IllegalArgumentException("Corrupt color "
+							+ a + " of " + colorCount);
+				rgb += delta;
+				histogram().add(rgb, count);
+				pixelCount += count;
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("This set was truncated.", e);
+		}
+	}
+
 	/**
 	 * @return a map of RGB colors to the number of occurrences of each color.
 	 * 
@@ -219,6 +320,7 @@ public class ColorSet implements Serializable {
 	 *            algorithms, but of course it needs to be done with caution.
 	 */
 	public Map<Integer, Integer> getRGBtoFrequencyMap(boolean cloneData) {
+		TreeMap<Integer, Integer> tree = tree();
 		if (cloneData) {
 			TreeMap<Integer, Integer> newCopy = new TreeMap<Integer, Integer>(
 					redComparator);
@@ -248,7 +350,7 @@ public class ColorSet implements Serializable {
 	 */
 	public int getOccurrences(int red, int green, int blue) {
 		int rgb = (red << 16) + (green << 8) + blue;
-		Integer count = tree.get(rgb);
+		Integer count = tree().get(rgb);
 		if (count == null)
 			return 0;
 		return count;
@@ -273,7 +375,7 @@ public class ColorSet implements Serializable {
 	 */
 	public synchronized boolean equals(ColorSet l, boolean compareColorsOnly) {
 		synchronized (l) {
-			if (l.tree.size() != tree.size())
+			if (l.tree().size() != tree().size())
 				return false;
 			if (compareColorsOnly) {
 				return tree.keySet().equals(l.tree.keySet());
@@ -283,7 +385,7 @@ public class ColorSet implements Serializable {
 	}
 
 	public String toString() {
-		StringWriter s = new StringWriter(tree.size() * 18);
+		StringWriter s = new StringWriter(getColorCount() * 18);
 		try {
 			write(s);
 		} catch (IOException e) {
@@ -295,6 +397,7 @@ public class ColorSet implements Serializable {
 
 	public synchronized void write(Writer out) throws IOException {
 		out.write(ColorSet.class.getName() + "[");
+		TreeMap<Integer, Integer> tree = tree();
 		Iterator<Integer> keyIter = tree.keySet().iterator();
 		while (keyIter.hasNext()) {
 			int rgb = keyIter.next();
@@ -321,6 +424,94 @@ public class ColorSet implements Serializable {
 		out.write(']');
 	}
 
+	/**
+	 * Write this set in a compact binary form: a header and version, the
+	 * number of colors, and then each color and its number of occurrences.
+	 * The colors are sorted, so each is stored as the difference from the
+	 * previous one. Every number is a varint, 7 bits per byte.
+	 * 
+	 * @param dst
+	 *            the buffer to write to, it needs
+	 *            <code>getBinaryLength()</code> bytes remaining.
+	 * @throws BufferOverflowException
+	 *             if the buffer is too small.
+	 */
+	public synchronized void write(ByteBuffer dst) {
+		if (dst.remaining() < getBinaryLength())
+			throw new BufferOverflowException();
+		TreeMap<Integer, Integer> tree = tree();
+		dst.put(BINARY_MAGIC);
+		dst.put(BINARY_VERSION);
+		putVarInt(dst, tree.size());
+		int previous = -1;
+		for (Map.Entry<Integer, Integer> entry : tree.entrySet()) {
+			int rgb = entry.getKey();
+			putVarInt(dst, rgb - previous);
+			putVarInt(dst, entry.getValue());
+			previous = rgb;
+		}
+	}
+
+	/**
+	 * @return the number of bytes <code>write(ByteBuffer)</code> writes.
+	 */
+	public synchronized int getBinaryLength() {
+		TreeMap<Integer, Integer> tree = tree();
+		int length = BINARY_MAGIC.length + 1 + getVarIntLength(tree.size());
+		int previous = -1;
+		for (Map.Entry<Integer, Integer> entry : tree.entrySet()) {
+			int rgb = entry.getKey();
+			length += getVarIntLength(rgb - previous)
+					+ getVarIntLength(entry.getValue());
+			previous = rgb;
+		}
+		return length;
+	}
+
+	/**
+	 * @return a new buffer holding the binary form of this set, ready to be
+	 *         read or written to a channel.
+	 */
+	public synchronized ByteBuffer toByteBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocate(getBinaryLength());
+		write(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/** Write a non-negative int 7 bits at a time, low bits first. */
+	private static void putVarInt(ByteBuffer dst, int value) {
+		while ((value & ~0x7f) != 0) {
+			dst.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		dst.put((byte) value);
+	}
+
+	private static int getVarIntLength(int value) {
+		int length = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	private static int getVarInt(ByteBuffer src) {
+		int value = 0;
+		for (int shift = 0; shift < 28; shift += 7) {
+			int b = src.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		// the 5th byte holds only the top 4 bits
+		int b = src.get();
+		if ((b & 0xff) > 0x0f)
+			throw new IllegalArgumentException("Corrupt varint.");
+		return value | (b << 28);
+	}
+
 	/**
 	 * A a color to this set.
 	 * 
@@ -347,12 +538,7 @@ public class ColorSet implements Serializable {
 			throw new IllegalArgumentException("b must be between 0 and 255");
 		int rgb = (r << 16) + (g << 8) + b;
 
-		Integer count = tree.get(rgb);
-		if (count == null) {
-			tree.put(rgb, occurrence);
-		} else {
-			tree.put(rgb, count + occurrence);
-		}
+		histogram().add(rgb, occurrence);
 
 		pixelCount += occurrence;
 	}
@@ -361,7 +547,7 @@ public class ColorSet implements Serializable {
 	 * @return the number of colors represented in this <code>ColorSet</code>.
 	 */
 	public synchronized int getColorCount() {
-		return tree.size();
+		return tree().size();
 	}
 
 	/**
@@ -408,6 +594,7 @@ public class ColorSet implements Serializable {
 			throw new IllegalStateException("There are too many colors ("
 					+ colorCount + ") to make an IndexColorModel (max is 256)");
 
+		TreeMap<Integer, Integer> tree = tree();
 		Integer[] allColors = tree.keySet().toArray(new Integer[tree.size()]);
 
 		int offset = includeTransparentPixel ? 1 : 0;
@@ -453,19 +640,98 @@ public class ColorSet implements Serializable {
 
 		int w = i.getWidth();
 
-		int r, g, b, alpha;
 		int[] t = new int[i.getMinimumArrayLength()];
 		while (i.isDone() == false) {
 			i.next(t);
-			for (int a = 0; a < w; a++) {
-				alpha = ((t[a] >> 24) & 0xff);
-				if (alpha > 128) {
-					r = ((t[a] >> 16) & 0xff);
-					g = ((t[a] >> 8) & 0xff);
-					b = ((t[a]) & 0xff);
-					addColor(r, g, b, 1);
+			synchronized (this) {
+				IntHistogram h = histogram();
+				long before = h.total();
+				h.addRow(t, w);
+				pixelCount += h.total() - before;
+			}
+		}
+	}
+
+	/**
+	 * Add all the pixels in this image that are more than 50% opaque, the
+	 * same as <code>addColors(BufferedImage)</code> but bands of rows are
+	 * counted into separate histograms on the fork join pool and merged at
+	 * the end. Small images, or a single core, are counted on the calling
+	 * thread.
+	 * 
+	 * @param i
+	 *            the image to process.
+	 */
+	public void addColorsParallel(BufferedImage i) {
+		long pixels = (long) i.getWidth() * i.getHeight();
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		if (pixels <= CountBand.MIN_PIXELS || parallelism < 2) {
+			addColors(i);
+			return;
+		}
+		// a couple of bands per core, every merge costs a pass over the
+		// colors of a band so we don't want many more than that
+		long bandPixels = Math.max(CountBand.MIN_PIXELS, pixels
+				/ (parallelism * 2));
+		IntHistogram h = new CountBand(i, 0, i.getHeight(), bandPixels)
+				.invoke();
+		synchronized (this) {
+			histogram().addAll(h);
+			pixelCount += h.total();
+		}
+	}
+
+	/**
+	 * Counts the colors of a band of rows into its own histogram.
+	 */
+	static class CountBand extends RecursiveTask<IntHistogram> {
+		private static final long serialVersionUID = 1L;
+
+		/** The smallest band worth splitting. */
+		static final int MIN_PIXELS = 64 * 1024;
+
+		final BufferedImage image;
+		final int firstRow, endRow;
+		final long bandPixels;
+
+		CountBand(BufferedImage image, int firstRow, int endRow,
+				long bandPixels) {
+			this.image = image;
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+			this.bandPixels = bandPixels;
+		}
+
+		@Override
+		protected IntHistogram compute() {
+			int width = image.getWidth();
+			int rows = endRow - firstRow;
+			if (rows < 2 || (long) rows * width <= bandPixels) {
+				IntHistogram h = new IntHistogram();
+				// the sub image shares the parent's raster
+				IntARGBConverter i = new IntARGBConverter(
+						BufferedImageIterator.get(image.getSubimage(0,
+								firstRow, width, rows)));
+				int[] t = new int[i.getMinimumArrayLength()];
+				while (i.isDone() == false) {
+					i.next(t);
+					h.addRow(t, width);
 				}
+				return h;
+			}
+			int mid = firstRow + rows / 2;
+			CountBand top = new CountBand(image, firstRow, mid, bandPixels);
+			CountBand bottom = new CountBand(image, mid, endRow, bandPixels);
+			top.fork();
+			IntHistogram h = bottom.compute();
+			IntHistogram h2 = top.join();
+			// merge the smaller one into the larger one
+			if (h2.size() > h.size()) {
+				h2.addAll(h);
+				return h2;
 			}
+			h.addAll(h2);
+			return h;
 		}
 	}
 
@@ -500,12 +766,12 @@ public class ColorSet implements Serializable {
 	 *            the incoming ColorSet to add to this set.
 	 */
 	public synchronized void addColors(ColorSet l) {
-		for (Integer rgb : l.tree.keySet()) {
-			int count = l.tree.get(rgb);
+		for (Map.Entry<Integer, Integer> entry : l.tree().entrySet()) {
+			int rgb = entry.getKey();
 			int r = (rgb >> 16) & 0xff;
 			int g = (rgb >> 8) & 0xff;
 			int b = (rgb >> 0) & 0xff;
-			addColor(r, g, b, count);
+			addColor(r, g, b, entry.getValue());
 		}
 	}
 
@@ -517,6 +783,7 @@ public class ColorSet implements Serializable {
 	 */
 	public synchronized Color[] getColors(boolean prependTransparentPixel) {
 		int extra = prependTransparentPixel ? 1 : 0;
+		TreeMap<Integer, Integer> tree = tree();
 		Color[] array = new Color[tree.size() + extra];
 		int ctr = 0;
 		if (prependTransparentPixel) {
@@ -11,7 +11,13 @@
 package com.pump.image.pixel.quantize;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import com.pump.image.pixel.BufferedImageIterator;
 import com.pump.image.pixel.IndexedBytePixelIterator;
@@ -39,10 +45,12 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 		int y = 0;
 		int[][] diffusionR, diffusionG, diffusionB;
 		int z = kernel[0].length / 2;
+		Matcher matcher;
 
 		ErrorDiffusionIndexedBytePixelIterator(BufferedImage source,
 				ColorLUT lut) {
 			super(source, lut);
+			matcher = new Matcher(lut, tree);
 			iter = new IntARGBConverter(BufferedImageIterator.get(source));
 			incomingRow = new int[iter.getWidth()];
 
@@ -59,8 +67,6 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 					int g = (incomingRow[x] >> 8) & 0xff;
 					int b = (incomingRow[x] >> 0) & 0xff;
 
-					Match match;
-
 					r = Math.min(Math.max(r + diffusionR[0][x] / kernelSum, 0),
 							255);
 					g = Math.min(Math.max(g + diffusionG[0][x] / kernelSum, 0),
@@ -68,11 +74,11 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 					b = Math.min(Math.max(b + diffusionB[0][x] / kernelSum, 0),
 							255);
 
-					match = lut.getMatch(r, g, b);
+					int index = matcher.match(r, g, b);
 
-					int dr = r - match.node.red;
-					int dg = g - match.node.green;
-					int db = b - match.node.blue;
+					int dr = r - matcher.red;
+					int dg = g - matcher.green;
+					int db = b - matcher.blue;
 					for (int ky = 0; ky < kernel.length; ky++) {
 						for (int kx = 0; kx < kernel[ky].length; kx++) {
 							if (x + kx - z >= 0 && x + kx - z < iter.getWidth()) {
@@ -86,7 +92,7 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 						}
 					}
 
-					dest[x] = (byte) (match.node.index);
+					dest[x] = (byte) (index);
 				}
 
 				iterateDiffusionData(diffusionR);
@@ -103,8 +109,6 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 						int g = (incomingRow[x] >> 8) & 0xff;
 						int b = (incomingRow[x] >> 0) & 0xff;
 
-						Match match;
-
 						r = Math.min(
 								Math.max(r + diffusionR[0][x] / kernelSum, 0),
 								255);
@@ -115,11 +119,11 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 								Math.max(b + diffusionB[0][x] / kernelSum, 0),
 								255);
 
-						match = lut.getMatch(r, g, b);
+						int index = matcher.match(r, g, b);
 
-						int dr = r - match.node.red;
-						int dg = g - match.node.green;
-						int db = b - match.node.blue;
+						int dr = r - matcher.red;
+						int dg = g - matcher.green;
+						int db = b - matcher.blue;
 						for (int ky = 0; ky < kernel.length; ky++) {
 							for (int kx = 0; kx < kernel[ky].length; kx++) {
 								if (x + kx - z >= 0
@@ -133,7 +137,7 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 								}
 							}
 						}
-						dest[x] = (byte) (match.node.index);
+						dest[x] = (byte) (index);
 					}
 				}
 
@@ -164,6 +168,61 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 		}
 	}
 
+	/**
+	 * Looks up the closest color, and keeps the components of the last match.
+	 * Each thread needs its own <code>Matcher</code>.
+	 */
+	static class Matcher {
+		final ColorLUT lut;
+		final ColorKDTree tree;
+		/** The palette, if the inverse colormap answers lookups. */
+		final int[] palette;
+		int red, green, blue;
+
+		/**
+		 * @param tree
+		 *            the tree to search instead of lut, or null. The inverse
+		 *            colormap comes first if the lut uses one.
+		 */
+		Matcher(ColorLUT lut, ColorKDTree tree) {
+			this.lut = lut;
+			this.tree = tree;
+			if (lut.isInverseColormap()) {
+				IndexColorModel icm = lut.getIndexColorModel();
+				palette = new int[icm.getMapSize()];
+				icm.getRGBs(palette);
+			} else {
+				palette = null;
+			}
+		}
+
+		/**
+		 * Return the index of the closest color, and store its components in
+		 * <code>red</code>, <code>green</code> and <code>blue</code>.
+		 */
+		int match(int r, int g, int b) {
+			if (palette != null) {
+				int index = lut.getIndexMatch(r, g, b);
+				red = (palette[index] >> 16) & 0xff;
+				green = (palette[index] >> 8) & 0xff;
+				blue = palette[index] & 0xff;
+				return index;
+			}
+			if (tree != null) {
+				int entry = tree.getNearest(r, g, b);
+				red = tree.getRed(entry);
+				green = tree.getGreen(entry);
+				blue = tree.getBlue(entry);
+				return tree.getIndex(entry);
+			}
+			Match match = lut.getMatch(r, g, b);
+			red = match.node.red;
+			green = match.node.green;
+			blue = match.node.blue;
+			return match.node.index;
+		}
+	}
+
 	/**
 	 * Create a new ErrorDiffusionImageQuantization.
 	 * 
@@ -186,6 +245,197 @@ public class ErrorDiffusionImageQuantization extends ImageQuantization {
 		kernelSum = sum;
 	}
 
+	/**
+	 * Return a copy of the kernel used to distribute error to adjacent
+	 * pixels.
+	 */
+	public int[][] getKernel() {
+		int[][] copy = new int[kernel.length][];
+		for (int a = 0; a < kernel.length; a++) {
+			copy[a] = kernel[a].clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * Dither the image on several threads in a staggered wavefront: each row
+	 * starts once the row above it is far enough ahead that every error it
+	 * diffuses into the pixel being evaluated has been added. Each row keeps
+	 * its own errors for the rows below it, and a pixel adds them up when it
+	 * is reached, so the sums (and the image) are exactly the same as
+	 * {@link #createImage(BufferedImage, ColorLUT)}.
+	 * <p>
+	 * Small images, or a single core, are dithered on the calling thread.
+	 */
+	@Override
+	public BufferedImage createImageParallel(BufferedImage source,
+			ColorLUT colorLUT) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		int parallelism = Math.min(ForkJoinPool.getCommonPoolParallelism(),
+				height);
+		if (parallelism < 2 || (long) width * height < Wavefront.MIN_PIXELS)
+			return createImage(source, colorLUT);
+
+		IndexColorModel icm = colorLUT.getIndexColorModel();
+		if (icm == null)
+			throw new NullPointerException();
+
+		Wavefront wavefront = new Wavefront(source, colorLUT, parallelism);
+		Wavefront.Worker[] workers = new Wavefront.Worker[parallelism];
+		for (int a = 0; a < workers.length; a++) {
+			workers[a] = wavefront.new Worker();
+		}
+		ForkJoinTask.invokeAll(workers);
+
+		BufferedImage bi = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_INDEXED, icm);
+		for (int y = 0; y < height; y++) {
+			bi.getRaster().setDataElements(0, y, width, 1, wavefront.dest[y]);
+		}
+		return bi;
+	}
+
+	/** The shared state of one parallel dithering. */
+	class Wavefront {
+		/** The smallest image worth dithering on several threads. */
+		static final int MIN_PIXELS = 64 * 1024;
+
+		/** How many pixels a row finishes between progress updates. */
+		static final int STEP = 32;
+
+		final int width, height, z;
+		final int[][] argb;
+		final byte[][] dest;
+		final ColorLUT lut;
+		final ColorKDTree tree;
+		final int transparentPixel;
+
+		/**
+		 * The errors each row diffuses into itself and the rows below it,
+		 * indexed by [row % slots][kernel row][x].
+		 */
+		final int[][][] errorR, errorG, errorB;
+		final int slots;
+
+		/** The number of finished pixels of each row. */
+		final AtomicIntegerArray progress;
+		final AtomicInteger nextRow = new AtomicInteger();
+
+		Wavefront(BufferedImage source, ColorLUT lut, int parallelism) {
+			width = source.getWidth();
+			height = source.getHeight();
+			z = kernel[0].length / 2;
+			this.lut = lut;
+			tree = lut.isKDTree() ? lut.getKDTree() : null;
+			transparentPixel = lut.getIndexColorModel().getTransparentPixel();
+
+			IntARGBConverter iter = new IntARGBConverter(
+					BufferedImageIterator.get(source));
+			argb = new int[height][];
+			for (int y = 0; y < height; y++) {
+				argb[y] = new int[Math.max(width,
+						iter.getMinimumArrayLength())];
+				iter.next(argb[y]);
+			}
+			dest = new byte[height][width];
+
+			// a slot is reused once the rows that read it are finished
+			slots = parallelism + kernel.length;
+			errorR = new int[slots][kernel.length][width];
+			errorG = new int[slots][kernel.length][width];
+			errorB = new int[slots][kernel.length][width];
+			progress = new AtomicIntegerArray(height);
+		}
+
+		/** Wait until a row has finished at least this many pixels. */
+		void await(int row, int pixels) {
+			while (progress.get(row) < pixels) {
+				Thread.yield();
+			}
+		}
+
+		/** Claims and dithers rows until there are none left. */
+		class Worker extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				Matcher matcher = new Matcher(lut, tree);
+				int y;
+				while ((y = nextRow.getAndIncrement()) < height) {
+					dither(y, matcher);
+				}
+			}
+
+			private void dither(int y, Matcher matcher) {
+				int reused = y - slots + kernel.length - 1;
+				if (reused >= 0)
+					await(reused, width);
+				int slot = y % slots;
+				for (int ky = 0; ky < kernel.length; ky++) {
+					Arrays.fill(errorR[slot][ky], 0);
+					Arrays.fill(errorG[slot][ky], 0);
+					Arrays.fill(errorB[slot][ky], 0);
+				}
+
+				int[] row = argb[y];
+				byte[] out = dest[y];
+				int ready = y == 0 ? width : 0;
+				for (int x = 0; x < width; x++) {
+					if ((x & (STEP - 1)) == 0)
+						progress.set(y, x);
+					if (ready < width && ready < x + z + 1) {
+						progress.set(y, x);
+						await(y - 1, Math.min(width, x + z + 1));
+						ready = progress.get(y - 1);
+					}
+					if (transparentPixel >= 0
+							&& ((row[x] >> 24) & 0xff) < 128) {
+						out[x] = (byte) transparentPixel;
+						continue;
+					}
+
+					int sumR = 0, sumG = 0, sumB = 0;
+					for (int ky = 0; ky < kernel.length && ky <= y; ky++) {
+						int s = (y - ky) % slots;
+						sumR += errorR[s][ky][x];
+						sumG += errorG[s][ky][x];
+						sumB += errorB[s][ky][x];
+					}
+
+					int r = (row[x] >> 16) & 0xff;
+					int g = (row[x] >> 8) & 0xff;
+					int b = (row[x] >> 0) & 0xff;
+					r = Math.min(Math.max(r + sumR / kernelSum, 0), 255);
+					g = Math.min(Math.max(g + sumG / kernelSum, 0), 255);
+					b = Math.min(Math.max(b + sumB / kernelSum, 0), 255);
+
+					int index = matcher.match(r, g, b);
+
+					int dr = r - matcher.red;
+					int dg = g - matcher.green;
+					int db = b - matcher.blue;
+					for (int ky = 0; ky < kernel.length; ky++) {
+						int[] rowR = errorR[slot][ky];
+						int[] rowG = errorG[slot][ky];
+						int[] rowB = errorB[slot][ky];
+						for (int kx = 0; kx < kernel[ky].length; kx++) {
+							int i = x + kx - z;
+							if (i >= 0 && i < width) {
+								rowR[i] += dr * kernel[ky][kx];
+								rowG[i] += dg * kernel[ky][kx];
+								rowB[i] += db * kernel[ky][kx];
+							}
+						}
+					}
+					out[x] = (byte) (index);
+				}
+				progress.set(y, width);
+			}
+		}
+	}
+
 	@Override
 	public IndexedBytePixelIterator createImageData(BufferedImage source,
 			ColorLUT colorLUT) {
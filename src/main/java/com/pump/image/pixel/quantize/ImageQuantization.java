@@ -32,10 +32,20 @@ public abstract class ImageQuantization {
 		protected ColorLUT lut;
 		protected IndexColorModel icm;
 
+		/**
+		 * The palette search to use instead of <code>lut</code>, or null.
+		 * 
+		 * @see ColorLUT#setKDTree(boolean)
+		 * @see ColorLUT#setPerceptual(boolean)
+		 */
+		protected ColorKDTree tree;
+
 		AbstractIndexedBytePixelIterator(BufferedImage source, ColorLUT lut) {
 			this.source = source;
 			this.lut = lut;
 			icm = lut.getIndexColorModel();
+			if (lut.isKDTree() || lut.isPerceptual())
+				tree = lut.getKDTree();
 		}
 
 		public int getType() {
@@ -173,6 +183,74 @@ public abstract class ImageQuantization {
 		}
 	};
 
+	/**
+	 * This uses a 2x2 Bayer matrix for ordered dithering. The matrix is:
+	 * 
+	 * <pre>
+	 * [ [ 0, 2],
+	 *  [ 3, 1] ]
+	 * </pre>
+	 * 
+	 * @see OrderedDitherImageQuantization
+	 */
+	public static ImageQuantization BAYER_2X2 = new OrderedDitherImageQuantization(
+			OrderedDitherImageQuantization.createBayerMatrix(2)) {
+		@Override
+		public String toString() {
+			return "BAYER_2X2";
+		}
+	};
+
+	/**
+	 * This uses a 4x4 Bayer matrix for ordered dithering.
+	 * 
+	 * @see OrderedDitherImageQuantization
+	 */
+	public static ImageQuantization BAYER_4X4 = new OrderedDitherImageQuantization(
+			OrderedDitherImageQuantization.createBayerMatrix(4)) {
+		@Override
+		public String toString() {
+			return "BAYER_4X4";
+		}
+	};
+
+	/**
+	 * This uses an 8x8 Bayer matrix for ordered dithering.
+	 * 
+	 * @see OrderedDitherImageQuantization
+	 */
+	public static ImageQuantization BAYER_8X8 = new OrderedDitherImageQuantization(
+			OrderedDitherImageQuantization.createBayerMatrix(8)) {
+		@Override
+		public String toString() {
+			return "BAYER_8X8";
+		}
+	};
+
+	/**
+	 * This uses a tiled 64x64 blue noise matrix for ordered dithering. This
+	 * avoids the cross hatched look of the Bayer matrices. The matrix is
+	 * created the first time it is used.
+	 * 
+	 * @see OrderedDitherImageQuantization#createBlueNoiseMatrix(int)
+	 */
+	public static ImageQuantization BLUE_NOISE = new OrderedDitherImageQuantization(
+			null) {
+		private int[][] blueNoise;
+
+		@Override
+		public synchronized int[][] getMatrix() {
+			if (blueNoise == null)
+				blueNoise = createBlueNoiseMatrix(64);
+			return blueNoise;
+		}
+
+		@Override
+		public String toString() {
+			return "BLUE_NOISE";
+		}
+	};
+
 	/**
 	 * Create a copy of the image argument using only the colors provided in the
 	 * color look-up table argument.
@@ -204,6 +282,23 @@ public abstract class ImageQuantization {
 		return bi;
 	}
 
+	/**
+	 * Create a copy of the image argument using only the colors provided in the
+	 * color look-up table argument, on several threads if this algorithm
+	 * supports it. The image is the same as
+	 * {@link #createImage(BufferedImage, ColorLUT)} returns.
+	 * 
+	 * @param source
+	 *            the image to downsample.
+	 * @param colorLUT
+	 *            the new color table to use. This must be created from an
+	 *            IndexColorModel.
+	 */
+	public BufferedImage createImageParallel(BufferedImage source,
+			ColorLUT colorLUT) {
+		return createImage(source, colorLUT);
+	}
+
 	/**
 	 * Create a copy of the image argument using only the colors provided in the
 	 * color look-up table argument.
@@ -0,0 +1,197 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://raw.githubusercontent.com/mickleness/pumpernickel/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ *
+ * Added by Paul Conti for the GUIslice project 2024
+ * See: 
+ * https://github.com/ImpulseAdventure/GUIslice
+ */
+package com.pump.image.pixel.quantize;
+
+import java.util.Arrays;
+
+/**
+ * A map of 24-bit RGB values to the number of occurrences, stored in primitive
+ * arrays with open addressing and linear probing. Nothing is boxed, so counting
+ * the pixels of an image costs a hash and an array increment per pixel.
+ * <P>
+ * This class is not thread-safe.
+ */
+class IntHistogram {
+
+	/** Marks an unused slot. RGB keys are never negative. */
+	private static final int EMPTY = -1;
+
+	/** The slots are resized once they are this full (3/4). */
+	private static final int LOAD_NUMERATOR = 3;
+	private static final int LOAD_DENOMINATOR = 4;
+
+	int[] keys;
+	int[] counts;
+	int size;
+	private int mask;
+	private int threshold;
+
+	/** The sum of all counts. */
+	private long total;
+
+	IntHistogram() {
+		allocate(256);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		counts = new int[capacity];
+		mask = capacity - 1;
+		threshold = capacity / LOAD_DENOMINATOR * LOAD_NUMERATOR;
+		size = 0;
+	}
+
+	private static int hash(int rgb) {
+		int h = rgb * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Add to the count of a color.
+	 * 
+	 * @param rgb
+	 *            a 24-bit RGB value.
+	 * @param occurrence
+	 *            the number to add.
+	 */
+	void add(int rgb, int occurrence) {
+		total += occurrence;
+		insert(rgb, occurrence);
+	}
+
+	private void insert(int rgb, int occurrence) {
+		int i = hash(rgb) & mask;
+		while (true) {
+			int k = keys[i];
+			if (k == rgb) {
+				counts[i] += occurrence;
+				return;
+			}
+			if (k == EMPTY) {
+				keys[i] = rgb;
+				counts[i] = occurrence;
+				if (++size > threshold)
+					rehash();
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * Add the pixels of one row that are more than 50% opaque. This does not
+	 * account for premultiplied alpha.
+	 * 
+	 * @param argb
+	 *            the row of ARGB pixels.
+	 * @param length
+	 *            the number of pixels in the row.
+	 */
+	void addRow(int[] argb, int length) {
+		// runs of the same color are common, count them in one go
+		int run = 0;
+		int runRGB = 0;
+		for (int a = 0; a < length; a++) {
+			int p = argb[a];
+			if (((p >> 24) & 0xff) > 128) {
+				int rgb = p & 0xffffff;
+				if (run > 0 && rgb == runRGB) {
+					run++;
+				} else {
+					if (run > 0)
+						add(runRGB, run);
+					runRGB = rgb;
+					run = 1;
+				}
+			}
+		}
+		if (run > 0)
+			add(runRGB, run);
+	}
+
+	/**
+	 * Add all the counts of another histogram.
+	 * 
+	 * @param h
+	 *            the histogram to add.
+	 */
+	void addAll(IntHistogram h) {
+		for (int a = 0; a < h.keys.length; a++) {
+			if (h.keys[a] != EMPTY)
+				add(h.keys[a], h.counts[a]);
+		}
+	}
+
+	/**
+	 * @return the count of a color, or zero.
+	 */
+	int get(int rgb) {
+		int i = hash(rgb) & mask;
+		while (true) {
+			int k = keys[i];
+			if (k == rgb)
+				return counts[i];
+			if (k == EMPTY)
+				return 0;
+			i = (i + 1) & mask;
+		}
+	}
+
+	private void rehash() {
+		int[] oldKeys = keys;
+		int[] oldCounts = counts;
+		allocate(oldKeys.length * 2);
+		for (int a = 0; a < oldKeys.length; a++) {
+			if (oldKeys[a] != EMPTY)
+				insert(oldKeys[a], oldCounts[a]);
+		}
+	}
+
+	/**
+	 * @return the RGB values in ascending order, which is the same order as
+	 *         ColorSet's red comparator.
+	 */
+	int[] sortedKeys() {
+		int[] sorted = new int[size];
+		int ctr = 0;
+		for (int a = 0; a < keys.length; a++) {
+			if (keys[a] != EMPTY)
+				sorted[ctr++] = keys[a];
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the sum of all counts.
+	 */
+	long total() {
+		return total;
+	}
+
+	/** Remove all colors, keeping the current capacity. */
+	void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, EMPTY);
+			size = 0;
+		}
+		total = 0;
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ *
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://raw.githubusercontent.com/mickleness/pumpernickel/master/License.txt
+ *
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ *
+ * Added by Paul Conti for the GUIslice project 2024
+ */
+package com.pump.image.pixel.quantize;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.pump.image.pixel.quantize.ColorLUT.ColorNode;
+
+/**
+ * This refines the palette of another <code>ColorQuantization</code> with <a
+ * href="https://en.wikipedia.org/wiki/K-means_clustering">k-means</a>
+ * (Lloyd's algorithm).
+ * <p>
+ * The other quantization picks the starting palette. Then every color of the
+ * original set is assigned to its nearest palette color, and each palette
+ * color moves to the weighted average of the colors assigned to it. This
+ * repeats until no palette color moves more than a tolerance, or until a
+ * fixed number of iterations. The assignment step is split across the fork
+ * join pool.
+ * <p>
+ * With <code>perceptual</code> each color is assigned to the palette color
+ * that is nearest in {@link OKLab}, matching a perceptual {@link ColorLUT}.
+ * The centers are still averaged in RGB.
+ */
+public class KMeansColorQuantization extends ColorQuantization {
+
+	/** The default number of iterations. */
+	public static final int DEFAULT_ITERATIONS = 8;
+
+	/** The default tolerance, in RGB units. */
+	public static final double DEFAULT_TOLERANCE = 0.5;
+
+	final ColorQuantization seed;
+	final int maximumIterations;
+	final double tolerance;
+	final boolean perceptual;
+
+	/**
+	 * Create a <code>KMeansColorQuantization</code> that refines a
+	 * {@link MedianCutColorQuantization} with the default iterations and
+	 * tolerance.
+	 */
+	public KMeansColorQuantization() {
+		this(DEFAULT_ITERATIONS, DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * Create a <code>KMeansColorQuantization</code> that refines a
+	 * {@link MedianCutColorQuantization}.
+	 *
+	 * @param maximumIterations
+	 *            the most iterations to run.
+	 * @param tolerance
+	 *            stop early once no palette color moves more than this far
+	 *            (in RGB units) in one iteration.
+	 */
+	public KMeansColorQuantization(int maximumIterations, double tolerance) {
+		this(maximumIterations, tolerance, false);
+	}
+
+	/**
+	 * Create a <code>KMeansColorQuantization</code> that refines a
+	 * {@link MedianCutColorQuantization}.
+	 *
+	 * @param maximumIterations
+	 *            the most iterations to run.
+	 * @param tolerance
+	 *            stop early once no palette color moves more than this far
+	 *            (in RGB units) in one iteration.
+	 * @param perceptual
+	 *            if true then colors are assigned to the palette color that
+	 *            is nearest in {@link OKLab}, and the median cut is
+	 *            perceptual too. If false then RGB distance is used.
+	 */
+	public KMeansColorQuantization(int maximumIterations, double tolerance,
+			boolean perceptual) {
+		this(new MedianCutColorQuantization(false, perceptual),
+				maximumIterations, tolerance, perceptual);
+	}
+
+	/**
+	 * Create a <code>KMeansColorQuantization</code>.
+	 *
+	 * @param seed
+	 *            the quantization that picks the starting palette.
+	 * @param maximumIterations
+	 *            the most iterations to run.
+	 * @param tolerance
+	 *            stop early once no palette color moves more than this far
+	 *            (in RGB units) in one iteration.
+	 */
+	public KMeansColorQuantization(ColorQuantization seed,
+			int maximumIterations, double tolerance) {
+		this(seed, maximumIterations, tolerance, false);
+	}
+
+	/**
+	 * Create a <code>KMeansColorQuantization</code>.
+	 *
+	 * @param seed
+	 *            the quantization that picks the starting palette.
+	 * @param maximumIterations
+	 *            the most iterations to run.
+	 * @param tolerance
+	 *            stop early once no palette color moves more than this far
+	 *            (in RGB units) in one iteration.
+	 * @param perceptual
+	 *            if true then colors are assigned to the palette color that
+	 *            is nearest in {@link OKLab}. If false then RGB distance is
+	 *            used.
+	 */
+	public KMeansColorQuantization(ColorQuantization seed,
+			int maximumIterations, double tolerance, boolean perceptual) {
+		if (seed == null)
+			throw new NullPointerException();
+		if (maximumIterations < 0)
+			throw new IllegalArgumentException("maximumIterations ("
+					+ maximumIterations + ") must be 0 or greater");
+		this.seed = seed;
+		this.maximumIterations = maximumIterations;
+		this.tolerance = tolerance;
+		this.perceptual = perceptual;
+	}
+
+	@Override
+	public ColorSet createReducedSet(ColorSet originalSet,
+			int maximumColorCount, boolean retainOriginalIntegrity) {
+		ColorSet reducedSet = seed.createReducedSet(originalSet,
+				maximumColorCount, true);
+		if (reducedSet == originalSet || maximumIterations == 0)
+			return reducedSet;
+		return refine(originalSet, reducedSet);
+	}
+
+	/**
+	 * Run k-means over the colors of originalSet, starting with the colors
+	 * of palette.
+	 *
+	 * @param originalSet
+	 *            the colors to fit, this is not modified.
+	 * @param palette
+	 *            the starting palette, this is not modified.
+	 * @return the refined palette.
+	 */
+	public ColorSet refine(ColorSet originalSet, ColorSet palette) {
+		int[] rgb;
+		int[] weights;
+		synchronized (originalSet) {
+			Map<Integer, Integer> frequencyMap = originalSet
+					.getRGBtoFrequencyMap(false);
+			rgb = new int[frequencyMap.size()];
+			weights = new int[rgb.length];
+			int i = 0;
+			for (Map.Entry<Integer, Integer> entry : frequencyMap.entrySet()) {
+				rgb[i] = entry.getKey();
+				weights[i] = entry.getValue();
+				i++;
+			}
+		}
+
+		Map<Integer, Integer> paletteMap = palette.getRGBtoFrequencyMap(true);
+		int k = paletteMap.size();
+		if (k == 0)
+			return palette;
+		double[] centers = new double[k * 3];
+		int c = 0;
+		for (int key : paletteMap.keySet()) {
+			centers[c++] = (key >> 16) & 0xff;
+			centers[c++] = (key >> 8) & 0xff;
+			centers[c++] = key & 0xff;
+		}
+
+		long bandColors = Math.max(Assign.MIN_COLORS, rgb.length
+				/ (ForkJoinPool.getCommonPoolParallelism() * 2));
+		double[] sums = null;
+		for (int iteration = 0; iteration < maximumIterations; iteration++) {
+			ColorKDTree tree = new ColorKDTree(getNodes(centers), perceptual);
+			sums = new Assign(tree, rgb, weights, 0, rgb.length, bandColors)
+					.invoke();
+			double movement = 0;
+			for (int a = 0; a < k; a++) {
+				double w = sums[a * 4 + 3];
+				if (w > 0) {
+					double r = sums[a * 4] / w;
+					double g = sums[a * 4 + 1] / w;
+					double b = sums[a * 4 + 2] / w;
+					double dr = r - centers[a * 3];
+					double dg = g - centers[a * 3 + 1];
+					double db = b - centers[a * 3 + 2];
+					movement = Math.max(movement, dr * dr + dg * dg + db * db);
+					centers[a * 3] = r;
+					centers[a * 3 + 1] = g;
+					centers[a * 3 + 2] = b;
+				}
+			}
+			if (movement < tolerance * tolerance)
+				break;
+		}
+
+		// one more assignment so the frequencies match the final palette
+		ColorNode[] nodes = getNodes(centers);
+		sums = new Assign(new ColorKDTree(nodes, perceptual), rgb, weights, 0,
+				rgb.length, bandColors).invoke();
+		ColorSet newGuy = new ColorSet();
+		for (int a = 0; a < k; a++) {
+			long w = (long) sums[a * 4 + 3];
+			if (w > 0) {
+				newGuy.addColor(nodes[a].red, nodes[a].green, nodes[a].blue,
+						(int) Math.min(w, Integer.MAX_VALUE));
+			}
+		}
+		return newGuy;
+	}
+
+	/** The centers rounded to colors, indexed by their position. */
+	private static ColorNode[] getNodes(double[] centers) {
+		ColorNode[] nodes = new ColorNode[centers.length / 3];
+		for (int a = 0; a < nodes.length; a++) {
+			nodes[a] = new ColorNode(clamp(centers[a * 3]),
+					clamp(centers[a * 3 + 1]), clamp(centers[a * 3 + 2]), a);
+		}
+		return nodes;
+	}
+
+	private static int clamp(double v) {
+		return Math.min(255, Math.max(0, (int) Math.round(v)));
+	}
+
+	/**
+	 * Assigns a range of colors to their nearest palette color, and returns
+	 * the weighted sum of red, green and blue and the total weight of each
+	 * palette color.
+	 */
+	static class Assign extends RecursiveTask<double[]> {
+		private static final long serialVersionUID = 1L;
+
+		/** The smallest range worth splitting. */
+		static final int MIN_COLORS = 4 * 1024;
+
+		final ColorKDTree tree;
+		final int[] rgb, weights;
+		final int first, end;
+		final long bandColors;
+
+		Assign(ColorKDTree tree, int[] rgb, int[] weights, int first,
+				int end, long bandColors) {
+			this.tree = tree;
+			this.rgb = rgb;
+			this.weights = weights;
+			this.first = first;
+			this.end = end;
+			this.bandColors = bandColors;
+		}
+
+		@Override
+		protected double[] compute() {
+			if (end - first <= bandColors) {
+				double[] sums = new double[tree.size() * 4];
+				for (int a = first; a < end; a++) {
+					int r = (rgb[a] >> 16) & 0xff;
+					int g = (rgb[a] >> 8) & 0xff;
+					int b = rgb[a] & 0xff;
+					int i = tree.getIndex(tree.getNearest(r, g, b)) * 4;
+					double w = weights[a];
+					sums[i] += r * w;
+					sums[i + 1] += g * w;
+					sums[i + 2] += b * w;
+					sums[i + 3] += w;
+				}
+				return sums;
+			}
+			int mid = (first + end) >>> 1;
+			Assign left = new Assign(tree, rgb, weights, first, mid,
+					bandColors);
+			Assign right = new Assign(tree, rgb, weights, mid, end,
+					bandColors);
+			left.fork();
+			double[] sums = right.compute();
+			double[] sums2 = left.join();
+			for (int a = 0; a < sums.length; a++) {
+				sums[a] += sums2[a];
+			}
+			return sums;
+		}
+	}
+}
@@ -12,8 +12,7 @@ package com.pump.image.pixel.quantize;
 
 import java.util.Arrays;
 import java.util.Map;
-
-import com.pump.image.pixel.quantize.ColorSet.RGBChannelComparator;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This is a <a href="http://en.wikipedia.org/wiki/Median_cut">median cut color
@@ -33,18 +32,64 @@ import com.pump.image.pixel.quantize.ColorSet.RGBChannelComparator;
  * color value. That is: if there are 100 occurrences of red of 1 occurrence of
  * orange in a cluster, then the red will carry 100 times more weight when we
  * calculate the average.
- *
+ * </P>
+ * <P>
+ * Internally each color and its frequency are packed into a <code>long</code>
+ * with the color in the upper 32 bits, so the lists are sorted with a radix
+ * sort on primitives, and large lists are split on the fork join pool. By
+ * default a list is cut in half by the number of colors; with
+ * <code>weightedMedian</code> it is cut at the median pixel instead.
+ * </P>
+ * <P>
+ * With <code>perceptual</code> each list is cut along the channel whose range
+ * looks the widest in {@link OKLab} instead of taking red, green and blue in
+ * turn, so the palette spends fewer colors on differences that are hard to
+ * see.
+ * </P>
  */
 public class MedianCutColorQuantization extends ColorQuantization {
-	private static RGBChannelComparator redComparator = new RGBChannelComparator(
-			16, 8, 0);
-	private static RGBChannelComparator greenComparator = new RGBChannelComparator(
-			8, 0, 16);
-	private static RGBChannelComparator blueComparator = new RGBChannelComparator(
-			0, 16, 8);
 
-	private static RGBChannelComparator[] comparators = new RGBChannelComparator[] {
-			redComparator, greenComparator, blueComparator };
+	final boolean weightedMedian;
+	final boolean perceptual;
+
+	/**
+	 * Create a <code>MedianCutColorQuantization</code> that cuts lists in half
+	 * by the number of colors.
+	 */
+	public MedianCutColorQuantization() {
+		this(false);
+	}
+
+	/**
+	 * Create a <code>MedianCutColorQuantization</code>.
+	 * 
+	 * @param weightedMedian
+	 *            if true then lists are cut at the median pixel, so frequent
+	 *            colors get more of the palette. If false then lists are cut
+	 *            in half by the number of colors.
+	 */
+	public MedianCutColorQuantization(boolean weightedMedian) {
+		this(weightedMedian, false);
+	}
+
+	/**
+	 * Create a <code>MedianCutColorQuantization</code>.
+	 * 
+	 * @param weightedMedian
+	 *            if true then lists are cut at the median pixel, so frequent
+	 *            colors get more of the palette. If false then lists are cut
+	 *            in half by the number of colors.
+	 * @param perceptual
+	 *            if true then each list is sorted by the channel whose range
+	 *            makes the biggest difference in {@link OKLab}, measured at
+	 *            the average color of the list. If false then lists are sorted
+	 *            by red, green and blue in turn.
+	 */
+	public MedianCutColorQuantization(boolean weightedMedian,
+			boolean perceptual) {
+		this.weightedMedian = weightedMedian;
+		this.perceptual = perceptual;
+	}
 
 	@Override
 	public ColorSet createReducedSet(ColorSet originalSet,
@@ -57,45 +102,237 @@ public class MedianCutColorQuantization extends ColorQuantization {
 		if (originalSet.getColorCount() <= maximumColorCount) {
 			return originalSet;
 		}
+		long[] colors;
+		synchronized (originalSet) {
+			Map<Integer, Integer> frequencyMap = originalSet
+					.getRGBtoFrequencyMap(false);
+			colors = new long[frequencyMap.size()];
+			int i = 0;
+			for (Map.Entry<Integer, Integer> entry : frequencyMap.entrySet()) {
+				colors[i++] = pack(entry.getKey(), entry.getValue());
+			}
+		}
+		return createReducedSet(colors, maximumColorCount);
+	}
+
+	/**
+	 * Reduce colors that are already packed with {@link #pack(int, int)}.
+	 * 
+	 * @param colors
+	 *            the packed colors, there must be more than
+	 *            maximumColorCount of them. This array is reordered.
+	 * @param maximumColorCount
+	 *            the number of colors to reduce to.
+	 */
+	ColorSet createReducedSet(long[] colors, int maximumColorCount) {
 		ColorSet newGuy = new ColorSet();
-		Map<Integer, Integer> frequencyMap = originalSet
-				.getRGBtoFrequencyMap(false);
-		Integer[] rgb = frequencyMap.keySet().toArray(
-				new Integer[originalSet.tree.size()]);
-		split(rgb, frequencyMap, 0, rgb.length, maximumColorCount, 0, newGuy);
+		new Split(colors, new long[colors.length], 0, colors.length,
+				maximumColorCount, 0, 0, weightedMedian, perceptual, newGuy)
+				.invoke();
 		return newGuy;
 	}
 
-	private long split(Integer[] rgb, Map<Integer, Integer> rgbToFrequencyMap,
-			int ctr, int len, int count, int comparatorIndex, ColorSet dest) {
-		if (count == 1) {
-			long r = 0;
-			long g = 0;
-			long b = 0;
-			int pixelSum = 0;
+	/**
+	 * Pack a color and its frequency. The color is stored in the upper 32
+	 * bits in the byte order of one of the three sorts: (r, g, b), (g, b, r)
+	 * or (b, r, g). These are the 24 bit rgb value rotated left by 0, 8 or 16
+	 * bits, so sorting the longs sorts by that channel first.
+	 */
+	static long pack(int rgb, int frequency) {
+		return ((long) (rgb & 0xffffff) << 32) | (frequency & 0xffffffffL);
+	}
+
+	/** Rotate the packed color of a long left by 8 bits times steps. */
+	static long rotate(long packed, int steps) {
+		int key = (int) (packed >>> 32);
+		int bits = 8 * steps;
+		key = ((key << bits) | (key >>> (24 - bits))) & 0xffffff;
+		return ((long) key << 32) | (packed & 0xffffffffL);
+	}
+
+	/** Cuts a range of colors in two, or averages it. */
+	static class Split extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** The smallest range worth splitting on another thread. */
+		static final int MIN_FORK = 16 * 1024;
+
+		/** The smallest range worth a radix sort. */
+		static final int MIN_RADIX = 256;
+
+		final long[] colors, scratch;
+		final int ctr, len, count;
+		/** The channel to sort by, and the channel the range is packed by. */
+		final int comparatorIndex, form;
+		final boolean weightedMedian, perceptual;
+		final ColorSet dest;
+
+		Split(long[] colors, long[] scratch, int ctr, int len, int count,
+				int comparatorIndex, int form, boolean weightedMedian,
+				boolean perceptual, ColorSet dest) {
+			this.colors = colors;
+			this.scratch = scratch;
+			this.ctr = ctr;
+			this.len = len;
+			this.count = count;
+			this.comparatorIndex = comparatorIndex;
+			this.form = form;
+			this.weightedMedian = weightedMedian;
+			this.perceptual = perceptual;
+			this.dest = dest;
+		}
+
+		@Override
+		protected void compute() {
 			int k = ctr + len;
-			for (int a = ctr; a < k; a++) {
-				int z = rgbToFrequencyMap.get(rgb[a]);
-				r += ((rgb[a] >> 16) & 0xff) * z;
-				g += ((rgb[a] >> 8) & 0xff) * z;
-				b += ((rgb[a] >> 0) & 0xff) * z;
-				pixelSum += z;
+			if (count == 1) {
+				long r = 0;
+				long g = 0;
+				long b = 0;
+				int pixelSum = 0;
+				int back = (3 - form) % 3;
+				for (int a = ctr; a < k; a++) {
+					long c = rotate(colors[a], back);
+					int rgb = (int) (c >>> 32);
+					int z = (int) c;
+					r += ((rgb >> 16) & 0xff) * z;
+					g += ((rgb >> 8) & 0xff) * z;
+					b += ((rgb >> 0) & 0xff) * z;
+					pixelSum += z;
+				}
+				r = r / pixelSum;
+				g = g / pixelSum;
+				b = b / pixelSum;
+				dest.addColor((int) r, (int) g, (int) b, pixelSum);
+				return;
+			}
+
+			int axis = perceptual ? getPerceptualAxis() : comparatorIndex;
+			int steps = (axis - form + 3) % 3;
+			if (steps != 0) {
+				for (int a = ctr; a < k; a++) {
+					colors[a] = rotate(colors[a], steps);
+				}
+			}
+			// the packed colors are unique so the order is the same as
+			// the RGBChannelComparators
+			if (len < MIN_RADIX) {
+				Arrays.sort(colors, ctr, k);
+			} else {
+				radixSort(colors, scratch, ctr, k);
+			}
+
+			int nextIndex = (axis + 1) % 3;
+			int leftHalfCount = count / 2;
+			int rightHalfCount = count - leftHalfCount;
+			int leftLen = weightedMedian ? getWeightedMedian(leftHalfCount,
+					rightHalfCount) : len / 2;
+			Split left = new Split(colors, scratch, ctr, leftLen,
+					leftHalfCount, nextIndex, axis, weightedMedian,
+					perceptual, dest);
+			Split right = new Split(colors, scratch, ctr + leftLen, len
+					- leftLen, rightHalfCount, nextIndex, axis,
+					weightedMedian, perceptual, dest);
+			if (len >= MIN_FORK) {
+				invokeAll(left, right);
+			} else {
+				left.compute();
+				right.compute();
+			}
+		}
+
+		/**
+		 * Return the channel (0 = red, 1 = green, 2 = blue) whose range makes
+		 * the biggest difference in OKLab: the average color of this range
+		 * is converted with that channel at its minimum and at its maximum.
+		 */
+		private int getPerceptualAxis() {
+			int[] min = { 255, 255, 255 };
+			int[] max = { 0, 0, 0 };
+			long[] sum = new long[3];
+			long total = 0;
+			int back = (3 - form) % 3;
+			for (int a = ctr; a < ctr + len; a++) {
+				long c = rotate(colors[a], back);
+				int rgb = (int) (c >>> 32);
+				int z = (int) c;
+				for (int channel = 0; channel < 3; channel++) {
+					int v = (rgb >> (16 - 8 * channel)) & 0xff;
+					min[channel] = Math.min(min[channel], v);
+					max[channel] = Math.max(max[channel], v);
+					sum[channel] += (long) v * z;
+				}
+				total += z;
+			}
+			int[] mean = new int[3];
+			for (int channel = 0; channel < 3; channel++) {
+				mean[channel] = (int) (sum[channel] / Math.max(total, 1));
+			}
+			int best = 0;
+			int bestDistance = -1;
+			for (int channel = 0; channel < 3; channel++) {
+				int[] lo = mean.clone();
+				int[] hi = mean.clone();
+				lo[channel] = min[channel];
+				hi[channel] = max[channel];
+				int d = OKLab.getDistanceSquared(
+						OKLab.toOKLab(lo[0], lo[1], lo[2]),
+						OKLab.toOKLab(hi[0], hi[1], hi[2]));
+				if (d > bestDistance) {
+					bestDistance = d;
+					best = channel;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Return the length of the left half so it holds about half the
+		 * pixels, but each half still has at least as many colors as it
+		 * needs.
+		 */
+		private int getWeightedMedian(int leftHalfCount, int rightHalfCount) {
+			long total = 0;
+			for (int a = ctr; a < ctr + len; a++) {
+				total += (int) colors[a];
+			}
+			long half = total / 2;
+			long sum = 0;
+			int leftLen = 0;
+			while (leftLen < len && sum + (int) colors[ctr + leftLen] <= half) {
+				sum += (int) colors[ctr + leftLen];
+				leftLen++;
+			}
+			return Math.max(leftHalfCount,
+					Math.min(len - rightHalfCount, leftLen));
+		}
+
+		/**
+		 * An LSD radix sort of [lo, hi) by the 24 bit packed color, one byte
+		 * per pass.
+		 */
+		private static void radixSort(long[] a, long[] scratch, int lo, int hi) {
+			int[] counts = new int[257];
+			long[] src = a;
+			long[] dst = scratch;
+			for (int shift = 32; shift < 56; shift += 8) {
+				Arrays.fill(counts, 0);
+				for (int i = lo; i < hi; i++) {
+					counts[(int) ((src[i] >>> shift) & 0xff) + 1]++;
+				}
+				counts[0] = lo;
+				for (int i = 1; i < 257; i++) {
+					counts[i] += counts[i - 1];
+				}
+				for (int i = lo; i < hi; i++) {
+					dst[counts[(int) ((src[i] >>> shift) & 0xff)]++] = src[i];
+				}
+				long[] t = src;
+				src = dst;
+				dst = t;
 			}
-			r = r / pixelSum;
-			g = g / pixelSum;
-			b = b / pixelSum;
-			dest.addColor((int) r, (int) g, (int) b, pixelSum);
-			return pixelSum;
+			// three passes leave the result in scratch
+			System.arraycopy(src, lo, a, lo, hi - lo);
 		}
-		Arrays.sort(rgb, ctr, ctr + len, comparators[comparatorIndex]);
-		comparatorIndex = (comparatorIndex + 1) % 3;
-		int leftHalfCount = count / 2;
-		int rightHalfCount = count - leftHalfCount;
-		int leftLen = len / 2;
-		long sum = split(rgb, rgbToFrequencyMap, ctr, leftLen, leftHalfCount,
-				comparatorIndex, dest);
-		sum += split(rgb, rgbToFrequencyMap, ctr + leftLen, len - leftLen,
-				rightHalfCount, comparatorIndex, dest);
-		return sum;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ *
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://raw.githubusercontent.com/mickleness/pumpernickel/master/License.txt
+ *
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ *
+ * Added by Paul Conti for the GUIslice project 2024
+ */
+package com.pump.image.pixel.quantize;
+
+/**
+ * Converts sRGB colors to <a href="https://bottosson.github.io/posts/oklab/">
+ * OKLab</a>, a color space where the straight line distance between two colors
+ * follows how different they look much more closely than it does in RGB.
+ * <p>
+ * The expensive parts of the conversion, the sRGB transfer curve and the cube
+ * root, are read from tables that are built once, so converting a color costs
+ * three table loads, two small matrix products and three more table loads.
+ * Colors are returned in fixed point: each component is multiplied by
+ * {@link #SCALE} and rounded, so squared distances fit in an
+ * <code>int</code>.
+ */
+public class OKLab {
+
+	/** The fixed point scale of the components, L is from 0 to SCALE. */
+	public static final int SCALE = 4096;
+
+	/** The number of bits of the cube root table's index. */
+	private static final int CBRT_BITS = 16;
+	private static final int CBRT_MAX = (1 << CBRT_BITS) - 1;
+
+	/** Each 8 bit sRGB component in linear light, from 0 to 1. */
+	private static final float[] LINEAR = new float[256];
+
+	/** The cube root of i / CBRT_MAX. */
+	private static final float[] CBRT = new float[CBRT_MAX + 1];
+
+	static {
+		for (int a = 0; a < LINEAR.length; a++) {
+			double v = a / 255.0;
+			LINEAR[a] = (float) (v <= 0.04045 ? v / 12.92 : Math.pow(
+					(v + 0.055) / 1.055, 2.4));
+		}
+		for (int a = 0; a < CBRT.length; a++) {
+			CBRT[a] = (float) Math.cbrt(((double) a) / CBRT_MAX);
+		}
+	}
+
+	private OKLab() {
+	}
+
+	private static float cbrt(float v) {
+		int i = (int) (v * CBRT_MAX + 0.5f);
+		return CBRT[Math.min(Math.max(i, 0), CBRT_MAX)];
+	}
+
+	/**
+	 * Convert an sRGB color to OKLab.
+	 *
+	 * @param red
+	 *            the red component (0-255).
+	 * @param green
+	 *            the green component (0-255).
+	 * @param blue
+	 *            the blue component (0-255).
+	 * @return the L, a and b components times {@link #SCALE}, packed by
+	 *         {@link #pack(int, int, int)}.
+	 */
+	public static long toOKLab(int red, int green, int blue) {
+		float r = LINEAR[red];
+		float g = LINEAR[green];
+		float b = LINEAR[blue];
+
+		float l = cbrt(0.4122214708f * r + 0.5363325363f * g + 0.0514459929f
+				* b);
+		float m = cbrt(0.2119034982f * r + 0.6806995451f * g + 0.1073969566f
+				* b);
+		float s = cbrt(0.0883024619f * r + 0.2817188376f * g + 0.6299787005f
+				* b);
+
+		float lightness = 0.2104542553f * l + 0.7936177850f * m
+				- 0.0040720468f * s;
+		float aa = 1.9779984951f * l - 2.4285922050f * m + 0.4505937099f * s;
+		float bb = 0.0259040371f * l + 0.7827717662f * m - 0.8086757660f * s;
+		return pack(Math.round(lightness * SCALE), Math.round(aa * SCALE),
+				Math.round(bb * SCALE));
+	}
+
+	/**
+	 * Pack three fixed point components into a long, 21 signed bits each.
+	 */
+	public static long pack(int lightness, int a, int b) {
+		return ((lightness & 0x1fffffL) << 42) | ((a & 0x1fffffL) << 21)
+				| (b & 0x1fffffL);
+	}
+
+	/** Return the L component of a packed color. */
+	public static int getL(long lab) {
+		return (int) (lab << 1 >> 43);
+	}
+
+	/** Return the a component of a packed color. */
+	public static int getA(long lab) {
+		return (int) (lab << 22 >> 43);
+	}
+
+	/** Return the b component of a packed color. */
+	public static int getB(long lab) {
+		return (int) (lab << 43 >> 43);
+	}
+
+	/** Return the squared distance between two packed colors. */
+	public static int getDistanceSquared(long lab1, long lab2) {
+		int dl = getL(lab1) - getL(lab2);
+		int da = getA(lab1) - getA(lab2);
+		int db = getB(lab1) - getB(lab2);
+		return dl * dl + da * da + db * db;
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ *
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://raw.githubusercontent.com/mickleness/pumpernickel/master/License.txt
+ *
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ *
+ * Added by Paul Conti for the GUIslice project 2024
+ */
+package com.pump.image.pixel.quantize;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.pump.image.pixel.BufferedImageIterator;
+import com.pump.image.pixel.IntARGBConverter;
+
+/**
+ * This reduces colors with an <a
+ * href="https://en.wikipedia.org/wiki/Octree#Color_quantization">octree</a>.
+ * <p>
+ * Each level of the tree splits the color cube in half along all three axes,
+ * so a leaf at the eighth level is a single color. Colors are added one at a
+ * time, and whenever the tree holds more than a fixed number of nodes the
+ * deepest branch is folded into its parent. So the memory used is bounded no
+ * matter how many distinct colors the image has, and the image can be
+ * streamed in without building a {@link ColorSet} first. When all the colors
+ * are added the smallest deepest branches are folded until no more than the
+ * requested number of leaves remain, and each leaf becomes the average of
+ * the colors it absorbed.
+ * <p>
+ * Folding a branch removes up to eight leaves at once, so this may return a
+ * few less colors than requested.
+ */
+public class OctreeColorQuantization extends ColorQuantization {
+
+	/** The default cap on the number of nodes in the tree. */
+	public static final int DEFAULT_MAXIMUM_NODE_COUNT = 16 * 1024;
+
+	final int maximumNodeCount;
+
+	/**
+	 * Create an <code>OctreeColorQuantization</code> with a cap of
+	 * {@link #DEFAULT_MAXIMUM_NODE_COUNT} nodes.
+	 */
+	public OctreeColorQuantization() {
+		this(DEFAULT_MAXIMUM_NODE_COUNT);
+	}
+
+	/**
+	 * Create an <code>OctreeColorQuantization</code>.
+	 *
+	 * @param maximumNodeCount
+	 *            the most nodes the tree may hold while colors are added.
+	 *            Higher values are slower but keep finer detail until the
+	 *            final reduction. This must be at least 64.
+	 */
+	public OctreeColorQuantization(int maximumNodeCount) {
+		if (maximumNodeCount < 64)
+			throw new IllegalArgumentException("maximumNodeCount ("
+					+ maximumNodeCount + ") must be at least 64");
+		this.maximumNodeCount = maximumNodeCount;
+	}
+
+	@Override
+	public ColorSet createReducedSet(ColorSet originalSet,
+			int maximumColorCount, boolean retainOriginalIntegrity) {
+		if (originalSet.getColorCount() <= maximumColorCount)
+			return originalSet;
+
+		Octree tree = new Octree(maximumNodeCount);
+		Map<Integer, Integer> frequencyMap = originalSet
+				.getRGBtoFrequencyMap(false);
+		for (Map.Entry<Integer, Integer> entry : frequencyMap.entrySet()) {
+			tree.add(entry.getKey(), entry.getValue());
+		}
+		return tree.createColorSet(maximumColorCount);
+	}
+
+	/**
+	 * Create a reduced ColorSet directly from the pixels of an image that are
+	 * more than 50% opaque, without counting every color first.
+	 *
+	 * @param image
+	 *            the image to reduce.
+	 * @param maximumColorCount
+	 *            the number of colors to reduce to.
+	 * @return a <code>ColorSet</code> that conforms to maximumColorCount.
+	 */
+	public ColorSet createReducedSet(BufferedImage image,
+			int maximumColorCount) {
+		Octree tree = new Octree(maximumNodeCount);
+		IntARGBConverter i = new IntARGBConverter(
+				BufferedImageIterator.get(image));
+		int w = i.getWidth();
+		int[] row = new int[i.getMinimumArrayLength()];
+		while (i.isDone() == false) {
+			i.next(row);
+			int x = 0;
+			while (x < w) {
+				int p = row[x];
+				int run = 1;
+				x++;
+				// runs of one color are common and cost one walk of the tree
+				while (x < w && row[x] == p) {
+					run++;
+					x++;
+				}
+				if (((p >> 24) & 0xff) > 128) {
+					tree.add(p, run);
+				}
+			}
+		}
+		return tree.createColorSet(maximumColorCount);
+	}
+
+	/**
+	 * The tree itself, kept in parallel arrays indexed by node. Node 0 is the
+	 * root.
+	 */
+	static class Octree {
+		static final int DEPTH = 8;
+
+		final int maximumNodeCount;
+
+		/** The 8 children of each node, or 0 if a child is missing. */
+		int[] children;
+		/** The sum of the color components of the pixels in a leaf. */
+		long[] sumR, sumG, sumB;
+		/** The number of pixels in a node and all its descendants. */
+		long[] count;
+		byte[] level;
+		boolean[] leaf;
+		/** The list of branch nodes at each level, linked through these. */
+		int[] next, prev;
+		int[] branches = new int[DEPTH];
+
+		int size = 1;
+		int freeList = 0;
+		int nodeCount = 1;
+		int leafCount = 0;
+
+		Octree(int maximumNodeCount) {
+			this.maximumNodeCount = maximumNodeCount;
+			int capacity = Math.min(maximumNodeCount + 2 * DEPTH, 1024);
+			children = new int[capacity * 8];
+			sumR = new long[capacity];
+			sumG = new long[capacity];
+			sumB = new long[capacity];
+			count = new long[capacity];
+			level = new byte[capacity];
+			leaf = new boolean[capacity];
+			next = new int[capacity];
+			prev = new int[capacity];
+			Arrays.fill(branches, -1);
+			addBranch(0);
+		}
+
+		/**
+		 * Add pixels of one color.
+		 *
+		 * @param rgb
+		 *            the color, any alpha is ignored.
+		 * @param weight
+		 *            the number of pixels.
+		 */
+		void add(int rgb, long weight) {
+			int r = (rgb >> 16) & 0xff;
+			int g = (rgb >> 8) & 0xff;
+			int b = rgb & 0xff;
+			int node = 0;
+			for (int depth = 0;; depth++) {
+				count[node] += weight;
+				if (leaf[node]) {
+					sumR[node] += r * weight;
+					sumG[node] += g * weight;
+					sumB[node] += b * weight;
+					break;
+				}
+				int shift = 7 - depth;
+				int octant = (((r >> shift) & 1) << 2)
+						| (((g >> shift) & 1) << 1) | ((b >> shift) & 1);
+				int child = children[node * 8 + octant];
+				if (child == 0) {
+					child = allocate(depth + 1);
+					children[node * 8 + octant] = child;
+				}
+				node = child;
+			}
+			while (nodeCount > maximumNodeCount) {
+				fold(branches[deepestLevel()]);
+			}
+		}
+
+		private int allocate(int depth) {
+			int node;
+			if (freeList != 0) {
+				node = freeList;
+				freeList = next[node];
+			} else {
+				if (size == count.length)
+					grow();
+				node = size++;
+			}
+			Arrays.fill(children, node * 8, node * 8 + 8, 0);
+			sumR[node] = sumG[node] = sumB[node] = count[node] = 0;
+			level[node] = (byte) depth;
+			nodeCount++;
+			if (depth == DEPTH) {
+				leaf[node] = true;
+				leafCount++;
+			} else {
+				leaf[node] = false;
+				addBranch(node);
+			}
+			return node;
+		}
+
+		private void grow() {
+			int capacity = count.length * 2;
+			children = Arrays.copyOf(children, capacity * 8);
+			sumR = Arrays.copyOf(sumR, capacity);
+			sumG = Arrays.copyOf(sumG, capacity);
+			sumB = Arrays.copyOf(sumB, capacity);
+			count = Arrays.copyOf(count, capacity);
+			level = Arrays.copyOf(level, capacity);
+			leaf = Arrays.copyOf(leaf, capacity);
+			next = Arrays.copyOf(next, capacity);
+			prev = Arrays.copyOf(prev, capacity);
+		}
+
+		private void addBranch(int node) {
+			int l = level[node];
+			int head = branches[l];
+			prev[node] = -1;
+			next[node] = head;
+			if (head >= 0)
+				prev[head] = node;
+			branches[l] = node;
+		}
+
+		private void removeBranch(int node) {
+			int l = level[node];
+			if (prev[node] >= 0) {
+				next[prev[node]] = next[node];
+			} else {
+				branches[l] = next[node];
+			}
+			if (next[node] >= 0)
+				prev[next[node]] = prev[node];
+		}
+
+		/**
+		 * Return the deepest level that has branches. All the children of
+		 * those branches are leaves.
+		 */
+		private int deepestLevel() {
+			for (int l = DEPTH - 1; l > 0; l--) {
+				if (branches[l] >= 0)
+					return l;
+			}
+			return 0;
+		}
+
+		/** Merge all the children of a branch into it, making it a leaf. */
+		private void fold(int node) {
+			removeBranch(node);
+			for (int octant = 0; octant < 8; octant++) {
+				int child = children[node * 8 + octant];
+				if (child != 0) {
+					sumR[node] += sumR[child];
+					sumG[node] += sumG[child];
+					sumB[node] += sumB[child];
+					children[node * 8 + octant] = 0;
+					next[child] = freeList;
+					freeList = child;
+					nodeCount--;
+					leafCount--;
+				}
+			}
+			leaf[node] = true;
+			leafCount++;
+		}
+
+		/**
+		 * Fold the smallest deepest branches until no more than
+		 * maximumColorCount leaves remain, and return the leaves.
+		 */
+		ColorSet createColorSet(int maximumColorCount) {
+			while (leafCount > maximumColorCount && !leaf[0]) {
+				int l = deepestLevel();
+				int smallest = branches[l];
+				for (int node = next[smallest]; node >= 0; node = next[node]) {
+					if (count[node] < count[smallest])
+						smallest = node;
+				}
+				fold(smallest);
+			}
+
+			ColorSet set = new ColorSet();
+			addLeaves(set, 0);
+			return set;
+		}
+
+		private void addLeaves(ColorSet set, int node) {
+			if (leaf[node]) {
+				long n = count[node];
+				if (n > 0) {
+					set.addColor((int) ((sumR[node] + n / 2) / n),
+							(int) ((sumG[node] + n / 2) / n),
+							(int) ((sumB[node] + n / 2) / n),
+							(int) Math.min(n, Integer.MAX_VALUE));
+				}
+				return;
+			}
+			for (int octant = 0; octant < 8; octant++) {
+				int child = children[node * 8 + octant];
+				if (child != 0)
+					addLeaves(set, child);
+			}
+		}
+	}
+}
@@ -0,0 +1,359 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ *
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://raw.githubusercontent.com/mickleness/pumpernickel/master/License.txt
+ *
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ *
+ * Added by Paul Conti for the GUIslice project 2024
+ */
+package com.pump.image.pixel.quantize;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.pump.image.pixel.BufferedImageIterator;
+import com.pump.image.pixel.IndexedBytePixelIterator;
+import com.pump.image.pixel.IntARGBConverter;
+
+/**
+ * This applies <a href="https://en.wikipedia.org/wiki/Ordered_dithering">ordered
+ * dithering</a> to an image: a threshold matrix is tiled over the image, and
+ * each pixel is offset by its threshold before the closest color is chosen.
+ * <p>
+ * Unlike error diffusion every pixel is independent of the others, so the
+ * result doesn't depend on the order pixels are visited in, and repeating
+ * patterns compress well. Note the {@link ImageQuantization} class offers a
+ * few static fields with Bayer and blue noise matrices.
+ */
+public class OrderedDitherImageQuantization extends ImageQuantization {
+
+	/** The ranks of the matrix cells, from 0 to width * height - 1. */
+	private final int[][] matrix;
+
+	/**
+	 * The pixel iterator that implements ordered dithering.
+	 */
+	protected class OrderedDitherIndexedBytePixelIterator extends
+			AbstractIndexedBytePixelIterator {
+
+		int[] incomingRow;
+		IntARGBConverter iter;
+		protected int y;
+		final int[] offsets;
+		final int matrixWidth, matrixHeight;
+
+		OrderedDitherIndexedBytePixelIterator(BufferedImage source,
+				ColorLUT lut, int firstRow) {
+			super(source, lut);
+			incomingRow = new int[getWidth()];
+			iter = new IntARGBConverter(BufferedImageIterator.get(source));
+			y = firstRow;
+			int[][] m = getMatrix();
+			matrixHeight = m.length;
+			matrixWidth = m[0].length;
+			offsets = getOffsets(m, icm);
+		}
+
+		public void skip() {
+			iter.skip();
+			y++;
+		}
+
+		public void next(byte[] dest) {
+			iter.next(incomingRow);
+
+			int t = icm.getTransparentPixel();
+			int[] thresholds = offsets;
+			int base = (y % matrixHeight) * matrixWidth;
+			for (int x = 0; x < iter.getWidth(); x++) {
+				int index;
+				int a = (incomingRow[x] >> 24) & 0xff;
+				if (t >= 0 && a < 128) {
+					index = t;
+				} else {
+					int offset = thresholds[base + x % matrixWidth];
+					int r = clamp(((incomingRow[x] >> 16) & 0xff) + offset);
+					int g = clamp(((incomingRow[x] >> 8) & 0xff) + offset);
+					int b = clamp(((incomingRow[x] >> 0) & 0xff) + offset);
+
+					index = lut.getIndexMatch(r, g, b);
+				}
+				dest[x] = (byte) (index);
+			}
+			y++;
+		}
+
+		public boolean isDone() {
+			return iter.isDone();
+		}
+	}
+
+	/**
+	 * Create a new OrderedDitherImageQuantization.
+	 *
+	 * @param matrix
+	 *            the threshold matrix. Every row must be the same length, and
+	 *            the cells must hold each of the numbers from 0 to (the number
+	 *            of cells - 1) once.
+	 */
+	public OrderedDitherImageQuantization(int[][] matrix) {
+		this.matrix = matrix;
+	}
+
+	/**
+	 * Return the threshold matrix. This should not be modified. Subclasses
+	 * may override this to create a matrix the first time it is needed.
+	 */
+	public int[][] getMatrix() {
+		return matrix;
+	}
+
+	/**
+	 * Return the offset of each matrix cell, in row major order. The spread
+	 * is about the distance between neighboring palette colors, assuming
+	 * they were evenly spaced.
+	 */
+	static int[] getOffsets(int[][] matrix, IndexColorModel icm) {
+		int matrixHeight = matrix.length;
+		int matrixWidth = matrix[0].length;
+		int colors = Math.max(2, icm.getMapSize()
+				- (icm.getTransparentPixel() >= 0 ? 1 : 0));
+		double spread = 256 / Math.cbrt(colors);
+		int cells = matrixWidth * matrixHeight;
+		int[] offsets = new int[cells];
+		for (int y = 0; y < matrixHeight; y++) {
+			for (int x = 0; x < matrixWidth; x++) {
+				double t = (matrix[y][x] + 0.5) / cells - 0.5;
+				offsets[y * matrixWidth + x] = (int) Math.round(t * spread);
+			}
+		}
+		return offsets;
+	}
+
+	static int clamp(int v) {
+		return Math.min(Math.max(v, 0), 255);
+	}
+
+	@Override
+	public IndexedBytePixelIterator createImageData(BufferedImage source,
+			ColorLUT colorLUT) {
+		return new OrderedDitherIndexedBytePixelIterator(source, colorLUT, 0);
+	}
+
+	/**
+	 * Dither bands of rows on the fork join pool. Small images, or a single
+	 * core, are dithered on the calling thread.
+	 */
+	@Override
+	public BufferedImage createImageParallel(BufferedImage source,
+			ColorLUT colorLUT) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		long pixels = (long) width * height;
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		if (parallelism < 2 || pixels <= DitherBand.MIN_PIXELS)
+			return createImage(source, colorLUT);
+
+		IndexColorModel icm = colorLUT.getIndexColorModel();
+		if (icm == null)
+			throw new NullPointerException();
+		BufferedImage bi = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_INDEXED, icm);
+		long bandPixels = Math.max(DitherBand.MIN_PIXELS, pixels
+				/ (parallelism * 4));
+		new DitherBand(source, colorLUT, bi, 0, height, bandPixels).invoke();
+		return bi;
+	}
+
+	/** Dithers a band of rows into the destination image. */
+	class DitherBand extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** The smallest band worth splitting. */
+		static final int MIN_PIXELS = 64 * 1024;
+
+		final BufferedImage source, dest;
+		final ColorLUT lut;
+		final int firstRow, endRow;
+		final long bandPixels;
+
+		DitherBand(BufferedImage source, ColorLUT lut, BufferedImage dest,
+				int firstRow, int endRow, long bandPixels) {
+			this.source = source;
+			this.lut = lut;
+			this.dest = dest;
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+			this.bandPixels = bandPixels;
+		}
+
+		@Override
+		protected void compute() {
+			int width = source.getWidth();
+			int rows = endRow - firstRow;
+			if (rows < 2 || (long) rows * width <= bandPixels) {
+				// the sub image shares the parent's raster
+				OrderedDitherIndexedBytePixelIterator iter = new OrderedDitherIndexedBytePixelIterator(
+						source.getSubimage(0, firstRow, width, rows), lut,
+						firstRow);
+				byte[] row = new byte[width];
+				int y = firstRow;
+				while (!iter.isDone()) {
+					iter.next(row);
+					dest.getRaster().setDataElements(0, y, width, 1, row);
+					y++;
+				}
+				return;
+			}
+			int mid = firstRow + rows / 2;
+			invokeAll(new DitherBand(source, lut, dest, firstRow, mid,
+					bandPixels), new DitherBand(source, lut, dest, mid,
+					endRow, bandPixels));
+		}
+	}
+
+	/**
+	 * Create a Bayer matrix.
+	 *
+	 * @param size
+	 *            the width and height of the matrix, a power of 2.
+	 */
+	public static int[][] createBayerMatrix(int size) {
+		if (size < 1 || (size & (size - 1)) != 0)
+			throw new IllegalArgumentException("size (" + size
+					+ ") must be a power of 2");
+		int[][] m = new int[][] { { 0 } };
+		for (int n = 1; n < size; n *= 2) {
+			int[][] next = new int[n * 2][n * 2];
+			for (int y = 0; y < n; y++) {
+				for (int x = 0; x < n; x++) {
+					int v = 4 * m[y][x];
+					next[y][x] = v;
+					next[y][x + n] = v + 2;
+					next[y + n][x] = v + 3;
+					next[y + n][x + n] = v + 1;
+				}
+			}
+			m = next;
+		}
+		return m;
+	}
+
+	/**
+	 * Create a blue noise matrix with the void and cluster method (Robert
+	 * Ulichney, 1993). The matrix tiles without seams, and the same size
+	 * always gives the same matrix.
+	 *
+	 * @param size
+	 *            the width and height of the matrix.
+	 */
+	public static int[][] createBlueNoiseMatrix(int size) {
+		int n = size * size;
+		VoidAndCluster v = new VoidAndCluster(size);
+
+		// start with a random tenth of the cells, spread out evenly
+		Random random = new Random(size);
+		int ones = Math.max(1, n / 10);
+		for (int placed = 0; placed < ones;) {
+			int i = random.nextInt(n);
+			if (!v.pattern[i]) {
+				v.set(i, true);
+				placed++;
+			}
+		}
+		for (int iterations = 0; iterations < n; iterations++) {
+			int cluster = v.find(true);
+			v.set(cluster, false);
+			int gap = v.find(false);
+			v.set(gap, true);
+			if (gap == cluster)
+				break;
+		}
+		boolean[] initialPattern = v.pattern.clone();
+		double[] initialEnergy = v.energy.clone();
+
+		int[] rank = new int[n];
+		for (int r = ones - 1; r >= 0; r--) {
+			int cluster = v.find(true);
+			v.set(cluster, false);
+			rank[cluster] = r;
+		}
+		v.pattern = initialPattern;
+		v.energy = initialEnergy;
+		for (int r = ones; r < n; r++) {
+			int gap = v.find(false);
+			v.set(gap, true);
+			rank[gap] = r;
+		}
+
+		int[][] m = new int[size][size];
+		for (int i = 0; i < n; i++) {
+			m[i / size][i % size] = rank[i];
+		}
+		return m;
+	}
+
+	/** A binary pattern and the energy of its ones at every cell. */
+	static class VoidAndCluster {
+		final int size;
+		/** A gaussian of the wrapped offset between two cells. */
+		final double[] filter;
+		boolean[] pattern;
+		double[] energy;
+
+		VoidAndCluster(int size) {
+			this.size = size;
+			int n = size * size;
+			pattern = new boolean[n];
+			energy = new double[n];
+			filter = new double[n];
+			double sigma = 1.5;
+			for (int dy = 0; dy < size; dy++) {
+				int wy = Math.min(dy, size - dy);
+				for (int dx = 0; dx < size; dx++) {
+					int wx = Math.min(dx, size - dx);
+					filter[dy * size + dx] = Math.exp(-(wx * wx + wy * wy)
+							/ (2 * sigma * sigma));
+				}
+			}
+		}
+
+		void set(int i, boolean value) {
+			pattern[i] = value;
+			double sign = value ? 1 : -1;
+			int iy = i / size;
+			int ix = i % size;
+			for (int y = 0; y < size; y++) {
+				int dy = (y - iy + size) % size;
+				for (int x = 0; x < size; x++) {
+					int dx = (x - ix + size) % size;
+					energy[y * size + x] += sign * filter[dy * size + dx];
+				}
+			}
+		}
+
+		/**
+		 * Return the tightest cluster (the one with the most energy) if
+		 * value is true, or the largest void (the zero with the least
+		 * energy) if value is false.
+		 */
+		int find(boolean value) {
+			int best = -1;
+			for (int i = 0; i < pattern.length; i++) {
+				if (pattern[i] == value) {
+					if (best < 0 || (value ? energy[i] > energy[best]
+							: energy[i] < energy[best]))
+						best = i;
+				}
+			}
+			return best;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ *
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://raw.githubusercontent.com/mickleness/pumpernickel/master/License.txt
+ *
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ *
+ * Added by Paul Conti for the GUIslice project 2024
+ */
+package com.pump.image.pixel.quantize;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+import com.pump.image.pixel.BufferedImageIterator;
+import com.pump.image.pixel.IntARGBConverter;
+
+/**
+ * This reduces colors with Xiaolin Wu's variance minimizing quantizer
+ * ("Efficient Statistical Computations for Optimal Color Quantization",
+ * Graphics Gems II).
+ * <p>
+ * The colors are binned at 5 bits per channel into a 33x33x33 grid (the
+ * first row of each axis stays zero) and the grid is turned into cumulative
+ * tables of the pixel count, the sum of each component and the sum of the
+ * squared magnitude. With those tables the statistics of any box come from
+ * eight lookups, so each candidate split costs constant time. The box with
+ * the highest variance is split at the plane that minimizes the summed
+ * variance of its halves, until there are as many boxes as colors. The cost
+ * doesn't depend on the number of distinct colors.
+ */
+public class WuColorQuantization extends ColorQuantization {
+
+	static final int SIDE = 33;
+
+	@Override
+	public ColorSet createReducedSet(ColorSet originalSet,
+			int maximumColorCount, boolean retainOriginalIntegrity) {
+		if (originalSet.getColorCount() <= maximumColorCount)
+			return originalSet;
+
+		Moments m = new Moments();
+		Map<Integer, Integer> frequencyMap = originalSet
+				.getRGBtoFrequencyMap(false);
+		for (Map.Entry<Integer, Integer> entry : frequencyMap.entrySet()) {
+			m.add(entry.getKey(), entry.getValue());
+		}
+		return m.createColorSet(maximumColorCount);
+	}
+
+	/**
+	 * Create a reduced ColorSet directly from the pixels of an image that are
+	 * more than 50% opaque, without counting every color first. The distinct
+	 * colors are only counted until there are more than maximumColorCount of
+	 * them: if the image already fits, its colors are returned exactly
+	 * instead of being binned.
+	 *
+	 * @param image
+	 *            the image to reduce.
+	 * @param maximumColorCount
+	 *            the number of colors to reduce to.
+	 * @return a <code>ColorSet</code> that conforms to maximumColorCount.
+	 */
+	public ColorSet createReducedSet(BufferedImage image,
+			int maximumColorCount) {
+		Moments m = new Moments();
+		IntHistogram distinct = new IntHistogram();
+		IntARGBConverter i = new IntARGBConverter(
+				BufferedImageIterator.get(image));
+		int w = i.getWidth();
+		int[] row = new int[i.getMinimumArrayLength()];
+		while (i.isDone() == false) {
+			i.next(row);
+			for (int x = 0; x < w; x++) {
+				int p = row[x];
+				if (((p >> 24) & 0xff) > 128) {
+					m.add(p, 1);
+				}
+			}
+			if (distinct != null) {
+				distinct.addRow(row, w);
+				if (distinct.size() > maximumColorCount)
+					distinct = null;
+			}
+		}
+		if (distinct != null && distinct.size() > 0) {
+			ColorSet exact = new ColorSet();
+			for (int rgb : distinct.sortedKeys()) {
+				exact.addColor((rgb >> 16) & 0xff, (rgb >> 8) & 0xff,
+						rgb & 0xff, distinct.get(rgb));
+			}
+			return exact;
+		}
+		return m.createColorSet(maximumColorCount);
+	}
+
+	/** A box of the grid, lower bounds are exclusive. */
+	static class Box {
+		int r0, r1, g0, g1, b0, b1;
+		int volume;
+	}
+
+	/** The cumulative moment tables. */
+	static class Moments {
+		final long[] wt = new long[SIDE * SIDE * SIDE];
+		final long[] mr = new long[SIDE * SIDE * SIDE];
+		final long[] mg = new long[SIDE * SIDE * SIDE];
+		final long[] mb = new long[SIDE * SIDE * SIDE];
+		final double[] m2 = new double[SIDE * SIDE * SIDE];
+
+		static int index(int r, int g, int b) {
+			return (r * SIDE + g) * SIDE + b;
+		}
+
+		void add(int rgb, long weight) {
+			int r = (rgb >> 16) & 0xff;
+			int g = (rgb >> 8) & 0xff;
+			int b = rgb & 0xff;
+			int i = index((r >> 3) + 1, (g >> 3) + 1, (b >> 3) + 1);
+			wt[i] += weight;
+			mr[i] += r * weight;
+			mg[i] += g * weight;
+			mb[i] += b * weight;
+			m2[i] += (double) (r * r + g * g + b * b) * weight;
+		}
+
+		/** Turn the histogram into cumulative tables. */
+		void accumulate() {
+			long[] area = new long[SIDE];
+			long[] areaR = new long[SIDE];
+			long[] areaG = new long[SIDE];
+			long[] areaB = new long[SIDE];
+			double[] area2 = new double[SIDE];
+			for (int r = 1; r < SIDE; r++) {
+				for (int b = 0; b < SIDE; b++) {
+					area[b] = areaR[b] = areaG[b] = areaB[b] = 0;
+					area2[b] = 0;
+				}
+				for (int g = 1; g < SIDE; g++) {
+					long line = 0, lineR = 0, lineG = 0, lineB = 0;
+					double line2 = 0;
+					for (int b = 1; b < SIDE; b++) {
+						int i = index(r, g, b);
+						line += wt[i];
+						lineR += mr[i];
+						lineG += mg[i];
+						lineB += mb[i];
+						line2 += m2[i];
+
+						area[b] += line;
+						areaR[b] += lineR;
+						areaG[b] += lineG;
+						areaB[b] += lineB;
+						area2[b] += line2;
+
+						int j = index(r - 1, g, b);
+						wt[i] = wt[j] + area[b];
+						mr[i] = mr[j] + areaR[b];
+						mg[i] = mg[j] + areaG[b];
+						mb[i] = mb[j] + areaB[b];
+						m2[i] = m2[j] + area2[b];
+					}
+				}
+			}
+		}
+
+		/** The sum of a table over a box. */
+		static long volume(Box c, long[] m) {
+			return m[index(c.r1, c.g1, c.b1)] - m[index(c.r1, c.g1, c.b0)]
+					- m[index(c.r1, c.g0, c.b1)] + m[index(c.r1, c.g0, c.b0)]
+					- m[index(c.r0, c.g1, c.b1)] + m[index(c.r0, c.g1, c.b0)]
+					+ m[index(c.r0, c.g0, c.b1)] - m[index(c.r0, c.g0, c.b0)];
+		}
+
+		static double volume(Box c, double[] m) {
+			return m[index(c.r1, c.g1, c.b1)] - m[index(c.r1, c.g1, c.b0)]
+					- m[index(c.r1, c.g0, c.b1)] + m[index(c.r1, c.g0, c.b0)]
+					- m[index(c.r0, c.g1, c.b1)] + m[index(c.r0, c.g1, c.b0)]
+					+ m[index(c.r0, c.g0, c.b1)] - m[index(c.r0, c.g0, c.b0)];
+		}
+
+		/**
+		 * The part of a box's sum that doesn't depend on the position of a
+		 * cut along an axis: everything below the box's lower bound.
+		 */
+		static long bottom(Box c, int axis, long[] m) {
+			switch (axis) {
+			case 0:
+				return -m[index(c.r0, c.g1, c.b1)] + m[index(c.r0, c.g1, c.b0)]
+						+ m[index(c.r0, c.g0, c.b1)]
+						- m[index(c.r0, c.g0, c.b0)];
+			case 1:
+				return -m[index(c.r1, c.g0, c.b1)] + m[index(c.r1, c.g0, c.b0)]
+						+ m[index(c.r0, c.g0, c.b1)]
+						- m[index(c.r0, c.g0, c.b0)];
+			default:
+				return -m[index(c.r1, c.g1, c.b0)] + m[index(c.r1, c.g0, c.b0)]
+						+ m[index(c.r0, c.g1, c.b0)]
+						- m[index(c.r0, c.g0, c.b0)];
+			}
+		}
+
+		/** The part of a box's sum that depends on a cut at position. */
+		static long top(Box c, int axis, int position, long[] m) {
+			switch (axis) {
+			case 0:
+				return m[index(position, c.g1, c.b1)]
+						- m[index(position, c.g1, c.b0)]
+						- m[index(position, c.g0, c.b1)]
+						+ m[index(position, c.g0, c.b0)];
+			case 1:
+				return m[index(c.r1, position, c.b1)]
+						- m[index(c.r1, position, c.b0)]
+						- m[index(c.r0, position, c.b1)]
+						+ m[index(c.r0, position, c.b0)];
+			default:
+				return m[index(c.r1, c.g1, position)]
+						- m[index(c.r1, c.g0, position)]
+						- m[index(c.r0, c.g1, position)]
+						+ m[index(c.r0, c.g0, position)];
+			}
+		}
+
+		/** The weighted variance of a box. */
+		double variance(Box c) {
+			double dr = volume(c, mr);
+			double dg = volume(c, mg);
+			double db = volume(c, mb);
+			double xx = volume(c, m2);
+			long w = volume(c, wt);
+			if (w == 0)
+				return 0;
+			return xx - (dr * dr + dg * dg + db * db) / w;
+		}
+
+		/**
+		 * Find the cut along an axis that maximizes the sum of the squared
+		 * means of the halves (the same as minimizing their variance).
+		 *
+		 * @return the best value, and the position in cut[0], or -1 if the
+		 *         box can't be cut along this axis.
+		 */
+		double maximize(Box c, int axis, int first, int last, int[] cut,
+				long wholeR, long wholeG, long wholeB, long wholeW) {
+			long baseR = bottom(c, axis, mr);
+			long baseG = bottom(c, axis, mg);
+			long baseB = bottom(c, axis, mb);
+			long baseW = bottom(c, axis, wt);
+			double max = 0;
+			cut[0] = -1;
+			for (int i = first; i < last; i++) {
+				long halfR = baseR + top(c, axis, i, mr);
+				long halfG = baseG + top(c, axis, i, mg);
+				long halfB = baseB + top(c, axis, i, mb);
+				long halfW = baseW + top(c, axis, i, wt);
+				if (halfW == 0)
+					continue;
+				double temp = ((double) halfR * halfR + (double) halfG
+						* halfG + (double) halfB * halfB)
+						/ halfW;
+				halfR = wholeR - halfR;
+				halfG = wholeG - halfG;
+				halfB = wholeB - halfB;
+				halfW = wholeW - halfW;
+				if (halfW == 0)
+					continue;
+				temp += ((double) halfR * halfR + (double) halfG * halfG + (double) halfB
+						* halfB)
+						/ halfW;
+				if (temp > max) {
+					max = temp;
+					cut[0] = i;
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Split box 1 into box 1 and box 2.
+		 *
+		 * @return false if the box can't be split.
+		 */
+		boolean cut(Box set1, Box set2) {
+			long wholeR = volume(set1, mr);
+			long wholeG = volume(set1, mg);
+			long wholeB = volume(set1, mb);
+			long wholeW = volume(set1, wt);
+
+			int[] cutR = new int[1], cutG = new int[1], cutB = new int[1];
+			double maxR = maximize(set1, 0, set1.r0 + 1, set1.r1, cutR,
+					wholeR, wholeG, wholeB, wholeW);
+			double maxG = maximize(set1, 1, set1.g0 + 1, set1.g1, cutG,
+					wholeR, wholeG, wholeB, wholeW);
+			double maxB = maximize(set1, 2, set1.b0 + 1, set1.b1, cutB,
+					wholeR, wholeG, wholeB, wholeW);
+
+			int axis;
+			if (maxR >= maxG && maxR >= maxB) {
+				axis = 0;
+				if (cutR[0] < 0)
+					return false;
+			} else if (maxG >= maxR && maxG >= maxB) {
+				axis = 1;
+			} else {
+				axis = 2;
+			}
+
+			set2.r1 = set1.r1;
+			set2.g1 = set1.g1;
+			set2.b1 = set1.b1;
+			switch (axis) {
+			case 0:
+				set2.r0 = set1.r1 = cutR[0];
+				set2.g0 = set1.g0;
+				set2.b0 = set1.b0;
+				break;
+			case 1:
+				set2.g0 = set1.g1 = cutG[0];
+				set2.r0 = set1.r0;
+				set2.b0 = set1.b0;
+				break;
+			default:
+				set2.b0 = set1.b1 = cutB[0];
+				set2.r0 = set1.r0;
+				set2.g0 = set1.g0;
+				break;
+			}
+			set1.volume = (set1.r1 - set1.r0) * (set1.g1 - set1.g0)
+					* (set1.b1 - set1.b0);
+			set2.volume = (set2.r1 - set2.r0) * (set2.g1 - set2.g0)
+					* (set2.b1 - set2.b0);
+			return true;
+		}
+
+		/** Split the grid into boxes and return the mean of each box. */
+		ColorSet createColorSet(int maximumColorCount) {
+			accumulate();
+
+			Box[] boxes = new Box[Math.max(1, maximumColorCount)];
+			double[] variance = new double[boxes.length];
+			for (int a = 0; a < boxes.length; a++) {
+				boxes[a] = new Box();
+			}
+			boxes[0].r1 = boxes[0].g1 = boxes[0].b1 = SIDE - 1;
+
+			int count = 1;
+			int next = 0;
+			while (count < boxes.length) {
+				if (cut(boxes[next], boxes[count])) {
+					variance[next] = boxes[next].volume > 1 ? variance(boxes[next])
+							: 0;
+					variance[count] = boxes[count].volume > 1 ? variance(boxes[count])
+							: 0;
+					count++;
+				} else {
+					variance[next] = 0;
+				}
+				next = 0;
+				double max = variance[0];
+				for (int a = 1; a < count; a++) {
+					if (variance[a] > max) {
+						max = variance[a];
+						next = a;
+					}
+				}
+				if (max <= 0)
+					break;
+			}
+
+			ColorSet set = new ColorSet();
+			for (int a = 0; a < count; a++) {
+				long w = volume(boxes[a], wt);
+				if (w > 0) {
+					set.addColor((int) ((volume(boxes[a], mr) + w / 2) / w),
+							(int) ((volume(boxes[a], mg) + w / 2) / w),
+							(int) ((volume(boxes[a], mb) + w / 2) / w),
+							(int) Math.min(w, Integer.MAX_VALUE));
+				}
+			}
+			return set;
+		}
+	}
+}